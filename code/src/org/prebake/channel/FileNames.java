@@ -30,6 +30,11 @@ public final class FileNames {
   public static final String TOKEN = "token";
   public static final String ARCHIVE = "archive";
   public static final String LOGS = "logs";
+  public static final String CACHE = "cache";
+  /** Under {@link #CACHE}, the outputs and dependencies of cached bakes. */
+  public static final String ACTIONS = "actions";
+  /** Under {@link #CACHE}, the content of cached outputs. */
+  public static final String BLOBS = "blobs";
 
   private FileNames() { /* not instantiable */ }
 }
@@ -0,0 +1,50 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Accumulates bytes into a digest for a {@link HashAlgorithm}.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+abstract class Digester {
+  private byte[] scratch;
+
+  abstract void update(byte[] bytes, int off, int len);
+
+  /** Consumes the remaining bytes in the given buffer. */
+  void update(ByteBuffer bytes) {
+    if (bytes.hasArray()) {
+      int pos = bytes.position();
+      update(bytes.array(), bytes.arrayOffset() + pos, bytes.limit() - pos);
+      bytes.position(bytes.limit());
+    } else {
+      if (scratch == null) { scratch = new byte[4096]; }
+      while (bytes.hasRemaining()) {
+        int n = Math.min(scratch.length, bytes.remaining());
+        bytes.get(scratch, 0, n);
+        update(scratch, 0, n);
+      }
+    }
+  }
+
+  /** The digest of all bytes consumed.  Should be called at most once. */
+  abstract byte[] digest();
+}
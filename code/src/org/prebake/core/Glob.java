@@ -24,6 +24,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -74,6 +75,7 @@ public final class Glob implements Comparable<Glob>, JsonSerializable {
   private final String[] parts;
   private final @Nullable String[] holes;
   private transient Pattern regex;
+  private transient int hashCode;
 
   private Glob(int treeRootIndex, String[] parts, @Nullable String[] holes) {
     this.treeRootIndex = treeRootIndex;
@@ -253,7 +255,7 @@ public final class Glob implements Comparable<Glob>, JsonSerializable {
    * p and q, or null if no such path exists.
    */
   public static Glob intersection(Glob p, Glob q) {
-    return new Intersector(p, q).intersection();
+    return INTERSECTIONS.get(p, q);
   }
 
   /**
@@ -263,12 +265,53 @@ public final class Glob implements Comparable<Glob>, JsonSerializable {
   public static boolean overlaps(Iterable<Glob> unionA, Iterable<Glob> unionB) {
     for (Glob a : unionA) {
       for (Glob b : unionB) {
-        if (new Intersector(a, b).intersects()) { return true; }
+        if (OVERLAPS.get(a, b)) { return true; }
       }
     }
     return false;
   }
 
+  // Globs are immutable and the plan is re-derived from the same globs each
+  // time a plan file changes, so these pure functions are memoized.
+  // Only parts and the tree root affect the results, and those are what
+  // equals compares.
+  private static final int MEMO_SIZE = 1 << 12;
+  private static final PairMemo<Glob, Glob> INTERSECTIONS
+      = new PairMemo<Glob, Glob>(MEMO_SIZE) {
+        @Override protected Glob compute(Glob p, Glob q) {
+          return new Intersector(p, q).intersection();
+        }
+      };
+  private static final PairMemo<Glob, Boolean> OVERLAPS
+      = new PairMemo<Glob, Boolean>(MEMO_SIZE) {
+        @Override protected Boolean compute(Glob p, Glob q) {
+          return new Intersector(p, q).intersects();
+        }
+      };
+  private static final PairMemo<Glob, Function<String, String>> TRANSFORMS
+      = new PairMemo<Glob, Function<String, String>>(MEMO_SIZE) {
+        @Override
+        protected Function<String, String> compute(Glob input, Glob output) {
+          return makeTransform(input, output);
+        }
+      };
+
+  /**
+   * Hit and miss counts for the memo tables behind {@link #intersection},
+   * {@link #overlaps} and {@link #transform}, e.g.
+   * <tt>{intersection.hits=3, intersection.misses=1, ...}</tt>.
+   */
+  public static ImmutableMap<String, Long> getMemoStats() {
+    return ImmutableMap.<String, Long>builder()
+        .put("intersection.hits", INTERSECTIONS.getHitCount())
+        .put("intersection.misses", INTERSECTIONS.getMissCount())
+        .put("overlaps.hits", OVERLAPS.getHitCount())
+        .put("overlaps.misses", OVERLAPS.getMissCount())
+        .put("transform.hits", TRANSFORMS.getHitCount())
+        .put("transform.misses", TRANSFORMS.getMissCount())
+        .build();
+  }
+
   /**
    * A function that transforms paths that match the input glob into paths
    * that match the output glob.
@@ -280,6 +323,11 @@ public final class Glob implements Comparable<Glob>, JsonSerializable {
    */
   public static Function<String, String> transform(Glob input, Glob output)
       throws IllegalArgumentException {
+    return TRANSFORMS.get(input, output);
+  }
+
+  private static Function<String, String> makeTransform(
+      Glob input, Glob output) {
     int m = input.parts.length, n = output.parts.length;
     // The literal portions of the output glob without connecting slashes.
     // For the output glob "foo/**/bar/baz/*.html", the literal portions are
@@ -476,7 +524,11 @@ public final class Glob implements Comparable<Glob>, JsonSerializable {
   }
 
   @Override
-  public int hashCode() { return Arrays.hashCode(parts); }
+  public int hashCode() {
+    int hc = this.hashCode;
+    if (hc == 0) { this.hashCode = hc = Arrays.hashCode(parts); }
+    return hc;
+  }
 
   List<String> parts() {
     return Collections.unmodifiableList(Arrays.asList(parts));
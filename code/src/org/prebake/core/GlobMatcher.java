@@ -0,0 +1,287 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Matches a path against many globs at once by compiling the globs' parts
+ * into a single NFA that is simulated over the characters of the path.
+ * Every glob is tried in one pass without allocating a
+ * {@link java.util.regex.Matcher} per glob.
+ *
+ * <p>The automaton accepts exactly the paths matched by
+ * {@link Glob#match(String)}, treating both {@code /} and {@code \} as
+ * separators.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class GlobMatcher {
+  // Instructions.  Consuming instructions continue at pc + 1.
+  /** Consumes the char in arg. */
+  private static final byte CHAR = 0;
+  /** Consumes a separator. */
+  private static final byte SEP = 1;
+  /** Consumes any char but a separator. */
+  private static final byte NON_SEP = 2;
+  /** Consumes any char. */
+  private static final byte ANY = 3;
+  /** Continues at pc + 1 and at arg without consuming. */
+  private static final byte SPLIT = 4;
+  /** Continues at arg without consuming. */
+  private static final byte JUMP = 5;
+  /** Accepts the glob at index arg if at the end of the path. */
+  private static final byte ACCEPT = 6;
+
+  private final byte[] ops;
+  private final int[] args;
+  /** The globs in the order their programs appear. */
+  private final Glob[] globs;
+  /** The pc at which each glob's program starts. */
+  private final int[] starts;
+  /**
+   * True for globs that reuse a hole name, which the automaton can't check,
+   * so {@link Glob#match} has to confirm that the bindings agree.
+   */
+  private final boolean[] needsCheck;
+  /** Scratch space reused by calls that do not overlap. */
+  private final AtomicReference<Scratch> spare
+      = new AtomicReference<Scratch>();
+
+  GlobMatcher(Iterable<Glob> globList) {
+    Compiler c = new Compiler();
+    List<Glob> globsList = Lists.newArrayList();
+    List<Integer> startList = Lists.newArrayList();
+    for (Glob g : globList) {
+      startList.add(c.size);
+      c.compile(g.parts(), globsList.size());
+      globsList.add(g);
+    }
+    int n = globsList.size();
+    this.ops = Arrays.copyOf(c.ops, c.size);
+    this.args = Arrays.copyOf(c.args, c.size);
+    this.globs = globsList.toArray(new Glob[n]);
+    this.starts = new int[n];
+    this.needsCheck = new boolean[n];
+    for (int i = 0; i < n; ++i) {
+      starts[i] = startList.get(i);
+      needsCheck[i] = hasRepeatedHoleName(globs[i]);
+    }
+  }
+
+  /** All globs that match the normalized path. */
+  ImmutableList<Glob> matching(String path) {
+    ImmutableList.Builder<Glob> b = ImmutableList.builder();
+    Scratch s = run(path);
+    for (int k = 0, n = s.clistSize; k < n; ++k) {
+      int pc = s.clist[k];
+      if (ops[pc] == ACCEPT && confirm(args[pc], path)) {
+        b.add(globs[args[pc]]);
+      }
+    }
+    spare.set(s);
+    return b.build();
+  }
+
+  /** True iff any glob matches the normalized path. */
+  boolean matches(String path) {
+    Scratch s = run(path);
+    boolean matched = false;
+    for (int k = 0, n = s.clistSize; k < n; ++k) {
+      int pc = s.clist[k];
+      if (ops[pc] == ACCEPT && confirm(args[pc], path)) {
+        matched = true;
+        break;
+      }
+    }
+    spare.set(s);
+    return matched;
+  }
+
+  private boolean confirm(int globIndex, String path) {
+    return !needsCheck[globIndex] || globs[globIndex].match(path);
+  }
+
+  /**
+   * Simulates the automaton over path.
+   * @return scratch whose current list holds the states reached at the end.
+   */
+  private Scratch run(String path) {
+    Scratch s = spare.getAndSet(null);
+    if (s == null) { s = new Scratch(ops.length); }
+    s.clistSize = 0;
+    s.nextGeneration();
+    for (int start : starts) {
+      s.clistSize = addState(s, s.clist, s.clistSize, start);
+    }
+    for (int i = 0, n = path.length(); i < n && s.clistSize != 0; ++i) {
+      char ch = path.charAt(i);
+      boolean isSep = ch == '/' || ch == '\\';
+      s.nextGeneration();
+      int nlistSize = 0;
+      for (int k = 0, m = s.clistSize; k < m; ++k) {
+        int pc = s.clist[k];
+        boolean consumed;
+        switch (ops[pc]) {
+          case CHAR: consumed = args[pc] == ch; break;
+          case SEP: consumed = isSep; break;
+          case NON_SEP: consumed = !isSep; break;
+          case ANY: consumed = true; break;
+          default: consumed = false; break;
+        }
+        if (consumed) { nlistSize = addState(s, s.nlist, nlistSize, pc + 1); }
+      }
+      int[] t = s.clist;
+      s.clist = s.nlist;
+      s.nlist = t;
+      s.clistSize = nlistSize;
+    }
+    return s;
+  }
+
+  /** Adds pc and the states reachable from it without consuming a char. */
+  private int addState(Scratch s, int[] list, int size, int pc) {
+    if (s.marks[pc] == s.generation) { return size; }
+    s.marks[pc] = s.generation;
+    switch (ops[pc]) {
+      case SPLIT:
+        size = addState(s, list, size, pc + 1);
+        return addState(s, list, size, args[pc]);
+      case JUMP:
+        return addState(s, list, size, args[pc]);
+      default:
+        list[size] = pc;
+        return size + 1;
+    }
+  }
+
+  private static boolean hasRepeatedHoleName(Glob g) {
+    List<String> names = Lists.newArrayList();
+    g.enumerateHoleNamesOnto(names);
+    return Sets.newHashSet(names).size() != names.size();
+  }
+
+  private static final class Scratch {
+    int[] clist;
+    int[] nlist;
+    int clistSize;
+    /** marks[pc] == generation iff pc is already in the list being built. */
+    final int[] marks;
+    int generation;
+
+    Scratch(int nStates) {
+      clist = new int[nStates];
+      nlist = new int[nStates];
+      marks = new int[nStates];
+    }
+
+    void nextGeneration() {
+      if (++generation == Integer.MAX_VALUE) {
+        Arrays.fill(marks, 0);
+        generation = 1;
+      }
+    }
+  }
+
+  /**
+   * Translates glob parts to instructions the same way
+   * {@code Glob.toRegex} translates them to a regular expression.
+   */
+  private static final class Compiler {
+    byte[] ops = new byte[64];
+    int[] args = new int[64];
+    int size;
+
+    void compile(List<String> parts, int globIndex) {
+      for (int i = 0, n = parts.size(); i < n; ++i) {
+        String part = parts.get(i);
+        switch (part.charAt(0)) {
+          case '*':
+            if (part.length() == 2) {
+              if (i + 1 < n && "/".equals(parts.get(i + 1))) {
+                // foo/**/bar should match foo/bar.  (?:.+[/\\])?
+                int split = emit(SPLIT, -1);
+                int loop = emit(ANY, 0);
+                emit(SPLIT, loop);
+                emit(SEP, 0);
+                args[split] = size;
+                ++i;
+              } else {
+                loop(ANY);
+              }
+            } else {
+              loop(NON_SEP);
+            }
+            break;
+          case '/':
+            if (i + 2 == n) {
+              String nextPart = parts.get(i + 1);
+              if ('*' == nextPart.charAt(0)) {
+                // foo/* and foo/** should match foo
+                int split = emit(SPLIT, -1);
+                emit(SEP, 0);
+                loop(nextPart.length() == 2 ? ANY : NON_SEP);
+                args[split] = size;
+                ++i;
+              } else {
+                emit(SEP, 0);
+              }
+            } else if (i + 1 == n) {
+              // foo/ should match foo
+              int split = emit(SPLIT, -1);
+              emit(SEP, 0);
+              args[split] = size;
+            } else {
+              emit(SEP, 0);
+            }
+            break;
+          default:
+            for (int j = 0, m = part.length(); j < m; ++j) {
+              emit(CHAR, part.charAt(j));
+            }
+            break;
+        }
+      }
+      emit(ACCEPT, globIndex);
+    }
+
+    /** Zero or more of the given consuming instruction. */
+    private void loop(byte op) {
+      int split = emit(SPLIT, -1);
+      emit(op, 0);
+      emit(JUMP, split);
+      args[split] = size;
+    }
+
+    private int emit(byte op, int arg) {
+      if (size == ops.length) {
+        ops = Arrays.copyOf(ops, size * 2);
+        args = Arrays.copyOf(args, size * 2);
+      }
+      ops[size] = op;
+      args[size] = arg;
+      return size++;
+    }
+  }
+}
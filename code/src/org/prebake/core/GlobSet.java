@@ -44,6 +44,8 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @ParametersAreNonnullByDefault
 public abstract class GlobSet implements Iterable<Glob>, JsonSerializable {
   private final PrefixTree prefixTree = new PrefixTree();
+  /** Lazily compiled from the globs in the set.  Null after a change. */
+  private GlobMatcher matcher;
 
   GlobSet() { /* no-op */ }
 
@@ -55,7 +57,7 @@ public abstract class GlobSet implements Iterable<Glob>, JsonSerializable {
     PrefixTree t = prefixTree;
     for (int i = 0, n = parts.size(); i < n; ++i) {
       String s = parts.get(i);
-      if ("/".equals(s)) { continue; }
+      if (s.charAt(0) == '/') { continue; }  // "/" or a tree root "///"
       if (s.charAt(0) == '*') { break; }
       if (i + 1 < n && parts.get(i).charAt(0) == '*') { break; }
       PrefixTree child = t.children.get(s);
@@ -77,6 +79,7 @@ public abstract class GlobSet implements Iterable<Glob>, JsonSerializable {
    */
   protected void add(Glob glob) {
     lookup(glob, true).add(glob);
+    matcher = null;
   }
 
   /**
@@ -86,6 +89,7 @@ public abstract class GlobSet implements Iterable<Glob>, JsonSerializable {
    *     subsequently removed prior to this call.
    */
   protected boolean remove(Glob glob) {
+    matcher = null;
     return lookup(glob, false).remove(glob);
   }
 
@@ -116,54 +120,85 @@ public abstract class GlobSet implements Iterable<Glob>, JsonSerializable {
   }
 
   /**
-   * All component globs that match the given path in no-particular order.
+   * The globs in this set that might match a path that glob matches, in no
+   * particular order.
+   * Globs are excluded only if their literal prefixes diverge from glob's,
+   * e.g. <tt>foo/*.c</tt> and <tt>bar/**</tt>, or if both end in different
+   * extensions, e.g. <tt>**.c</tt> and <tt>foo/*.h</tt>, so callers still
+   * need to check the candidates with {@link Glob#overlaps}.
    */
-  public Iterable<Glob> matching(Path path) {
+  public List<Glob> overlapCandidates(Glob glob) {
+    List<Glob> out = Lists.newArrayList();
+    String extension = extensionFor(glob);
+    PrefixTree prefix = lookup(glob, false);
+    // Globs at or above the deepest node on glob's prefix might overlap, and
+    // if the whole of glob's prefix is in the tree, so might any glob under it.
+    List<String> parts = glob.parts();
     PrefixTree t = prefixTree;
-    for (Path p : path) {
-      PrefixTree child = t.children.get(p.toString());
-      if (child == null) { break; }
-      t = child;
+    addCandidates(t, extension, out);
+    for (int i = 0; t != prefix; ++i) {
+      String s = parts.get(i);
+      // Separators do not descend, so t's globs were already added.
+      if (s.charAt(0) == '/') { continue; }
+      t = t.children.get(s);
+      addCandidates(t, extension, out);
     }
-    String pathStr = normPath(path);
-    String extension = extensionFor(pathStr);
-    if ("".equals(extension)) { extension = null; }
-    ImmutableList.Builder<Glob> b = ImmutableList.builder();
-    for (; t != null; t = t.parent) {
-      if (extension != null) {
-        for (Glob g : t.globsByExtension.get(extension)) {
-          if (g.match(pathStr)) { b.add(g); }
-        }
-      }
-      for (Glob g : t.globsByExtension.get("")) {
-        if (g.match(pathStr)) { b.add(g); }
+    if (isFullPrefix(prefix, glob)) {
+      for (PrefixTree child : prefix.children.values()) {
+        addSubtreeCandidates(child, extension, out);
       }
     }
-    return b.build();
+    return out;
   }
 
-  /** True iff any glob in the set matches the given normalized path. */
-  public boolean matches(Path path) {
-    PrefixTree t = prefixTree;
-    for (Path p : path) {
-      PrefixTree child = t.children.get(p.toString());
-      if (child == null) { break; }
-      t = child;
+  /** True iff t is the node at the end of glob's whole literal prefix. */
+  private static boolean isFullPrefix(PrefixTree t, Glob glob) {
+    int depth = 0;
+    for (PrefixTree p = t; p.parent != null; p = p.parent) { ++depth; }
+    for (String s : glob.parts()) {
+      if (s.charAt(0) == '/') { continue; }
+      if (s.charAt(0) == '*') { break; }
+      if (--depth < 0) { return false; }
     }
-    String pathStr = normPath(path);
-    String extension = extensionFor(pathStr);
-    if ("".equals(extension)) { extension = null; }
-    for (; t != null; t = t.parent) {
-      if (extension != null) {
-        for (Glob g : t.globsByExtension.get(extension)) {
-          if (g.match(pathStr)) { return true; }
-        }
-      }
-      for (Glob g : t.globsByExtension.get("")) {
-        if (g.match(pathStr)) { return true; }
-      }
+    return depth == 0;
+  }
+
+  private static void addCandidates(
+      PrefixTree t, String extension, List<Glob> out) {
+    if ("".equals(extension)) {
+      out.addAll(t.globsByExtension.values());
+    } else {
+      out.addAll(t.globsByExtension.get(extension));
+      out.addAll(t.globsByExtension.get(""));
+    }
+  }
+
+  private static void addSubtreeCandidates(
+      PrefixTree t, String extension, List<Glob> out) {
+    addCandidates(t, extension, out);
+    for (PrefixTree child : t.children.values()) {
+      addSubtreeCandidates(child, extension, out);
     }
-    return false;
+  }
+
+  /**
+   * All component globs that match the given path in no-particular order.
+   */
+  public Iterable<Glob> matching(Path path) {
+    return getMatcher().matching(normPath(path));
+  }
+
+  /** True iff any glob in the set matches the given normalized path. */
+  public boolean matches(Path path) {
+    return getMatcher().matches(normPath(path));
+  }
+
+  private GlobMatcher getMatcher() {
+    // Immutable sets are shared between threads, but GlobMatcher's fields are
+    // final so a matcher compiled by a racing thread is safe to use.
+    GlobMatcher m = matcher;
+    if (m == null) { matcher = m = new GlobMatcher(this); }
+    return m;
   }
 
   private static final Supplier<List<Glob>> GLOB_LIST_SUPPLIER
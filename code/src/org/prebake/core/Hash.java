@@ -14,94 +14,186 @@
 
 package org.prebake.core;
 
-import com.google.common.base.Throwables;
+import com.google.common.base.Charsets;
 import com.sleepycat.je.DatabaseEntry;
 import com.twmacinta.util.MD5;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
- * An MD5 hash generated from files, strings, or groups of hashes.
+ * A hash generated from files, strings, or groups of hashes using a
+ * {@link HashAlgorithm}.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
 @ParametersAreNonnullByDefault
 public final class Hash {
+  private final HashAlgorithm algorithm;
   private final byte[] bytes;
 
-  private Hash(byte[] bytes) { this.bytes = bytes; }
+  private Hash(HashAlgorithm algorithm, byte[] bytes) {
+    this.algorithm = algorithm;
+    this.bytes = bytes;
+  }
+
+  public HashAlgorithm getAlgorithm() { return algorithm; }
 
+  /**
+   * The serialized form of this hash which is the algorithm ID followed by the
+   * digest bytes.
+   */
   public DatabaseEntry toDatabaseEntry() {
-    return new DatabaseEntry(bytes);
+    byte[] data = new byte[bytes.length + 1];
+    data[0] = algorithm.id;
+    System.arraycopy(bytes, 0, data, 1, bytes.length);
+    return new DatabaseEntry(data);
   }
 
+  /**
+   * @throws IllegalArgumentException if entry was not produced by
+   *     {@link #toDatabaseEntry}.
+   */
   public static Hash fromDatabaseEntry(DatabaseEntry entry) {
-    return new Hash(entry.getData());
+    byte[] data = entry.getData();
+    HashAlgorithm algorithm = algorithmOf(data);
+    if (algorithm == null) {
+      throw new IllegalArgumentException("Unrecognized hash algorithm");
+    }
+    byte[] bytes = new byte[data.length - 1];
+    System.arraycopy(data, 1, bytes, 0, bytes.length);
+    return new Hash(algorithm, bytes);
   }
 
-  public boolean matches(byte[] bytes) {
-    return Arrays.equals(this.bytes, bytes);
+  /**
+   * The algorithm used to compute the serialized hash, or null if it was
+   * computed with an unknown algorithm.
+   * @param data as from {@link #toDatabaseEntry}.
+   */
+  public static @Nullable HashAlgorithm algorithmOf(byte[] data) {
+    return data.length != 0 ? HashAlgorithm.fromId(data[0]) : null;
+  }
+
+  /**
+   * True if the bytes are the {@link #toDatabaseEntry serialized form} of this
+   * hash.
+   */
+  public boolean matches(byte[] data) {
+    int n = bytes.length;
+    if (data.length != n + 1 || data[0] != algorithm.id) { return false; }
+    for (int i = n; --i >= 0;) {
+      if (data[i + 1] != bytes[i]) { return false; }
+    }
+    return true;
   }
 
   public String toHexString() { return MD5.asHex(bytes); }
 
   @Override
   public boolean equals(Object o) {
-    return o instanceof Hash && Arrays.equals(bytes, ((Hash) o).bytes);
+    if (!(o instanceof Hash)) { return false; }
+    Hash that = (Hash) o;
+    return this.algorithm == that.algorithm
+        && Arrays.equals(this.bytes, that.bytes);
   }
 
   @Override public int hashCode() { return Arrays.hashCode(bytes); }
 
   @Override
-  public String toString() { return "[Hash " + Arrays.toString(bytes) + "]"; }
+  public String toString() {
+    return "[Hash " + algorithm.name + " " + Arrays.toString(bytes) + "]";
+  }
 
   private static final byte[] ZERO_BYTE = new byte[1];
+  /** Size of the buffers used to read files. */
+  private static final int FILE_BUFFER_SIZE = 1 << 16;
+  /**
+   * Direct buffers are expensive to allocate, so each thread that hashes files
+   * reuses one.
+   */
+  private static final ThreadLocal<ByteBuffer> FILE_BUFFER
+      = new ThreadLocal<ByteBuffer>() {
+    @Override protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+    }
+  };
 
-  public static Builder builder() { return new Builder(); }
+  /** A builder for a hash using the {@link HashAlgorithm#DEFAULT} algorithm. */
+  public static Builder builder() { return builder(HashAlgorithm.DEFAULT); }
+
+  public static Builder builder(HashAlgorithm algorithm) {
+    return new Builder(algorithm);
+  }
 
   @ParametersAreNonnullByDefault
   public static class Builder {
-    private MD5 md5 = new MD5();
+    private final HashAlgorithm algorithm;
+    private final Digester digester;
 
-    private Builder() { /* not public */ }
+    private Builder(HashAlgorithm algorithm) {
+      this.algorithm = algorithm;
+      this.digester = algorithm.newDigester();
+    }
 
     public Builder withFile(Path p) throws IOException {
-      md5.Update(ZERO_BYTE, 0, 1);
-      byte[] bytes = new byte[4096];
-      InputStream in = p.newInputStream(StandardOpenOption.READ);
+      digester.update(ZERO_BYTE, 0, 1);
+      SeekableByteChannel channel;
+      try {
+        channel = p.newByteChannel(StandardOpenOption.READ);
+      } catch (UnsupportedOperationException ex) {
+        // Not all file systems support channels.
+        withStream(p);
+        return this;
+      }
       try {
-        for (int n; (n = in.read(bytes)) > 0;) { md5.Update(bytes, 0, n); }
+        ByteBuffer buf = FILE_BUFFER.get();
+        buf.clear();
+        while (channel.read(buf) >= 0) {
+          buf.flip();
+          digester.update(buf);
+          buf.clear();
+        }
       } finally {
-        in.close();
+        channel.close();
       }
       return this;
     }
 
-    public Builder withString(String s) {
-      md5.Update(ZERO_BYTE, 0, 1);
+    private void withStream(Path p) throws IOException {
+      byte[] bytes = new byte[FILE_BUFFER_SIZE];
+      InputStream in = p.newInputStream(StandardOpenOption.READ);
       try {
-        md5.Update(s, "UTF-8");
-      } catch (UnsupportedEncodingException ex) {
-        Throwables.propagate(ex);  // UTF-8 must be supported
+        for (int n; (n = in.read(bytes)) > 0;) {
+          digester.update(bytes, 0, n);
+        }
+      } finally {
+        in.close();
       }
+    }
+
+    public Builder withString(String s) {
+      digester.update(ZERO_BYTE, 0, 1);
+      byte[] bytes = s.getBytes(Charsets.UTF_8);
+      digester.update(bytes, 0, bytes.length);
       return this;
     }
 
     public Builder withData(byte[] bytes) {
-      md5.Update(ZERO_BYTE, 0, 1);
-      md5.Update(bytes, 0, bytes.length);
+      digester.update(ZERO_BYTE, 0, 1);
+      digester.update(bytes, 0, bytes.length);
       return this;
     }
 
     public Builder withHash(Hash h) { return withData(h.bytes); }
 
-    public Hash build() { return new Hash(md5.Final()); }
+    public Hash build() { return new Hash(algorithm, digester.digest()); }
   }
 }
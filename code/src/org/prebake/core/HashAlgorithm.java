@@ -0,0 +1,101 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import com.twmacinta.util.MD5;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A digest algorithm used to compute {@link Hash}es.
+ * Each algorithm has an ID that is stored with persisted hashes so that hashes
+ * computed with a different algorithm are never mistaken for current ones.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public enum HashAlgorithm {
+  MD5((byte) 1, "md5") {
+    @Override Digester newDigester() {
+      return new Digester() {
+        private final MD5 md5 = new MD5();
+        @Override void update(byte[] bytes, int off, int len) {
+          md5.Update(bytes, off, len);
+        }
+        @Override byte[] digest() { return md5.Final(); }
+      };
+    }
+  },
+  SHA256((byte) 2, "sha256") {
+    @Override Digester newDigester() {
+      final MessageDigest md;
+      try {
+        md = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException ex) {
+        throw new RuntimeException(ex);  // Required of all JVMs.
+      }
+      return new Digester() {
+        @Override void update(byte[] bytes, int off, int len) {
+          md.update(bytes, off, len);
+        }
+        @Override void update(ByteBuffer bytes) { md.update(bytes); }
+        @Override byte[] digest() { return md.digest(); }
+      };
+    }
+  },
+  /**
+   * A fast non-cryptographic 128 bit hash.  Suitable for detecting changes to
+   * files, but not for hashes that an attacker could choose content for.
+   */
+  MURMUR3_128((byte) 3, "murmur3") {
+    @Override Digester newDigester() { return new Murmur3Digester(); }
+  },
+  ;
+
+  /** The algorithm used when none is specified. */
+  public static final HashAlgorithm DEFAULT = MD5;
+
+  /** Identifies the algorithm in serialized hashes. */
+  final byte id;
+  /** The name used to specify the algorithm on the command line. */
+  public final String name;
+
+  HashAlgorithm(byte id, String name) {
+    this.id = id;
+    this.name = name;
+  }
+
+  abstract Digester newDigester();
+
+  static @Nullable HashAlgorithm fromId(byte id) {
+    for (HashAlgorithm a : values()) {
+      if (a.id == id) { return a; }
+    }
+    return null;
+  }
+
+  /** The algorithm with the given {@link #name} or null if none. */
+  public static @Nullable HashAlgorithm fromName(String name) {
+    for (HashAlgorithm a : values()) {
+      if (a.name.equals(name)) { return a; }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * An incremental implementation of the x64 128 bit variant of Austin
+ * Appleby's MurmurHash3 with a seed of 0.
+ * The digest is h1 followed by h2, each in little-endian order.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class Murmur3Digester extends Digester {
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private long h1, h2;
+  private long length;
+  /** Bytes that do not yet make up a full 16 byte block. */
+  private final byte[] tail = new byte[16];
+  private int tailLen;
+
+  @Override
+  void update(byte[] bytes, int off, int len) {
+    length += len;
+    if (tailLen != 0) {
+      int n = Math.min(16 - tailLen, len);
+      System.arraycopy(bytes, off, tail, tailLen, n);
+      tailLen += n;
+      off += n;
+      len -= n;
+      if (tailLen < 16) { return; }
+      mix(getLong(tail, 0), getLong(tail, 8));
+      tailLen = 0;
+    }
+    for (; len >= 16; off += 16, len -= 16) {
+      mix(getLong(bytes, off), getLong(bytes, off + 8));
+    }
+    System.arraycopy(bytes, off, tail, 0, len);
+    tailLen = len;
+  }
+
+  @Override
+  void update(ByteBuffer bytes) {
+    ByteOrder order = bytes.order();
+    bytes.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      length += bytes.remaining();
+      while (tailLen != 0 && bytes.hasRemaining()) {
+        tail[tailLen++] = bytes.get();
+        if (tailLen == 16) {
+          mix(getLong(tail, 0), getLong(tail, 8));
+          tailLen = 0;
+        }
+      }
+      while (bytes.remaining() >= 16) {
+        mix(bytes.getLong(), bytes.getLong());
+      }
+      int n = bytes.remaining();
+      bytes.get(tail, tailLen, n);
+      tailLen += n;
+    } finally {
+      bytes.order(order);
+    }
+  }
+
+  private void mix(long k1, long k2) {
+    h1 ^= mixK1(k1);
+    h1 = Long.rotateLeft(h1, 27);
+    h1 += h2;
+    h1 = h1 * 5 + 0x52dce729;
+
+    h2 ^= mixK2(k2);
+    h2 = Long.rotateLeft(h2, 31);
+    h2 += h1;
+    h2 = h2 * 5 + 0x38495ab5;
+  }
+
+  @Override
+  byte[] digest() {
+    long k1 = 0, k2 = 0;
+    for (int i = tailLen; --i >= 8;) {
+      k2 |= (tail[i] & 0xffL) << ((i - 8) * 8);
+    }
+    for (int i = Math.min(tailLen, 8); --i >= 0;) {
+      k1 |= (tail[i] & 0xffL) << (i * 8);
+    }
+    if (tailLen > 8) { h2 ^= mixK2(k2); }
+    if (tailLen > 0) { h1 ^= mixK1(k1); }
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+
+    byte[] out = new byte[16];
+    putLong(h1, out, 0);
+    putLong(h2, out, 8);
+    return out;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    return k1 * C2;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    return k2 * C1;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long getLong(byte[] bytes, int off) {
+    long n = 0;
+    for (int i = off + 8; --i >= off;) {
+      n = (n << 8) | (bytes[i] & 0xffL);
+    }
+    return n;
+  }
+
+  private static void putLong(long n, byte[] out, int off) {
+    for (int i = off, end = off + 8; i < end; ++i) {
+      out[i] = (byte) n;
+      n >>>= 8;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A bounded, thread-safe memo table for a pure function of two arguments.
+ * The least recently used entries are evicted once the table is full.
+ * Values are computed outside the table's lock, so two threads that miss on
+ * the same key at the same time may both compute it.
+ *
+ * @param <K> the type of both arguments.
+ * @param <V> the type of the function's result which may be null.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+abstract class PairMemo<K, V> {
+  private final Map<Pair<K>, Object> table;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  /** Stands in for a null result. */
+  private static final Object NULL = new Object();
+
+  PairMemo(final int maxSize) {
+    this.table = new LinkedHashMap<Pair<K>, Object>(16, 0.75f, true) {
+      @Override
+      public boolean removeEldestEntry(Map.Entry<Pair<K>, Object> e) {
+        return this.size() > maxSize;
+      }
+    };
+  }
+
+  /** The function to memoize. */
+  protected abstract @Nullable V compute(K a, K b);
+
+  final @Nullable V get(K a, K b) {
+    Pair<K> key = new Pair<K>(a, b);
+    Object value;
+    synchronized (table) {
+      value = table.get(key);
+    }
+    if (value != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      V computed = compute(a, b);
+      value = computed != null ? computed : NULL;
+      synchronized (table) {
+        table.put(key, value);
+      }
+    }
+    @SuppressWarnings("unchecked")
+    V result = value != NULL ? (V) value : null;
+    return result;
+  }
+
+  final long getHitCount() { return hits.get(); }
+
+  final long getMissCount() { return misses.get(); }
+
+  private static final class Pair<K> {
+    final K a;
+    final K b;
+    final int hashCode;
+
+    Pair(K a, K b) {
+      this.a = a;
+      this.b = b;
+      this.hashCode = a.hashCode() + 31 * b.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Pair<?>)) { return false; }
+      Pair<?> that = (Pair<?>) o;
+      return a.equals(that.a) && b.equals(that.b);
+    }
+
+    @Override
+    public int hashCode() { return hashCode; }
+  }
+}
@@ -15,14 +15,19 @@
 package org.prebake.fs;
 
 import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
 
-import com.google.common.base.Charsets;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseNotFoundException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.OperationStatus;
 
@@ -30,6 +35,10 @@ import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -38,6 +47,15 @@ import javax.annotation.ParametersAreNonnullByDefault;
 /**
  * As files changes, maintains a table of file hashes, and invalidates non-file
  * artifacts such as the toolbox, and dependency graph.
+ * <p>
+ * Tables are keyed by compact integer IDs instead of by path strings.
+ * {@code pathIds} maps paths to the IDs used as keys in {@code fileToHash}
+ * and {@code fileDerivatives}, and values in {@code fileDerivatives} are the
+ * artifact IDs assigned by {@link FileVersioner}.
+ * A path's ID is freed when its hash is removed and the derivatives keyed by
+ * it have been removed too.  An artifact's derivatives are replaced each time
+ * it is validated, so a path that an artifact no longer depends on does not
+ * keep its ID.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
@@ -45,43 +63,146 @@ import javax.annotation.ParametersAreNonnullByDefault;
 public final class DbFileVersioner extends FileVersioner {
   private final Database fileToHash;
   private final Database fileDerivatives;
+  private final @Nullable Database pathIdTable;
+  private final KeyDictionary pathIds;
+  /**
+   * For each artifact ID, the IDs of the paths that keyed its derivatives when
+   * it was last validated.  Guarded by itself.
+   */
+  private final Map<Integer, Set<Integer>> prerequisiteIds = Maps.newHashMap();
 
   public DbFileVersioner(
       Environment env, Path root, Predicate<Path> toWatch, Logger logger)
       throws IOException {
-    super(root, toWatch, logger);
+    this(env, root, toWatch, false, logger);
+  }
+
+  /**
+   * Creates a versioner that hashes files and invalidates artifacts on the
+   * thread reporting changes.
+   */
+  public DbFileVersioner(
+      Environment env, Path root, Predicate<Path> toWatch, boolean persistent,
+      Logger logger)
+      throws IOException {
+    this(
+        env, root, toWatch, persistent, HashAlgorithm.DEFAULT, null, 1, null,
+        logger);
+  }
+
+  /**
+   * @param persistent true if the tables should survive a restart of the
+   *     service.  If true, then {@link #reconcile} should be called before
+   *     relying on the stored hashes.
+   * @param hashAlgorithm the algorithm used to hash file content.  Stored
+   *     hashes computed with a different algorithm are recomputed.
+   * @param hashExecer used to hash changed files in parallel, or null to hash
+   *     them on the thread that reports the change.
+   * @param hashParallelism the maximum number of threads that hash files for
+   *     one batch of updates.
+   * @param invalidationExecer used to invalidate artifacts derived from
+   *     changed files and to notify glob listeners, or null to do both on the
+   *     thread that reports the change.
+   */
+  public DbFileVersioner(
+      Environment env, Path root, Predicate<Path> toWatch, boolean persistent,
+      HashAlgorithm hashAlgorithm, @Nullable ExecutorService hashExecer,
+      int hashParallelism, @Nullable Executor invalidationExecer,
+      Logger logger)
+      throws IOException {
+    super(
+        root, toWatch, hashAlgorithm, hashExecer, hashParallelism,
+        invalidationExecer, logger);
+    if (!persistent) {
+      // Temporary databases are removed when closed, so any existing table
+      // was persisted by an earlier run and cannot be reopened as temporary.
+      for (String table : new String[] { "fileToHash", "pathIds" }) {
+        try {
+          env.removeDatabase(null, table);
+        } catch (DatabaseNotFoundException ex) {
+          // Nothing to remove.
+        }
+      }
+    }
     DatabaseConfig fileToHashConfig = new DatabaseConfig();
     fileToHashConfig.setAllowCreate(true);
-    fileToHashConfig.setTemporary(true);
+    fileToHashConfig.setTemporary(!persistent);
+    // Temporary databases are always deferred-write.  Persistent ones are too
+    // so that a batch of updates is not logged record by record.  Records are
+    // written whole, and each pairs a hash with the fingerprint of the file it
+    // was computed from, so updates lost in a crash are found by reconcile.
+    fileToHashConfig.setDeferredWrite(persistent);
     fileToHashConfig.setSortedDuplicates(false);
     fileToHash = env.openDatabase(null, "fileToHash", fileToHashConfig);
     DatabaseConfig derivConfig = new DatabaseConfig();
     derivConfig.setAllowCreate(true);
+    // Non-file artifacts live only in memory, so derivatives recorded by a
+    // previous run would name artifacts that no longer exist.
     derivConfig.setTemporary(true);
     derivConfig.setSortedDuplicates(true);
     fileDerivatives = env.openDatabase(null, "fileDerivatives", derivConfig);
+    if (persistent) {
+      DatabaseConfig pathIdConfig = new DatabaseConfig();
+      pathIdConfig.setAllowCreate(true);
+      pathIdConfig.setDeferredWrite(true);
+      pathIdConfig.setSortedDuplicates(false);
+      pathIdTable = env.openDatabase(null, "pathIds", pathIdConfig);
+      pathIds = new KeyDictionary(pathIdTable);
+      pruneUnpairedIds();
+    } else {
+      pathIdTable = null;
+      pathIds = new KeyDictionary(null);
+    }
+  }
+
+  /**
+   * Since both tables are deferred-write, a crash can leave a hash whose path
+   * ID was never written or a path ID with no hash.  Drop both kinds so that
+   * an ID is never reused for a different path.
+   */
+  private void pruneUnpairedIds() {
+    Set<Integer> live = Sets.newHashSet();
+    Set<Integer> all = Sets.newHashSet();
+    DatabaseEntry key = new DatabaseEntry();
+    DatabaseEntry data = new DatabaseEntry();
+    Cursor cursor = fileToHash.openCursor(null, null);
+    try {
+      while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+        byte[] keyBytes = key.getData();
+        if (keyBytes.length == KeyDictionary.ID_LEN) {
+          int id = KeyDictionary.fromBytes(keyBytes);
+          all.add(id);
+          if (pathIds.keyFor(id) != null) {
+            live.add(id);
+            continue;
+          }
+        }
+        cursor.delete();
+      }
+    } finally {
+      cursor.close();
+    }
+    pathIds.reserve(all);
+    pathIds.retain(live);
   }
 
   @Override
   protected List<Path> pathsWithPrefix(
       String commonPrefix, Predicate<String> predicate) {
     ImmutableList.Builder<Path> b = ImmutableList.builder();
-    byte[] prefixBytes = commonPrefix.getBytes(Charsets.UTF_8);
     DatabaseEntry key = new DatabaseEntry();
     DatabaseEntry data = new DatabaseEntry();
-    key.setData(prefixBytes);
+    // Only the keys are needed.
+    data.setPartial(0, 0, true);
     FileSystem fs = getFileSystem();
     Cursor cursor = fileToHash.openCursor(null, null);
     try {
-      if (cursor.getSearchKeyRange(key, data, null)
-          == OperationStatus.SUCCESS) {
-        do {
-          byte[] result = key.getData();
-          if (!hasPrefix(result, prefixBytes)) { break; }
-          String path = new String(result, Charsets.UTF_8);
-          if (predicate.apply(path)) { b.add(fs.getPath(path)); }
-        } while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS);
-        // TODO: other operation statuses?
+      while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+        String path = pathIds.keyFor(KeyDictionary.fromBytes(key.getData()));
+        if (path != null && path.startsWith(commonPrefix)
+            && predicate.apply(path)) {
+          b.add(fs.getPath(path));
+        }
       }
     } finally {
       cursor.close();
@@ -89,15 +210,6 @@ public final class DbFileVersioner extends FileVersioner {
     return b.build();
   }
 
-  private static boolean hasPrefix(byte[] arr, byte[] prefix) {
-    int n = prefix.length;
-    if (arr.length < n) { return false; }
-    for (int i = n; --i >= 0;) {
-      if (arr[i] != prefix[i]) { return false; }
-    }
-    return true;
-  }
-
   @Override
   protected RecordLoop makeRecordLoop() { return new RecordLoopImpl(); }
 
@@ -105,24 +217,36 @@ public final class DbFileVersioner extends FileVersioner {
     private Cursor cursor;
     private DatabaseEntry key;
     private DatabaseEntry result;
+    /** The path last passed to find, so that insert can allocate its ID. */
+    private String keyString;
     public void start() {
       cursor = fileToHash.openCursor(null, null);
       key = new DatabaseEntry();
       result = new DatabaseEntry();
     }
     public boolean find(Path keyPath) {
-      key.setData(bytes(keyPath));
+      keyString = keyPath.toString();
+      int id = pathIds.existingId(keyString);
+      if (id == KeyDictionary.NO_ID) { return false; }
+      key.setData(KeyDictionary.toBytes(id));
       return cursor.getSearchKey(key, result, null) == OperationStatus.SUCCESS;
     }
-    public byte[] currentHash() { return result.getData(); }
-    public boolean updateHash(Hash h) {
-      return cursor.putCurrent(h.toDatabaseEntry()) == OperationStatus.SUCCESS;
+    public byte[] currentHash() { return hashBytes(result.getData()); }
+    public @Nullable FileFingerprint currentFingerprint() {
+      return fingerprint(result.getData());
     }
-    public boolean insert(Hash h) {
-      return cursor.put(key, h.toDatabaseEntry()) == OperationStatus.SUCCESS;
+    public boolean updateHash(Hash h, @Nullable FileFingerprint fp) {
+      return cursor.putCurrent(toRecord(h, fp)) == OperationStatus.SUCCESS;
+    }
+    public boolean insert(Hash h, @Nullable FileFingerprint fp) {
+      key.setData(KeyDictionary.toBytes(pathIds.idFor(keyString)));
+      return cursor.put(key, toRecord(h, fp)) == OperationStatus.SUCCESS;
     }
     public boolean deleteCurrent() {
-      return cursor.delete() == OperationStatus.SUCCESS;
+      if (cursor.delete() != OperationStatus.SUCCESS) { return false; }
+      // Released once the derivatives loop has removed its derivatives.
+      pathIds.markUnused(KeyDictionary.fromBytes(key.getData()));
+      return true;
     }
     public void end() { cursor.close(); }
   }
@@ -135,21 +259,37 @@ public final class DbFileVersioner extends FileVersioner {
   private final class DerivativesLoopImpl implements DerivativesLoop {
     private Cursor cursor;
     private DatabaseEntry key, data;
+    /** IDs of the paths whose derivatives were removed. */
+    private List<Integer> visited;
     public void start() {
       cursor = fileDerivatives.openCursor(null, null);
       key = new DatabaseEntry();
       data = new DatabaseEntry();
+      visited = Lists.newArrayList();
     }
     public boolean findFirst(Path p) {
-      key.setData(bytes(p));
+      int id = pathIds.existingId(p.toString());
+      if (id == KeyDictionary.NO_ID) { return false; }
+      visited.add(id);
+      key.setData(KeyDictionary.toBytes(id));
       return cursor.getSearchKey(key, data, null) == OperationStatus.SUCCESS;
     }
     public boolean findNext() {
       return cursor.getNextDup(key, data, null) == OperationStatus.SUCCESS;
     }
-    public String getAddress() { return fromBytes(data.getData()); }
-    public void removeLast() { cursor.delete(); }
-    public void end() { cursor.close(); }
+    public int getArtifactId() {
+      return KeyDictionary.fromBytes(data.getData());
+    }
+    public void removeLast() {
+      if (cursor.delete() == OperationStatus.SUCCESS) {
+        pathIds.dereference(KeyDictionary.fromBytes(key.getData()));
+      }
+    }
+    public void end() {
+      cursor.close();
+      // Nothing is keyed by the IDs of deleted files any longer.
+      for (int id : visited) { pathIds.release(id); }
+    }
   }
 
   @Override
@@ -158,21 +298,47 @@ public final class DbFileVersioner extends FileVersioner {
   }
 
   final class ArtifactUpdateLoopImpl implements ArtifactUpdateLoop {
+    private int artifactId;
     private @Nullable Cursor cursor;
     private @Nullable DatabaseEntry key;
     private @Nullable DatabaseEntry value;
+    private @Nullable Set<Integer> ids;
 
-    public void start(String artifactAddress) {
+    public void start(int artifactId) {
+      this.artifactId = artifactId;
       cursor = fileDerivatives.openCursor(null, null);
       key = new DatabaseEntry();
-      value = new DatabaseEntry(bytes(artifactAddress));
+      value = new DatabaseEntry(KeyDictionary.toBytes(artifactId));
+      ids = Sets.newHashSet();
     }
     public void put(Path keyPath) {
-      key.setData(bytes(keyPath));
-      cursor.put(key, value);
+      // Counted so that a path that is not hashed, e.g. because it does not
+      // exist, is freed once the artifact no longer depends on it.
+      int id = pathIds.reference(keyPath.toString());
+      ids.add(id);
+      key.setData(KeyDictionary.toBytes(id));
+      if (cursor.putNoDupData(key, value) != OperationStatus.SUCCESS) {
+        pathIds.dereference(id);  // Recorded by an earlier validation.
+      }
     }
     public void end() {
-      cursor.close();
+      try {
+        Set<Integer> old;
+        synchronized (prerequisiteIds) {
+          old = prerequisiteIds.put(artifactId, ids);
+        }
+        if (old == null) { return; }
+        for (int id : old) {
+          if (ids.contains(id)) { continue; }
+          key.setData(KeyDictionary.toBytes(id));
+          if (cursor.getSearchBoth(key, value, null) == OperationStatus.SUCCESS
+              && cursor.delete() == OperationStatus.SUCCESS) {
+            pathIds.dereference(id);
+          }
+        }
+      } finally {
+        cursor.close();
+      }
     }
   }
 
@@ -187,26 +353,56 @@ public final class DbFileVersioner extends FileVersioner {
       key = new DatabaseEntry();
       result = new DatabaseEntry();
     }
-    public Hash getHash() { return Hash.fromDatabaseEntry(result); }
+    public Hash getHash() {
+      return Hash.fromDatabaseEntry(
+          new DatabaseEntry(hashBytes(result.getData())));
+    }
     public OperationStatus find(Path p) {
-      key.setData(bytes(p));
+      int id = pathIds.existingId(p.toString());
+      if (id == KeyDictionary.NO_ID) { return OperationStatus.NOTFOUND; }
+      key.setData(KeyDictionary.toBytes(id));
       return cursor.getSearchKey(key, result, null);
     }
     public void end() { cursor.close(); }
   }
 
+  @VisibleForTesting
+  int unittestBackdoorPathId(String keyPath) {
+    return pathIds.existingId(keyPath);
+  }
+
   @Override
   public void close() {
     fileToHash.close();
     fileDerivatives.close();
+    if (pathIdTable != null) { pathIdTable.close(); }
   }
 
-  private static byte[] bytes(Path p) { return bytes(p.toString()); }
-
-  private static byte[] bytes(String s) { return s.getBytes(Charsets.UTF_8); }
+  /**
+   * Records in {@code fileToHash} are the hash bytes followed by the
+   * fingerprint of the file when it was hashed.
+   */
+  private static DatabaseEntry toRecord(Hash h, @Nullable FileFingerprint fp) {
+    byte[] hash = h.toDatabaseEntry().getData();
+    int n = hash.length;
+    byte[] record = new byte[n + FileFingerprint.BYTE_LENGTH];
+    System.arraycopy(hash, 0, record, 0, n);
+    if (fp != null) {
+      fp.writeTo(record, n);
+    } else {
+      FileFingerprint.writeNone(record, n);
+    }
+    return new DatabaseEntry(record);
+  }
 
-  private static String fromBytes(byte[] bytes) {
-    return new String(bytes, Charsets.UTF_8);
+  private static byte[] hashBytes(byte[] record) {
+    byte[] hash = new byte[record.length - FileFingerprint.BYTE_LENGTH];
+    System.arraycopy(record, 0, hash, 0, hash.length);
+    return hash;
   }
 
+  private static @Nullable FileFingerprint fingerprint(byte[] record) {
+    return FileFingerprint.readFrom(
+        record, record.length - FileFingerprint.BYTE_LENGTH);
+  }
 }
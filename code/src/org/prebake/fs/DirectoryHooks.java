@@ -16,31 +16,45 @@ package org.prebake.fs;
 
 import org.prebake.channel.FileNames;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
-import com.google.common.collect.Maps;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import java.io.Closeable;
-import java.io.IOError;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
+import java.nio.file.DirectoryStream;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKind;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.Attributes;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
  * Publishes events when files change.
+ * Directories are published when events in them may have been lost, in which
+ * case any file under them may have changed.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
@@ -63,25 +77,78 @@ public class DirectoryHooks implements Closeable {
   // does with them, then maybe keep a db with symbolic link targets in
   // FileHashes.
 
+  /**
+   * Events for the same file that arrive within this many nanoseconds of the
+   * first event in a batch are reported once.
+   */
+  private static final long COALESCE_WINDOW_NANOS = 25 * 1000 * 1000;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      DirectoryHooks.class.getName());
+
   private final Path root;
   private final BlockingQueue<Path> q = new LinkedBlockingQueue<Path>(1 << 12);
   private final Predicate<Path> toWatch;
+  private final Predicate<Path> toDescend;
+  private final int scanParallelism;
+  private final AtomicInteger dirsScanned = new AtomicInteger();
+  private final AtomicInteger filesScanned = new AtomicInteger();
   private @Nullable Thread watcher;
+  private @Nullable ForkJoinPool scanPool;
 
   public DirectoryHooks(Path root, Predicate<Path> toWatch) {
+    this(root, toWatch, Predicates.<Path>alwaysTrue());
+  }
+
+  public DirectoryHooks(
+      Path root, Predicate<Path> toWatch, Predicate<Path> toDescend) {
+    this(root, toWatch, toDescend,
+         Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param toWatch true for files whose changes should be published.
+   * @param toDescend false for directories under which no file is watched.
+   *     Such directories are neither walked nor registered with the watch
+   *     service.
+   * @param scanParallelism the maximum number of threads that walk
+   *     directories concurrently.
+   */
+  public DirectoryHooks(
+      Path root, Predicate<Path> toWatch, Predicate<Path> toDescend,
+      int scanParallelism) {
+    if (scanParallelism < 1) {
+      throw new IllegalArgumentException("" + scanParallelism);
+    }
     this.root = root;
     this.toWatch = toWatch;
+    this.toDescend = toDescend;
+    this.scanParallelism = scanParallelism;
   }
 
   public BlockingQueue<Path> getUpdates() { return q; }
 
+  /**
+   * The number of directories registered with the watch service so far.
+   * May be called from any thread while {@link #start} is walking the tree.
+   */
+  public int getDirectoriesScanned() { return dirsScanned.get(); }
+
+  /**
+   * The number of files seen while walking directories, including ones that
+   * were not published because they are not watched.
+   */
+  public int getFilesScanned() { return filesScanned.get(); }
+
   public void start() throws IOException {
     final Map<WatchKey, Path> keys;
     final WatchService ws;
     synchronized (this) {
       if (this.watcher != null) { return; }
-      keys = Maps.newHashMap();
+      // Written by scan threads and read by the watcher thread.
+      keys = new ConcurrentHashMap<WatchKey, Path>();
       ws = root.getFileSystem().newWatchService();
+      scanPool = new ForkJoinPool(scanParallelism);
       this.watcher = new Thread(new Runnable() {
         public void run() {
           while (true) {
@@ -109,6 +176,9 @@ public class DirectoryHooks implements Closeable {
       if (this.watcher == null) { return; }
       watcher = this.watcher;
       this.watcher = null;
+      // Interrupts any scan threads blocked publishing files.
+      scanPool.shutdownNow();
+      scanPool = null;
     }
     watcher.interrupt();
   }
@@ -121,6 +191,71 @@ public class DirectoryHooks implements Closeable {
       return;
     }
 
+    // Collect events from keys signalled shortly after the first so that a
+    // burst of changes to the same file is reported once.
+    Set<Path> changed = Sets.newLinkedHashSet();
+    Set<Path> overflowed = Sets.newLinkedHashSet();
+    long deadline = System.nanoTime() + COALESCE_WINDOW_NANOS;
+    while (true) {
+      collectEvents(key, ws, keys, changed, overflowed);
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) { break; }
+      try {
+        key = ws.poll(remaining, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException ex) {
+        return;
+      }
+      if (key == null) { break; }
+    }
+
+    try {
+      // Walking a directory covers the directories under it, so only walk
+      // the topmost.
+      Set<Path> walked = Sets.newHashSet();
+      for (Path dir : topmost(overflowed)) {
+        // Events in dir were lost, so walk it again to find created files and
+        // directories, and report the directory itself so that the files
+        // known to be under it are checked for changes and deletions.
+        // Only files whose fingerprints changed are rehashed.
+        try {
+          register(dir, ws, keys);
+          walked.add(dir);
+        } catch (IOException ex) {
+          LOGGER.log(Level.WARNING, "Failed to rescan " + dir, ex);
+        }
+        q.put(dir);
+      }
+      for (Path p : changed) {
+        // The walk published any that still exist.
+        if (!isUnderAny(p, walked)) { maybePut(p); }
+      }
+    } catch (InterruptedException ex) {
+      return;
+    }
+  }
+
+  /** The directories that are not under any other in dirs. */
+  @VisibleForTesting
+  static Set<Path> topmost(Set<Path> dirs) {
+    Set<Path> top = Sets.newLinkedHashSet();
+    for (Path dir : dirs) {
+      if (!isUnderAny(dir, dirs)) { top.add(dir); }
+    }
+    return top;
+  }
+
+  /** True if a strict ancestor of p is in dirs. */
+  private static boolean isUnderAny(Path p, Set<Path> dirs) {
+    if (dirs.isEmpty()) { return false; }
+    for (Path a = p.getParent(); a != null; a = a.getParent()) {
+      if (dirs.contains(a)) { return true; }
+    }
+    return false;
+  }
+
+  private void collectEvents(
+      WatchKey key, WatchService ws, Map<WatchKey, Path> keys,
+      Set<Path> changed, Set<Path> overflowed) {
     Path dir = keys.get(key);
     if (dir == null) { key.cancel(); return; }
 
@@ -129,7 +264,7 @@ public class DirectoryHooks implements Closeable {
         WatchEvent.Kind<?> kind = event.kind();
 
         if (kind == StandardWatchEventKind.OVERFLOW) {
-          // TODO: figure out what overflow means.
+          overflowed.add(dir);
           continue;
         }
 
@@ -161,11 +296,7 @@ public class DirectoryHooks implements Closeable {
             }
           }
         } else {
-          try {
-            maybePut(child);
-          } catch (InterruptedException ex) {
-            return;
-          }
+          changed.add(child);
         }
       }
     } finally {
@@ -176,46 +307,110 @@ public class DirectoryHooks implements Closeable {
     }
   }
 
-  private void register(
-      Path p, final WatchService ws, final Map<WatchKey, Path> keys)
+  /**
+   * Walks the tree under p, registering directories with the watch service and
+   * publishing files.
+   * Each directory is listed by a separate task so that sibling subtrees are
+   * walked in parallel, and idle threads steal subtrees from busy ones.
+   */
+  private void register(Path p, WatchService ws, Map<WatchKey, Path> keys)
       throws IOException {
+    ForkJoinPool pool;
+    synchronized (this) {
+      pool = scanPool;
+    }
+    if (pool == null) { return; }  // Closed.
+    Scan scan = new Scan(ws, keys);
     try {
-      Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
-        // TODO: implement other visitor methods
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir) {
-          try {
-            // TODO: if we know the toWatch predicate skips everything under dir
-            // then don't continue.
-            // HACK: don't watch the .prebake directory, especially the
-            // archives and logs.
-            if (root.isSameFile(dir.getParent())
-                && dir.getName().toString().equals(FileNames.DIR)) {
-              return FileVisitResult.SKIP_SUBTREE;
-            }
-            WatchKey key = dir.register(
-                ws,
-                StandardWatchEventKind.ENTRY_CREATE,
-                StandardWatchEventKind.ENTRY_DELETE,
-                StandardWatchEventKind.ENTRY_MODIFY);
-            keys.put(key, dir);
-          } catch (IOException x) {
-            throw new IOError(x);
-          }
-          return FileVisitResult.CONTINUE;
+      pool.invoke(new RegisterTask(scan, p));
+    } catch (RejectedExecutionException ex) {
+      return;  // Closed while scanning.
+    }
+    IOException failure = scan.failure.get();
+    if (failure != null) { throw failure; }
+  }
+
+  /** State shared by the tasks that walk one tree. */
+  private static final class Scan {
+    final WatchService ws;
+    final Map<WatchKey, Path> keys;
+    /** The first failure, after which no new directories are walked. */
+    final AtomicReference<IOException> failure
+        = new AtomicReference<IOException>();
+    volatile boolean interrupted;
+
+    Scan(WatchService ws, Map<WatchKey, Path> keys) {
+      this.ws = ws;
+      this.keys = keys;
+    }
+
+    boolean stopped() { return interrupted || failure.get() != null; }
+  }
+
+  private final class RegisterTask extends RecursiveAction {
+    private final Scan scan;
+    private final Path path;
+
+    RegisterTask(Scan scan, Path path) {
+      this.scan = scan;
+      this.path = path;
+    }
+
+    @Override
+    protected void compute() {
+      if (scan.stopped()) { return; }
+      try {
+        BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+            path, LinkOption.NOFOLLOW_LINKS);
+        if (attrs.isDirectory()) {
+          walkDirectory();
+        } else {
+          filesScanned.incrementAndGet();
+          maybePut(path);
         }
-        @Override
-        public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
-          try {
-            maybePut(p);
-          } catch (InterruptedException ex) {
-            return FileVisitResult.TERMINATE;
+      } catch (IOException ex) {
+        scan.failure.compareAndSet(null, ex);
+      } catch (InterruptedException ex) {
+        scan.interrupted = true;
+      }
+    }
+
+    private void walkDirectory() throws IOException, InterruptedException {
+      // HACK: don't watch the .prebake directory, especially the
+      // archives and logs.
+      if (root.isSameFile(path.getParent())
+          && path.getName().toString().equals(FileNames.DIR)) {
+        return;
+      }
+      if (!toDescend.apply(path) && !root.isSameFile(path)) { return; }
+      WatchKey key = path.register(
+          scan.ws,
+          StandardWatchEventKind.ENTRY_CREATE,
+          StandardWatchEventKind.ENTRY_DELETE,
+          StandardWatchEventKind.ENTRY_MODIFY);
+      scan.keys.put(key, path);
+      dirsScanned.incrementAndGet();
+      // Publish files as they are listed, and fork subdirectories once the
+      // listing is closed so that open directory handles stay bounded by the
+      // parallelism instead of the depth of the tree times its breadth.
+      List<RegisterTask> subdirs = Lists.newArrayList();
+      DirectoryStream<Path> children = path.newDirectoryStream();
+      try {
+        for (Path child : children) {
+          if (scan.stopped()) { return; }
+          BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+              child, LinkOption.NOFOLLOW_LINKS);
+          if (attrs.isDirectory()) {
+            subdirs.add(new RegisterTask(scan, child));
+          } else {
+            filesScanned.incrementAndGet();
+            maybePut(child);
           }
-          return FileVisitResult.CONTINUE;
         }
-      });
-    } catch (IOError err) {
-      throw (IOException) err.getCause();
+      } finally {
+        children.close();
+      }
+      invokeAll(subdirs);
     }
   }
 
@@ -15,6 +15,7 @@
 package org.prebake.fs;
 
 import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,13 +38,18 @@ public final class FileAndHash {
   private final byte[] content;
   @Nullable private final Hash hash;
 
-  public static FileAndHash fromStream(Path p, InputStream in, boolean makeHash)
+  /**
+   * @param hashAlgorithm used to hash the content, or null if the result
+   *     should not have a hash.
+   */
+  public static FileAndHash fromStream(
+      Path p, InputStream in, @Nullable HashAlgorithm hashAlgorithm)
       throws IOException {
     try {
       byte[] bytes = ByteStreams.toByteArray(in);
       Hash hash = null;
-      if (makeHash) {
-        hash = Hash.builder().withData(bytes).build();
+      if (hashAlgorithm != null) {
+        hash = Hash.builder(hashAlgorithm).withData(bytes).build();
       }
       return new FileAndHash(p, bytes, hash);
     } finally {
@@ -68,4 +74,14 @@ public final class FileAndHash {
   public FileAndHash withoutHash() {
     return hash == null ? this : new FileAndHash(p, content, null);
   }
+
+  /** A copy whose hash is the given hash, known to be that of the content. */
+  FileAndHash withHash(Hash hash) {
+    return new FileAndHash(p, content, hash);
+  }
+
+  /** A copy whose hash is computed from the content. */
+  FileAndHash withContentHash(HashAlgorithm hashAlgorithm) {
+    return withHash(Hash.builder(hashAlgorithm).withData(content).build());
+  }
 }
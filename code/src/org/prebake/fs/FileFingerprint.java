@@ -0,0 +1,144 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.Attributes;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * The size, modified time, and identity of a regular file.
+ * If a file's fingerprint is the same as when it was hashed, then the file
+ * does not need to be read again to recompute its hash.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class FileFingerprint {
+  final long size;
+  /** Milliseconds since the epoch. */
+  final long modified;
+  /** The hash code of the file key, or 0 if the file system has none. */
+  final long fileKey;
+
+  /** The number of bytes used by {@link #writeTo}. */
+  static final int BYTE_LENGTH = 24;
+
+  /**
+   * Files modified less than this long before being fingerprinted might be
+   * modified again without their modified time changing since some file
+   * systems only record modified times to the nearest one or two seconds.
+   */
+  static final long RACY_INTERVAL_MILLIS = 2000;
+
+  FileFingerprint(long size, long modified, long fileKey) {
+    this.size = size;
+    this.modified = modified;
+    this.fileKey = fileKey;
+  }
+
+  /**
+   * The fingerprint of the given file or null if it is not a regular file, or
+   * if it was modified so recently that its fingerprint might not change the
+   * next time it is modified.
+   * @param now the current time in milliseconds since the epoch.
+   */
+  static @Nullable FileFingerprint of(Path p, long now) {
+    BasicFileAttributes attrs;
+    try {
+      attrs = Attributes.readBasicFileAttributes(p, LinkOption.NOFOLLOW_LINKS);
+    } catch (IOException ex) {  // File does not exist.
+      return null;
+    } catch (UnsupportedOperationException ex) {
+      return null;
+    }
+    if (!attrs.isRegularFile()) { return null; }
+    FileTime t = attrs.lastModifiedTime();
+    if (t == null) { return null; }
+    long modified = t.toMillis();
+    if (modified < 0 || now - modified < RACY_INTERVAL_MILLIS) { return null; }
+    Object key = attrs.fileKey();
+    return new FileFingerprint(
+        attrs.size(), modified, key != null ? key.hashCode() : 0);
+  }
+
+  /** Writes {@link #BYTE_LENGTH} bytes to out starting at off. */
+  void writeTo(byte[] out, int off) {
+    writeLong(size, out, off);
+    writeLong(modified, out, off + 8);
+    writeLong(fileKey, out, off + 16);
+  }
+
+  /**
+   * Reads a fingerprint written by {@link #writeTo}, or null if the bytes were
+   * written by {@link #writeNone}.
+   */
+  static @Nullable FileFingerprint readFrom(byte[] in, int off) {
+    long size = readLong(in, off);
+    if (size < 0) { return null; }
+    return new FileFingerprint(
+        size, readLong(in, off + 8), readLong(in, off + 16));
+  }
+
+  /**
+   * Writes {@link #BYTE_LENGTH} bytes that {@link #readFrom} will read as the
+   * absence of a fingerprint.
+   */
+  static void writeNone(byte[] out, int off) {
+    writeLong(-1L, out, off);
+    writeLong(-1L, out, off + 8);
+    writeLong(-1L, out, off + 16);
+  }
+
+  private static void writeLong(long n, byte[] out, int off) {
+    for (int i = 8; --i >= 0;) {
+      out[off + i] = (byte) n;
+      n >>>= 8;
+    }
+  }
+
+  private static long readLong(byte[] in, int off) {
+    long n = 0;
+    for (int i = off, end = off + 8; i < end; ++i) {
+      n = (n << 8) | (in[i] & 0xff);
+    }
+    return n;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof FileFingerprint)) { return false; }
+    FileFingerprint that = (FileFingerprint) o;
+    return this.size == that.size && this.modified == that.modified
+        && this.fileKey == that.fileKey;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (size ^ (modified * 31) ^ (fileKey * 961));
+  }
+
+  @Override
+  public String toString() {
+    return "[size=" + size + ", modified=" + modified + ", fileKey=" + fileKey
+        + "]";
+  }
+}
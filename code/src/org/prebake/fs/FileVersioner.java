@@ -18,18 +18,22 @@ import org.prebake.core.ArtifactListener;
 import org.prebake.core.Glob;
 import org.prebake.core.GlobSet;
 import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.OperationStatus;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
@@ -37,6 +41,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -61,6 +71,21 @@ public abstract class FileVersioner {
   private final List<ArtifactAddresser<?>> addressers = Lists.newArrayList();
   private final Map<ArtifactAddresser<?>, Integer> addressersReverse
       = Maps.newIdentityHashMap();
+  /**
+   * Non-file artifacts indexed by the compact ID recorded in the derivatives
+   * table.  Guarded by itself.
+   */
+  private final List<Derivative> derivatives = Lists.newArrayList();
+  /** Maps derivatives to themselves so IDs can be reused.  Guarded by above. */
+  private final Map<Derivative, Derivative> derivativesInterned
+      = Maps.newHashMap();
+  /**
+   * IDs of artifacts that need to be invalidated, in ID order.
+   * Guarded by itself.
+   */
+  private final Set<Integer> pendingInvalidations = Sets.newTreeSet();
+  /** True if a task is draining pendingInvalidations.  Guarded by same. */
+  private boolean invalidationScheduled;
   /**
    * Guards access to the derivative table so that we reliably invalidate
    * non-file-artifacts when their dependencies have changed and don't record
@@ -70,17 +95,55 @@ public abstract class FileVersioner {
   private final ReadWriteLock derivativeHashLock
       = new ReentrantReadWriteLock(true);
   private final GlobDispatcher dispatcher;
+  private final Object pathIndexLock = new Object();
+  /** The paths in the store.  Guarded by pathIndexLock. */
+  private PathIndex pathIndex;
+  private final HashAlgorithm hashAlgorithm;
+  @Nullable private final ExecutorService hashExecer;
+  private final int hashParallelism;
+  @Nullable private final Executor invalidationExecer;
 
   public FileVersioner(Path root, Predicate<Path> toWatch, Logger logger)
       throws IOException {
+    this(root, toWatch, HashAlgorithm.DEFAULT, null, 1, null, logger);
+  }
+
+  /**
+   * @param hashAlgorithm the algorithm used to hash file content.
+   * @param hashExecer used to hash changed files in parallel.  If null, files
+   *     are hashed on the thread that calls {@link #updateFiles}.
+   * @param hashParallelism the maximum number of threads, including the
+   *     calling thread, that hash files for one call to {@link #updateFiles}.
+   * @param invalidationExecer used to invalidate non-file artifacts whose
+   *     prerequisites changed, and to notify listeners of changes to watched
+   *     globs.  If null, both happen on threads calling {@link #updateFiles}.
+   */
+  public FileVersioner(
+      Path root, Predicate<Path> toWatch, HashAlgorithm hashAlgorithm,
+      @Nullable ExecutorService hashExecer, int hashParallelism,
+      @Nullable Executor invalidationExecer, Logger logger)
+      throws IOException {
+    if (hashParallelism < 1) {
+      throw new IllegalArgumentException("" + hashParallelism);
+    }
+    this.hashAlgorithm = hashAlgorithm;
+    this.hashExecer = hashExecer;
+    this.hashParallelism = hashParallelism;
+    this.invalidationExecer = invalidationExecer;
     this.logger = logger;
     this.toWatch = toWatch;
     this.root = root.toRealPath(false);
-    this.dispatcher = new GlobDispatcher(logger);
+    this.dispatcher = new GlobDispatcher(invalidationExecer, logger);
   }
 
   public Path getVersionRoot() { return root; }
 
+  /**
+   * The algorithm used to hash file content.  Hashes of files passed to
+   * {@link #updateArtifact} must be computed using this algorithm.
+   */
+  public HashAlgorithm getHashAlgorithm() { return hashAlgorithm; }
+
   public FileSystem getFileSystem() { return root.getFileSystem(); }
 
   public boolean isUnderVersionRoot(Path p) {
@@ -108,48 +171,150 @@ public abstract class FileVersioner {
     return load(Collections.singletonList(p)).get(0);
   }
 
+  /**
+   * Reads the given files.  Files under the version root are hashed, reusing
+   * the stored hash if the file is unchanged since it was stored, and their
+   * hashes are stored.
+   */
   public List<FileAndHash> load(Iterable<Path> paths) throws IOException {
     ImmutableList.Builder<FileAndHash> out = ImmutableList.builder();
-    for (Path p : paths) {
-      p = p.toRealPath(false);
-      InputStream in = p.newInputStream();
-      FileAndHash fh = FileAndHash.fromStream(p, in, p.startsWith(root));
-      Path kp = toKeyPath(p);
-      if (kp == null) {
-        fh = fh.withoutHash();
-      } else {
-        RecordLoop rl = makeRecordLoop();
-        rl.start();
-        try {
+    // One cursor for the whole batch.
+    RecordLoop rl = null;
+    try {
+      for (Path p : paths) {
+        p = p.toRealPath(false);
+        FileAndHash fh = FileAndHash.fromStream(p, p.newInputStream(), null);
+        Path kp = toKeyPath(p);
+        if (kp != null) {
+          if (rl == null) {
+            rl = makeRecordLoop();
+            rl.start();
+          }
+          // Fingerprint after reading so that a change during the read is
+          // not mistaken for the content read.
+          FileFingerprint fp = FileFingerprint.of(
+              p, System.currentTimeMillis());
           if (rl.find(kp)) {
-            if (!fh.getHash().matches(rl.currentHash())) {
-              rl.updateHash(fh.getHash());
+            Hash stored = storedHashIfCurrent(rl, fp);
+            if (stored != null) {
+              fh = fh.withHash(stored);
+            } else {
+              fh = fh.withContentHash(hashAlgorithm);
+              if (!fh.getHash().matches(rl.currentHash())
+                  || !Objects.equal(fp, rl.currentFingerprint())) {
+                rl.updateHash(fh.getHash(), fp);
+              }
             }
           } else {
-            rl.insert(fh.getHash());
+            fh = fh.withContentHash(hashAlgorithm);
+            rl.insert(fh.getHash(), fp);
+            updatePathIndex(kp, true);
+          }
+        }
+        out.add(fh);
+      }
+    } finally {
+      if (rl != null) { rl.end(); }
+    }
+    return out.build();
+  }
+
+  /**
+   * The hashes of the given files' content, in order.
+   * The stored hash is used for any file whose fingerprint matches the one
+   * recorded when it was stored, so unchanged files are not read.
+   * Other files are read and hashed, but the store is not updated since a
+   * changed hash must reach the store via {@link #updateFiles} so that
+   * derivatives are invalidated.
+   *
+   * @throws IOException if a file that needs hashing could not be read.
+   */
+  public ImmutableList<Hash> hashFiles(Iterable<Path> paths)
+      throws IOException {
+    ImmutableList.Builder<Hash> out = ImmutableList.builder();
+    long now = System.currentTimeMillis();
+    RecordLoop rl = null;
+    try {
+      for (Path p : paths) {
+        Path kp = toKeyPath(p);
+        if (kp != null) {
+          if (rl == null) {
+            rl = makeRecordLoop();
+            rl.start();
+          }
+          if (rl.find(kp)) {
+            Hash stored = storedHashIfCurrent(
+                rl, FileFingerprint.of(p, now));
+            if (stored != null) {
+              out.add(stored);
+              continue;
+            }
           }
-        } finally {
-          rl.end();
         }
+        out.add(Hash.builder(hashAlgorithm).withFile(p).build());
       }
-      out.add(fh);
+    } finally {
+      if (rl != null) { rl.end(); }
     }
     return out.build();
   }
 
+  /**
+   * The hash at the record loop's cursor if it was computed with the current
+   * algorithm from a file with the given fingerprint.
+   */
+  private @Nullable Hash storedHashIfCurrent(
+      RecordLoop rl, @Nullable FileFingerprint fp) {
+    if (fp == null || !fp.equals(rl.currentFingerprint())) { return null; }
+    byte[] stored = rl.currentHash();
+    if (Hash.algorithmOf(stored) != hashAlgorithm) { return null; }
+    return Hash.fromDatabaseEntry(new DatabaseEntry(stored));
+  }
+
   protected abstract List<Path> pathsWithPrefix(
       String prefix, Predicate<String> predicate);
 
+  /**
+   * The paths of known files that match any of the given globs.
+   * This does not hit the store.  It descends only into directories that
+   * could contain a match.
+   */
   public List<Path> matching(GlobSet globs) {
-    return pathsWithPrefix(
-        Glob.commonPrefix(globs), new PathPredicate(Glob.toRegex(globs)));
+    Pattern p = Glob.toRegex(globs);
+    synchronized (pathIndexLock) {
+      return pathIndex().matching(p);
+    }
+  }
+
+  /**
+   * Lazily loaded from the store since subclasses' stores are not available
+   * during construction.
+   */
+  private PathIndex pathIndex() {
+    synchronized (pathIndexLock) {
+      if (pathIndex == null) {
+        PathIndex index = new PathIndex(getFileSystem());
+        for (Path p : pathsWithPrefix("", Predicates.<String>alwaysTrue())) {
+          index.add(p);
+        }
+        pathIndex = index;
+      }
+      return pathIndex;
+    }
   }
 
-  private final static class PathPredicate implements Predicate<String> {
-    private final Pattern p;
-    PathPredicate(Pattern p) { this.p = p; }
-    public boolean apply(String pathStr) {
-      return p.matcher(pathStr).matches();
+  /**
+   * Brings the path index up-to-date after the store has been updated.
+   * If the index is not loaded, then it will see the update when loaded.
+   */
+  private void updatePathIndex(Path keyPath, boolean exists) {
+    synchronized (pathIndexLock) {
+      if (pathIndex == null) { return; }
+      if (exists) {
+        pathIndex.add(keyPath);
+      } else {
+        pathIndex.remove(keyPath);
+      }
     }
   }
 
@@ -164,9 +329,13 @@ public abstract class FileVersioner {
   protected static final class UpdateRecord {
     final Path keyPath;
     final Hash hash;
-    UpdateRecord(Path keyPath, @Nullable Hash hash) {
+    final FileFingerprint fingerprint;
+    UpdateRecord(
+        Path keyPath, @Nullable Hash hash,
+        @Nullable FileFingerprint fingerprint) {
       this.keyPath = keyPath;
       this.hash = hash;
+      this.fingerprint = fingerprint;
     }
   }
 
@@ -174,8 +343,13 @@ public abstract class FileVersioner {
     void start();
     boolean find(Path keyPath);
     byte[] currentHash();
-    boolean updateHash(Hash h);
-    boolean insert(Hash h);
+    /**
+     * The fingerprint of the file when {@link #currentHash} was computed or
+     * null if the file needs to be rehashed on the next update.
+     */
+    @Nullable FileFingerprint currentFingerprint();
+    boolean updateHash(Hash h, @Nullable FileFingerprint fp);
+    boolean insert(Hash h, @Nullable FileFingerprint fp);
     boolean deleteCurrent();
     void end();
   }
@@ -184,7 +358,8 @@ public abstract class FileVersioner {
     void start();
     boolean findFirst(Path p);
     boolean findNext();
-    String getAddress();
+    /** The ID passed to {@link ArtifactUpdateLoop#start}. */
+    int getArtifactId();
     void removeLast();
     void end();
   }
@@ -192,84 +367,228 @@ public abstract class FileVersioner {
   protected abstract RecordLoop makeRecordLoop();
   protected abstract DerivativesLoop makeDerivativesLoop();
 
-  // TODO: HIGH: move updates onto execer
-  /** Called when the system is notified that the given files have changed. */
+  /**
+   * Called when the system is notified that the given files have changed.
+   * If a directory is passed, then all known files under it are checked.
+   * Files are hashed in parallel on the hash executor, and the results are
+   * stored in one pass once all are hashed, so callers should pass large
+   * batches where possible.
+   */
   public void updateFiles(Collection<Path> toUpdate) {
-    int n = toUpdate.size();
-    UpdateRecord[] records = new UpdateRecord[n];
-    Iterator<Path> paths = toUpdate.iterator();
-    for (int i = 0; i < n; ++i) {
-      Path p = paths.next();
+    Set<Path> keyPaths = Sets.newLinkedHashSet();
+    for (Path p : toUpdate) {
+      // Normalize the path failing if not under the root of watched files.
       Path keyPath = toKeyPath(p);
       if (keyPath == null) {
         logger.log(Level.FINE, "Not updating external file {0}", p);
         continue;
       }
-      // Normalize the path failing if not under the root of watched files.
-      Hash hash = null;
+      // A directory is reported when it is deleted or when the watcher may
+      // have missed events in it, so recheck all the known files under it.
+      List<Path> under;
+      synchronized (pathIndexLock) {
+        under = pathIndex().filesUnder(keyPath);
+      }
+      if (under.isEmpty()) {
+        keyPaths.add(keyPath);
+      } else {
+        keyPaths.addAll(under);
+      }
+    }
+    updateKeyPaths(Lists.newArrayList(keyPaths));
+  }
+
+  /**
+   * Compares the stored records against the file system, and brings any that
+   * are stale up-to-date.
+   * This should be called once at startup when the hash store was persisted
+   * by a previous run, since files may have been changed, created, or deleted
+   * while no one was watching.
+   * Files that were created since the last run are not seen here; they are
+   * picked up when the directory watcher registers the client tree.
+   */
+  public void reconcile() {
+    List<Path> stored = pathsWithPrefix("", Predicates.<String>alwaysTrue());
+    logger.log(Level.INFO, "Reconciling {0} stored file hashes", stored.size());
+    // Records whose fingerprint still matches the file are skipped, and
+    // records for files that have since been deleted or ignored are removed.
+    updateKeyPaths(stored);
+  }
+
+  /**
+   * Hashes the files that are not unchanged, spreading the work over the hash
+   * executor.
+   * The calling thread hashes files too, so this makes progress even when all
+   * the workers are busy, and it does not return until every file is hashed,
+   * so a caller draining a bounded queue of updates applies back pressure to
+   * the producer.
+   * @return an array with an update record for every file that is not
+   *     unchanged, and null elsewhere.
+   */
+  private UpdateRecord[] hashAll(
+      final List<Path> keyPaths, final FileFingerprint[] fingerprints,
+      final boolean[] unchanged) {
+    final int n = keyPaths.size();
+    final UpdateRecord[] records = new UpdateRecord[n];
+    int nToHash = 0;
+    for (boolean b : unchanged) { if (!b) { ++nToHash; } }
+    final AtomicInteger next = new AtomicInteger();
+    Runnable hasher = new Runnable() {
+      public void run() {
+        for (int i; (i = next.getAndIncrement()) < n;) {
+          if (unchanged[i]) { continue; }
+          Path keyPath = keyPaths.get(i);
+          records[i] = new UpdateRecord(
+              keyPath, hashFile(keyPath), fingerprints[i]);
+        }
+      }
+    };
+    List<Future<?>> helpers = Lists.newArrayList();
+    if (hashExecer != null) {
+      int nHelpers = Math.min(hashParallelism, nToHash) - 1;
       try {
-        if (!p.notExists()) {
-          logger.log(Level.FINE, "Hashing file {0}", p);
-          hash = Hash.builder().withFile(p).build();
+        for (int i = 0; i < nHelpers; ++i) {
+          helpers.add(hashExecer.submit(hasher));
+        }
+      } catch (RejectedExecutionException ex) {
+        // The executor is shutting down, so do the rest on this thread.
+      }
+    }
+    hasher.run();
+    boolean interrupted = false;
+    for (Future<?> helper : helpers) {
+      while (true) {
+        try {
+          helper.get();
+          break;
+        } catch (InterruptedException ex) {
+          // Keep waiting since the helper is writing into records.
+          interrupted = true;
+        } catch (ExecutionException ex) {
+          throw new RuntimeException(ex.getCause());
         }
-      } catch (IOException ex) {
-        logger.log(Level.WARNING, "Failed to hash " + p, ex);
       }
-      records[i] = new UpdateRecord(keyPath, hash);
     }
+    if (interrupted) { Thread.currentThread().interrupt(); }
+    return records;
+  }
 
-    // For each file, true if derivatives don't need to be invalidated.
+  private @Nullable Hash hashFile(Path keyPath) {
+    // Files that are no longer watched are treated as deleted.
+    if (!toWatch.apply(keyPath)) { return null; }
+    Path p = root.resolve(keyPath);
+    try {
+      if (!p.notExists()
+          // Directories are reported by the watcher but are not stored.
+          && !Boolean.TRUE.equals(
+              p.getAttribute("isDirectory", LinkOption.NOFOLLOW_LINKS))) {
+        logger.log(Level.FINE, "Hashing file {0}", p);
+        return Hash.builder(hashAlgorithm).withFile(p).build();
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to hash " + p, ex);
+    }
+    return null;
+  }
+
+  private void updateKeyPaths(List<Path> keyPaths) {
+    long t0 = System.nanoTime();
+    int n = keyPaths.size();
+    FileFingerprint[] fingerprints = new FileFingerprint[n];
+    boolean[] unchanged = new boolean[n];
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < n; ++i) {
+      Path keyPath = keyPaths.get(i);
+      if (toWatch.apply(keyPath)) {
+        fingerprints[i] = FileFingerprint.of(root.resolve(keyPath), now);
+      }
+    }
+
+    // Files whose size, modified time, and identity are the same as when we
+    // last hashed them do not need to be read again unless they were hashed
+    // with a different algorithm.
     RecordLoop loop = makeRecordLoop();
     loop.start();
-    List<UpdateRecord> changed = Lists.newArrayList();
     try {
-      for (UpdateRecord r : records) {
+      for (int i = 0; i < n; ++i) {
+        unchanged[i] = fingerprints[i] != null && loop.find(keyPaths.get(i))
+            && fingerprints[i].equals(loop.currentFingerprint())
+            && Hash.algorithmOf(loop.currentHash()) == hashAlgorithm;
+      }
+    } finally {
+      loop.end();
+    }
+
+    UpdateRecord[] records = hashAll(keyPaths, fingerprints, unchanged);
+    long t1 = System.nanoTime();
+
+    // For each file, true if derivatives need to be invalidated.
+    boolean[] changed = new boolean[n];
+    int nChanged = 0;
+    // Apply the whole batch with one cursor.
+    loop = makeRecordLoop();
+    loop.start();
+    try {
+      for (int i = 0; i < n; ++i) {
+        UpdateRecord r = records[i];
         if (r == null) { continue; }
         Hash newHash = r.hash;
         boolean success;
         if (loop.find(r.keyPath)) {
           if (newHash != null) {
             if (!newHash.matches(loop.currentHash())) {
-              changed.add(r);
+              changed[i] = true;
               logger.log(Level.FINER, "Updating hash for {0}", r.keyPath);
               // The cursor is in the right place.  Just update the data.
-              success = loop.updateHash(newHash);
+              success = loop.updateHash(newHash, r.fingerprint);
+            } else if (!Objects.equal(
+                           r.fingerprint, loop.currentFingerprint())) {
+              // Touched but not changed.
+              success = loop.updateHash(newHash, r.fingerprint);
             } else {
               success = true;
             }
           } else {
-            changed.add(r);
+            changed[i] = true;
             logger.log(Level.FINER, "Removing hash for {0}", r.keyPath);
             success = loop.deleteCurrent();
           }
         } else {  // Assume not found
           if (newHash != null) {
-            changed.add(r);
+            changed[i] = true;
             logger.log(Level.FINER, "Storing hash for  {0}", r.keyPath);
-            success = loop.insert(r.hash);
+            success = loop.insert(r.hash, r.fingerprint);
           } else {
             success = true;
           }
         }
         assert success;
+        if (changed[i]) { ++nChanged; }
       }
     } finally {
       loop.end();
       loop = null;
     }
+    long t2 = System.nanoTime();
+    for (int i = 0; i < n; ++i) {
+      if (changed[i]) {
+        updatePathIndex(keyPaths.get(i), records[i].hash != null);
+      }
+    }
 
     // Figure out who to mark invalid, and remove rows corresponding to
     // soon-to-be-invalid objects.
-    Set<String> addressesToInvalidate = Sets.newHashSet();
+    Set<Integer> toInvalidate = Sets.newHashSet();
     derivativeHashLock.writeLock().lock();
     try {
       DerivativesLoop dloop = makeDerivativesLoop();
       dloop.start();
       try {
-        for (UpdateRecord r : changed) {
-          boolean found = dloop.findFirst(r.keyPath);
+        for (int i = 0; i < n; ++i) {
+          if (!changed[i]) { continue; }
+          boolean found = dloop.findFirst(keyPaths.get(i));
           while (found) {
-            addressesToInvalidate.add(dloop.getAddress());
+            toInvalidate.add(dloop.getArtifactId());
             dloop.removeLast();
             found = dloop.findNext();
           }
@@ -281,30 +600,106 @@ public abstract class FileVersioner {
       derivativeHashLock.writeLock().unlock();
     }
 
-    // Mark everyone invalid now.
-    for (String address : addressesToInvalidate) {
-      int colon = address.indexOf(':');
+    // Mark everyone invalid without holding up the caller.
+    if (!toInvalidate.isEmpty()) { scheduleInvalidation(toInvalidate); }
+
+    // Finally dispatch based on globs in the order the files were reported.
+    if (nChanged != 0) {
+      List<Path> changedPaths = Lists.newArrayListWithCapacity(nChanged);
+      for (int i = 0; i < n; ++i) {
+        if (changed[i]) { changedPaths.add(keyPaths.get(i)); }
+      }
+      dispatcher.dispatch(changedPaths);
+    }
+
+    if (logger.isLoggable(Level.FINER)) {
+      int nHashed = 0;
+      for (boolean b : unchanged) { if (!b) { ++nHashed; } }
+      logger.log(
+          Level.FINER,
+          "Updated {0} files, {1} hashed, {2} changed."
+          + "  {3} ms checking and hashing, {4} ms storing, {5} ms total",
+          new Object[] {
+            n, nHashed, nChanged, (t1 - t0) / 1000000,
+            (t2 - t1) / 1000000, (System.nanoTime() - t0) / 1000000
+          });
+    }
+  }
+
+  /**
+   * Queues artifacts to be invalidated.  Artifacts queued by several batches
+   * before the queue is drained are invalidated once.
+   */
+  private void scheduleInvalidation(Collection<Integer> ids) {
+    synchronized (pendingInvalidations) {
+      pendingInvalidations.addAll(ids);
+      if (invalidationScheduled) { return; }
+      invalidationScheduled = true;
+    }
+    if (invalidationExecer != null) {
       try {
-        int nsIndex = Integer.parseInt(address.substring(0, colon));
-        ArtifactAddresser<?> as = addressers.get(nsIndex);
-        if (as != null) {
-          NonFileArtifact<?> inv = as.lookup(address.substring(colon + 1));
+        invalidationExecer.execute(new Runnable() {
+          public void run() { drainInvalidations(); }
+        });
+        return;
+      } catch (RejectedExecutionException ex) {
+        // Shutting down.  Invalidate on this thread instead.
+      }
+    }
+    drainInvalidations();
+  }
+
+  /**
+   * Invalidates queued artifacts in ID order, i.e. in the order in which they
+   * were first derived, so artifacts like tools are invalidated before the
+   * products derived from them.
+   */
+  private void drainInvalidations() {
+    while (true) {
+      Integer[] ids;
+      synchronized (pendingInvalidations) {
+        if (pendingInvalidations.isEmpty()) {
+          invalidationScheduled = false;
+          pendingInvalidations.notifyAll();
+          return;
+        }
+        ids = pendingInvalidations.toArray(
+            new Integer[pendingInvalidations.size()]);
+        pendingInvalidations.clear();
+      }
+      for (Integer id : ids) {
+        Derivative d = derivative(id);
+        try {
+          NonFileArtifact<?> inv = d.addresser.lookup(d.address);
           if (inv != null) {
-            logger.log(Level.FINER, "Invalidating {0}", address);
+            logger.log(Level.FINER, "Invalidating {0}", d);
             inv.invalidate();
           }
+        } catch (RuntimeException ex) {
+          logger.log(Level.SEVERE, "Failed to invalidate address " + d, ex);
         }
-      } catch (RuntimeException ex) {
-        logger.log(Level.SEVERE, "Failed to invalidate address " + address, ex);
       }
     }
+  }
 
-    // Finally dispatch based on globs.
-    if (!changed.isEmpty()) {
-      List<Path> changedPaths = Lists.newArrayList();
-      for (UpdateRecord r : changed) { changedPaths.add(r.keyPath); }
-      dispatcher.dispatch(changedPaths);
-    }
+  /**
+   * Blocks until the artifacts invalidated by earlier calls to
+   * {@link #updateFiles} are invalid and the listeners to globs that the
+   * changed files matched have been notified.
+   */
+  public void awaitInvalidations() throws InterruptedException {
+    boolean waited;
+    do {
+      waited = false;
+      synchronized (pendingInvalidations) {
+        while (invalidationScheduled) {
+          pendingInvalidations.wait();
+          waited = true;
+        }
+      }
+      // A glob listener may cause more invalidation and vice versa.
+      if (dispatcher.awaitNotified()) { waited = true; }
+    } while (waited);
   }
 
   protected interface HashLoop {
@@ -368,8 +763,58 @@ public abstract class FileVersioner {
     }
   }
 
+  /**
+   * The compact ID for the artifact with the given address, recorded in the
+   * derivatives table in place of the address.
+   */
+  private int idForDerivative(ArtifactAddresser<?> as, String address) {
+    Derivative d = new Derivative(as, indexForAddresser(as), address);
+    synchronized (derivatives) {
+      Derivative canon = derivativesInterned.get(d);
+      if (canon == null) {
+        canon = d;
+        d.id = derivatives.size();
+        derivatives.add(d);
+        derivativesInterned.put(d, d);
+      }
+      return canon.id;
+    }
+  }
+
+  /** An address of a non-file artifact. */
+  private static final class Derivative {
+    final ArtifactAddresser<?> addresser;
+    final int addresserIndex;
+    final String address;
+    int id;
+
+    Derivative(ArtifactAddresser<?> addresser, int addresserIndex,
+               String address) {
+      this.addresser = addresser;
+      this.addresserIndex = addresserIndex;
+      this.address = address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Derivative)) { return false; }
+      Derivative that = (Derivative) o;
+      return this.addresser == that.addresser
+          && this.address.equals(that.address);
+    }
+
+    @Override
+    public int hashCode() {
+      return addresserIndex * 31 + address.hashCode();
+    }
+
+    @Override
+    public String toString() { return addresserIndex + ":" + address; }
+  }
+
   protected interface ArtifactUpdateLoop {
-    void start(String artifactAddress);
+    /** @param artifactId identifies the artifact to {@link DerivativesLoop}. */
+    void start(int artifactId);
     void put(Path keyPath);
     void end();
   }
@@ -398,7 +843,7 @@ public abstract class FileVersioner {
   public <X, T extends NonFileArtifact<X>> boolean updateArtifact(
       ArtifactAddresser<T> as, T artifact, @Nullable X value,
       Collection<Path> prerequisites, Hash prereqHash) {
-    Set<Path> keyPaths = Sets.newHashSetWithExpectedSize(prerequisites.size());
+    Set<Path> keyPaths = Sets.newLinkedHashSet();
     for (Path p : prerequisites) {
       // Normalize the path failing if not under the root of watched files.
       Path keyPath = toKeyPath(p);
@@ -415,9 +860,8 @@ public abstract class FileVersioner {
       }
     }
 
-    int index = indexForAddresser(as);  // assumes addressers long lived
-    assert addressers.get(index) == as;
-    String address = index + ":" + as.addressFor(artifact);
+    // Assumes addressers long lived.
+    int artifactId = idForDerivative(as, as.addressFor(artifact));
 
     // Lock this for read so we can rehash and store the validity without
     // fearing that the file hash store will change in the meantime and fail to
@@ -427,13 +871,15 @@ public abstract class FileVersioner {
       Hash.Builder rehash = Hash.builder();
       getHashes(prerequisites, rehash);
       if (!prereqHash.equals(rehash.build())) {
-        logger.log(Level.INFO, "Version skew.  Cannot validate {0}", address);
+        logger.log(
+            Level.INFO, "Version skew.  Cannot validate {0}",
+            derivative(artifactId));
         return false;
       }
       rehash = null;
 
       ArtifactUpdateLoop loop = makeArtifactUpdateLoop();
-      loop.start(address);
+      loop.start(artifactId);
       try {
         do {
           loop.put(it.next());
@@ -442,13 +888,17 @@ public abstract class FileVersioner {
         loop.end();
       }
       artifact.validate(value);
-      logger.log(Level.FINE, "Validated {0}", address);
+      logger.log(Level.FINE, "Validated {0}", derivative(artifactId));
       return true;
     } finally {
       derivativeHashLock.readLock().unlock();
     }
   }
 
+  private Derivative derivative(int id) {
+    synchronized (derivatives) { return derivatives.get(id); }
+  }
+
   public abstract void close();
 
   private static final byte[] NO_FILE = new byte[2];
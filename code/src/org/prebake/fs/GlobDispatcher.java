@@ -16,109 +16,190 @@ package org.prebake.fs;
 
 import org.prebake.core.ArtifactListener;
 import org.prebake.core.Glob;
-import org.prebake.core.MutableGlobSet;
+import org.prebake.core.ImmutableGlobSet;
 
 import java.nio.file.Path;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
 
 /**
  * Dispatches changed paths to listeners based on unions of globs.
+ * Dispatch reads an immutable snapshot of the watched globs, so it locks only
+ * to rebuild the snapshot after a watch changes, and listeners are notified on
+ * an executor.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
 @ParametersAreNonnullByDefault
 final class GlobDispatcher {
-  private final Multimap<Glob, GlobUnion> globsContaining
-      = Multimaps.synchronizedListMultimap(Multimaps.newListMultimap(
-          Maps.<Glob, Collection<GlobUnion>>newHashMap(),
-          new ArrayListSupplier<GlobUnion>()));
-  private final Multimap<GlobUnion, ArtifactListener<GlobUnion>> listeners
-      = Multimaps.synchronizedListMultimap(Multimaps.newListMultimap(
-          Maps.<GlobUnion, Collection<ArtifactListener<GlobUnion>>>newHashMap(),
-          new ArrayListSupplier<ArtifactListener<GlobUnion>>()));
-  private final MutableGlobSet gset = new MutableGlobSet();
+  /** Guarded by this. */
+  private final ListMultimap<Glob, GlobUnion> globsContaining
+      = LinkedListMultimap.create();
+  /** Guarded by this. */
+  private final ListMultimap<GlobUnion, ArtifactListener<GlobUnion>> listeners
+      = LinkedListMultimap.create();
+  /**
+   * Null after a change to the maps above until the next dispatch rebuilds
+   * it, so that a run of watches copies the maps once.
+   */
+  private volatile @Nullable Snapshot snapshot;
+  private final @Nullable Executor execer;
   private final Logger logger;
+  /** Guards nPending. */
+  private final Object pendingLock = new Object();
+  /** The number of notifications queued on execer that have not finished. */
+  private int nPending;
 
-  /** @param logger receives exceptions thrown by listeners. */
-  GlobDispatcher(Logger logger) { this.logger = logger; }
+  /**
+   * @param execer runs listeners.  If null, listeners run on the thread
+   *     that calls {@link #dispatch}.
+   * @param logger receives exceptions thrown by listeners.
+   */
+  GlobDispatcher(@Nullable Executor execer, Logger logger) {
+    this.execer = execer;
+    this.logger = logger;
+  }
 
+  /**
+   * Notifies listeners of unions that match any of the given paths.
+   * Listeners are looked up when this is called, so a listener unwatched
+   * before the notification runs may still be notified once.
+   */
   void dispatch(Iterable<Path> paths) {
+    final Snapshot snapshot = snapshot();
     // Order of dispatch here is non-deterministic
-    Set<GlobUnion> unions = Sets.newLinkedHashSet();
+    final Set<GlobUnion> unions = Sets.newLinkedHashSet();
     for (Path p : paths) {
-      for (Glob g : gset.matching(p)) {
-        synchronized (globsContaining) {
-          unions.addAll(globsContaining.get(g));
-        }
+      for (Glob g : snapshot.gset.matching(p)) {
+        unions.addAll(snapshot.globsContaining.get(g));
       }
     }
-    for (GlobUnion union : unions) {
-      synchronized (listeners) {
-        for (ArtifactListener<GlobUnion> unionListener : listeners.get(union)) {
-          try {
-            unionListener.artifactChanged(union);
-          } catch (RuntimeException ex) {
-            logger.log(Level.SEVERE, "Internal error", ex);
+    if (unions.isEmpty()) { return; }
+    final Runnable notifier = new Runnable() {
+      public void run() {
+        for (GlobUnion union : unions) {
+          for (ArtifactListener<GlobUnion> unionListener
+               : snapshot.listeners.get(union)) {
+            try {
+              unionListener.artifactChanged(union);
+            } catch (RuntimeException ex) {
+              logger.log(Level.SEVERE, "Internal error", ex);
+            }
           }
         }
       }
+    };
+    if (execer != null) {
+      synchronized (pendingLock) { ++nPending; }
+      try {
+        execer.execute(new Runnable() {
+          public void run() {
+            try {
+              notifier.run();
+            } finally {
+              notified();
+            }
+          }
+        });
+        return;
+      } catch (RejectedExecutionException ex) {
+        // Shutting down.  Notify on this thread instead.
+        notified();
+      }
     }
+    notifier.run();
   }
 
-  void watch(GlobUnion union, ArtifactListener<GlobUnion> listener) {
-    synchronized (listeners) {
-      if (!listeners.containsKey(union)) {
-        for (Glob glob : union.globs) {
-          Collection<GlobUnion> unions = globsContaining.get(glob);
-          if (unions.isEmpty()) { gset.add(glob); }
-          unions.add(union);
-        }
+  private void notified() {
+    synchronized (pendingLock) {
+      if (--nPending == 0) { pendingLock.notifyAll(); }
+    }
+  }
+
+  /**
+   * Blocks until listeners have been notified of all earlier dispatches.
+   * @return true if it had to wait.
+   */
+  boolean awaitNotified() throws InterruptedException {
+    boolean waited = false;
+    synchronized (pendingLock) {
+      while (nPending != 0) {
+        pendingLock.wait();
+        waited = true;
       }
-      listeners.put(union, listener);
     }
+    return waited;
   }
 
-  void unwatch(GlobUnion union, ArtifactListener<GlobUnion> listener) {
-    synchronized (listeners) {
-      Collection<ArtifactListener<GlobUnion>> listenerList
-          = listeners.get(union);
-      listenerList.remove(listener);
-      if (listenerList.isEmpty()) {
-        for (Glob glob : union.globs) {
-          Collection<GlobUnion> unions = globsContaining.get(glob);
-          unions.remove(union);
-          if (unions.isEmpty()) { gset.remove(glob); }
-        }
+  synchronized void watch(
+      GlobUnion union, ArtifactListener<GlobUnion> listener) {
+    if (!listeners.containsKey(union)) {
+      for (Glob glob : union.globs) { globsContaining.put(glob, union); }
+    }
+    listeners.put(union, listener);
+    snapshot = null;
+  }
+
+  synchronized void unwatch(
+      GlobUnion union, ArtifactListener<GlobUnion> listener) {
+    List<ArtifactListener<GlobUnion>> listenerList = listeners.get(union);
+    if (!listenerList.remove(listener)) { return; }
+    if (listenerList.isEmpty()) {
+      for (Glob glob : union.globs) { globsContaining.remove(glob, union); }
+    }
+    snapshot = null;
+  }
+
+  private Snapshot snapshot() {
+    Snapshot snapshot = this.snapshot;
+    if (snapshot != null) { return snapshot; }
+    synchronized (this) {
+      if (this.snapshot == null) {
+        this.snapshot = new Snapshot(
+            ImmutableListMultimap.copyOf(globsContaining),
+            ImmutableListMultimap.copyOf(listeners));
       }
+      return this.snapshot;
     }
   }
 
   @VisibleForTesting
   String unittestBackdoorGlobKeys() {
-    List<Glob> globKeys;
-    synchronized (globsContaining) {
-      globKeys = Lists.newArrayList(globsContaining.keySet());
-    }
+    List<Glob> globKeys = Lists.newArrayList(
+        snapshot().globsContaining.keySet());
     Collections.sort(globKeys);
     return globKeys.toString();
   }
 
-  private static class ArrayListSupplier<T> implements Supplier<List<T>> {
-    public List<T> get() { return Lists.newArrayList(); }
+  /** The watched globs and their listeners at some point in time. */
+  private static final class Snapshot {
+    final ImmutableListMultimap<Glob, GlobUnion> globsContaining;
+    final ImmutableListMultimap<GlobUnion, ArtifactListener<GlobUnion>>
+        listeners;
+    final ImmutableGlobSet gset;
+
+    Snapshot(
+        ImmutableListMultimap<Glob, GlobUnion> globsContaining,
+        ImmutableListMultimap<GlobUnion, ArtifactListener<GlobUnion>>
+            listeners) {
+      this.globsContaining = globsContaining;
+      this.listeners = listeners;
+      this.gset = ImmutableGlobSet.of(globsContaining.keySet());
+    }
   }
 }
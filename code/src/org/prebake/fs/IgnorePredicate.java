@@ -0,0 +1,74 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import com.google.common.base.Predicate;
+
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Accepts paths that are not matched by an ignore pattern.
+ * The pattern is searched for in the path with separators normalized to
+ * <tt>/</tt>, so <tt>/CVS(?:/|$)</tt> ignores CVS directories and everything
+ * under them.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public final class IgnorePredicate implements Predicate<Path> {
+  private final Pattern ignorePattern;
+
+  public IgnorePredicate(Pattern ignorePattern) {
+    this.ignorePattern = ignorePattern;
+  }
+
+  /** True if p is not ignored. */
+  public boolean apply(Path p) {
+    return !ignorePattern.matcher(normalize(p)).find();
+  }
+
+  /**
+   * False if every path under dir is ignored, so there is no need to look
+   * inside dir.
+   * That is the case when the pattern matches dir followed by a separator
+   * without looking past the separator, since then it matches whatever
+   * follows.
+   */
+  public boolean isWatchedUnder(Path dir) {
+    Matcher m = ignorePattern.matcher(normalize(dir) + "/");
+    return !m.find() || m.hitEnd();
+  }
+
+  /** A predicate that applies {@link #isWatchedUnder}. */
+  public Predicate<Path> subtreePredicate() {
+    return new Predicate<Path>() {
+      public boolean apply(Path dir) { return isWatchedUnder(dir); }
+    };
+  }
+
+  private static String normalize(Path p) {
+    String pathStr = p.toString();
+    String sep = p.getFileSystem().getSeparator();
+    if (!"/".equals(sep)) { pathStr = pathStr.replace(sep, "/"); }
+    return pathStr;
+  }
+
+  @Override
+  public String toString() { return "(ignore " + ignorePattern + ")"; }
+}
@@ -0,0 +1,259 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.OperationStatus;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Maps strings, such as paths or artifact addresses, to small integer IDs so
+ * that tables can be keyed by 4 bytes instead of by whole strings.
+ * The whole dictionary is kept in memory.  If it is backed by a database then
+ * it is loaded from that database and new entries are written to it so that
+ * IDs are stable across restarts.
+ * <p>
+ * IDs are freed once nothing is keyed by them, and handed out again, so they
+ * stay dense and the dictionary only holds strings that are in use.
+ * An ID is in use while the primary table has a row keyed by it, from
+ * {@link #idFor} until {@link #markUnused}, or while other tables have rows
+ * keyed by it that are counted by {@link #reference}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class KeyDictionary {
+  /** The length in bytes of an encoded ID. */
+  static final int ID_LEN = 4;
+  /** Returned by {@link #existingId} for strings without an ID. */
+  static final int NO_ID = -1;
+
+  private final @Nullable Database db;
+  private final Map<String, Integer> ids = Maps.newHashMap();
+  /** Indexed by ID.  Null at IDs that are free or reserved. */
+  private final List<String> keys = Lists.newArrayList();
+  /** IDs that {@link #idFor} can hand out again. */
+  private final Deque<Integer> freeIds = new ArrayDeque<Integer>();
+  /**
+   * IDs {@link #markUnused marked unused} that have not been handed out by
+   * {@link #idFor} since.
+   */
+  private final Set<Integer> unusedIds = Sets.newHashSet();
+  /** The number of {@link #reference references} to each referenced ID. */
+  private final Map<Integer, Integer> refCounts = Maps.newHashMap();
+
+  /**
+   * @param db if not null, a table from UTF-8 strings to {@link #toBytes
+   *     encoded} IDs that the dictionary is loaded from and written to.
+   */
+  KeyDictionary(@Nullable Database db) {
+    this.db = db;
+    if (db != null) {
+      Map<Integer, String> loaded = Maps.newHashMap();
+      // IDs stored for more than one string, which a crash can leave behind
+      // since the table is deferred-write and IDs are reused.
+      Set<Integer> clashes = Sets.newHashSet();
+      DatabaseEntry key = new DatabaseEntry();
+      DatabaseEntry data = new DatabaseEntry();
+      Cursor cursor = db.openCursor(null, null);
+      try {
+        while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+          byte[] idBytes = data.getData();
+          int id = idBytes.length == ID_LEN ? fromBytes(idBytes) : NO_ID;
+          if (id < 0 || clashes.contains(id)) {
+            cursor.delete();
+            continue;
+          }
+          String s = new String(key.getData(), Charsets.UTF_8);
+          if (loaded.containsKey(id)) {
+            clashes.add(id);
+            cursor.delete();
+            continue;
+          }
+          loaded.put(id, s);
+        }
+      } finally {
+        cursor.close();
+      }
+      for (int id : clashes) {
+        byte[] bytes = loaded.remove(id).getBytes(Charsets.UTF_8);
+        db.delete(null, new DatabaseEntry(bytes));
+      }
+      for (Map.Entry<Integer, String> e : loaded.entrySet()) {
+        int id = e.getKey();
+        while (keys.size() <= id) { keys.add(null); }
+        keys.set(id, e.getValue());
+        ids.put(e.getValue(), id);
+      }
+      for (int id = 0, n = keys.size(); id < n; ++id) {
+        if (keys.get(id) == null) { freeIds.add(id); }
+      }
+    }
+  }
+
+  /** The ID for s, allocating one if s does not yet have one. */
+  synchronized int idFor(String s) {
+    Integer id = ids.get(s);
+    if (id != null) {
+      unusedIds.remove(id);
+    } else {
+      id = allocate(s);
+    }
+    return id;
+  }
+
+  /**
+   * The ID for s, counting a reference to it from a row in a table other
+   * than the primary one.  An ID allocated here is unused until
+   * {@link #idFor} is called for s, so it is freed once every reference is
+   * {@link #dereference dropped}.
+   */
+  synchronized int reference(String s) {
+    Integer id = ids.get(s);
+    if (id == null) {
+      id = allocate(s);
+      unusedIds.add(id);
+    }
+    Integer count = refCounts.get(id);
+    refCounts.put(id, count != null ? count + 1 : 1);
+    return id;
+  }
+
+  /**
+   * Drops a reference counted by {@link #reference}, freeing id if it was the
+   * last and id is {@link #markUnused unused}.
+   */
+  synchronized void dereference(int id) {
+    Integer count = refCounts.get(id);
+    if (count == null) { return; }
+    if (count > 1) {
+      refCounts.put(id, count - 1);
+    } else {
+      refCounts.remove(id);
+      if (unusedIds.contains(id)) { free(id); }
+    }
+  }
+
+  private int allocate(String s) {
+    Integer id = freeIds.poll();
+    if (id != null) {
+      keys.set(id, s);
+    } else {
+      id = keys.size();
+      keys.add(s);
+    }
+    ids.put(s, id);
+    if (db != null) {
+      db.put(
+          null, new DatabaseEntry(s.getBytes(Charsets.UTF_8)),
+          new DatabaseEntry(toBytes(id)));
+    }
+    return id;
+  }
+
+  /** The ID for s or {@link #NO_ID} if s does not have one. */
+  synchronized int existingId(String s) {
+    Integer id = ids.get(s);
+    return id != null ? id : NO_ID;
+  }
+
+  /** The string with the given ID or null if none. */
+  synchronized @Nullable String keyFor(int id) {
+    return id >= 0 && id < keys.size() ? keys.get(id) : null;
+  }
+
+  /**
+   * Makes sure future IDs are not any in the given set, so that IDs
+   * referenced by other tables are not handed out again.
+   */
+  synchronized void reserve(Set<Integer> usedIds) {
+    for (int id : usedIds) {
+      while (keys.size() <= id) {
+        freeIds.add(keys.size());
+        keys.add(null);
+      }
+    }
+    freeIds.removeAll(usedIds);
+  }
+
+  /** Frees all entries whose IDs are not in the given set. */
+  synchronized void retain(Set<Integer> liveIds) {
+    for (int id = 0, n = keys.size(); id < n; ++id) {
+      if (keys.get(id) != null && !liveIds.contains(id)) { free(id); }
+    }
+  }
+
+  /**
+   * Notes that the primary table's row keyed by id was deleted.  The caller
+   * should {@link #release} it once it is sure that no uncounted rows in
+   * other tables are keyed by it.
+   */
+  synchronized void markUnused(int id) {
+    if (keyFor(id) != null) { unusedIds.add(id); }
+  }
+
+  /**
+   * Frees id if it was {@link #markUnused marked unused} and has not been
+   * handed out by {@link #idFor} since, so that a row written by a
+   * concurrent caller that looked up the same string keeps its ID.
+   * An ID that is still {@link #reference referenced} is freed once the last
+   * reference is dropped instead.
+   */
+  synchronized void release(int id) {
+    if (unusedIds.contains(id) && !refCounts.containsKey(id)) { free(id); }
+  }
+
+  private void free(int id) {
+    String s = keys.set(id, null);
+    ids.remove(s);
+    unusedIds.remove(id);
+    refCounts.remove(id);
+    freeIds.add(id);
+    if (db != null) {
+      db.delete(null, new DatabaseEntry(s.getBytes(Charsets.UTF_8)));
+    }
+  }
+
+  /**
+   * Big-endian so that the store's byte-wise key order is the same as the
+   * numeric order of IDs.
+   */
+  static byte[] toBytes(int id) {
+    return new byte[] {
+      (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id
+    };
+  }
+
+  static int fromBytes(byte[] bytes) {
+    return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16)
+        | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+  }
+}
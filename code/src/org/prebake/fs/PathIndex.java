@@ -0,0 +1,222 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A sorted set of paths relative to the version root, stored as a trie over
+ * path segments so that glob queries only need to look inside directories
+ * that could contain a match.
+ * Segment names are interned since the same names, like <tt>src</tt> or
+ * <tt>java</tt>, recur throughout a client tree.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class PathIndex {
+  private final FileSystem fs;
+  private final Interner<String> segments = Interners.newWeakInterner();
+  private final Node root = new Node("");
+  private int size;
+
+  PathIndex(FileSystem fs) { this.fs = fs; }
+
+  /** The number of paths in the index. */
+  int size() { return size; }
+
+  /** @return true if the path was not already in the index. */
+  boolean add(Path keyPath) {
+    Node node = root;
+    for (int i = 0, n = keyPath.getNameCount(); i < n; ++i) {
+      String name = keyPath.getName(i).toString();
+      Node child = node.getChild(name);
+      if (child == null) {
+        child = new Node(segments.intern(name));
+        node.addChild(child);
+      }
+      node = child;
+    }
+    if (node.isFile || node == root) { return false; }
+    node.isFile = true;
+    ++size;
+    return true;
+  }
+
+  /** @return true if the path was in the index. */
+  boolean remove(Path keyPath) {
+    int n = keyPath.getNameCount();
+    Node[] ancestors = new Node[n + 1];
+    ancestors[0] = root;
+    for (int i = 0; i < n; ++i) {
+      Node child = ancestors[i].getChild(keyPath.getName(i).toString());
+      if (child == null) { return false; }
+      ancestors[i + 1] = child;
+    }
+    Node node = ancestors[n];
+    if (!node.isFile) { return false; }
+    node.isFile = false;
+    --size;
+    // Prune directories that no longer contain any files.
+    for (int i = n; i > 0 && !ancestors[i].isFile
+         && ancestors[i].nChildren == 0; --i) {
+      ancestors[i - 1].removeChild(ancestors[i].name);
+    }
+    return true;
+  }
+
+  /**
+   * The paths in the index that are strictly under the given directory,
+   * ordered by path segment.  Empty if keyPath is not a directory containing
+   * any indexed files.
+   */
+  ImmutableList<Path> filesUnder(Path keyPath) {
+    Node node = root;
+    // The empty path is the version root.
+    int n = keyPath.toString().length() == 0 ? 0 : keyPath.getNameCount();
+    for (int i = 0; i < n && node != null; ++i) {
+      node = node.getChild(keyPath.getName(i).toString());
+    }
+    if (node == null || node.nChildren == 0) { return ImmutableList.of(); }
+    ImmutableList.Builder<Path> out = ImmutableList.builder();
+    StringBuilder sb = new StringBuilder();
+    String sep = fs.getSeparator();
+    if (node != root) { sb.append(keyPath.toString()).append(sep); }
+    for (int i = 0; i < node.nChildren; ++i) {
+      node.children[i].files(sb, sep, out);
+    }
+    return out.build();
+  }
+
+  /**
+   * The paths that fully match the given regular expression, ordered by path
+   * segment.
+   * Directories are skipped when the regular expression cannot match any path
+   * that starts with the directory's path followed by a separator.
+   */
+  ImmutableList<Path> matching(Pattern p) {
+    ImmutableList.Builder<Path> out = ImmutableList.builder();
+    Matcher m = p.matcher("");
+    StringBuilder sb = new StringBuilder();
+    String sep = fs.getSeparator();
+    for (int i = 0; i < root.nChildren; ++i) {
+      root.children[i].matching(m, sb, sep, out);
+    }
+    return out.build();
+  }
+
+  private final class Node {
+    final String name;
+    boolean isFile;
+    /** Sorted by name. */
+    Node[] children;
+    int nChildren;
+
+    Node(String name) { this.name = name; }
+
+    @Nullable Node getChild(String name) {
+      int index = indexOf(name);
+      return index >= 0 ? children[index] : null;
+    }
+
+    void addChild(Node child) {
+      int index = ~indexOf(child.name);
+      if (children == null) {
+        children = new Node[2];
+      } else if (nChildren == children.length) {
+        Node[] newChildren = new Node[nChildren * 2];
+        System.arraycopy(children, 0, newChildren, 0, nChildren);
+        children = newChildren;
+      }
+      System.arraycopy(
+          children, index, children, index + 1, nChildren - index);
+      children[index] = child;
+      ++nChildren;
+    }
+
+    void removeChild(String name) {
+      int index = indexOf(name);
+      if (index < 0) { return; }
+      --nChildren;
+      System.arraycopy(children, index + 1, children, index, nChildren - index);
+      children[nChildren] = null;
+      if (nChildren == 0) { children = null; }
+    }
+
+    /** As {@link java.util.Arrays#binarySearch}. */
+    private int indexOf(String name) {
+      int lo = 0, hi = nChildren - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int delta = children[mid].name.compareTo(name);
+        if (delta < 0) {
+          lo = mid + 1;
+        } else if (delta > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return ~lo;
+    }
+
+    void files(
+        StringBuilder sb, String sep, ImmutableList.Builder<Path> out) {
+      int len = sb.length();
+      sb.append(name);
+      if (isFile) { out.add(fs.getPath(sb.toString())); }
+      if (nChildren != 0) {
+        sb.append(sep);
+        for (int i = 0; i < nChildren; ++i) {
+          children[i].files(sb, sep, out);
+        }
+      }
+      sb.setLength(len);
+    }
+
+    void matching(
+        Matcher m, StringBuilder sb, String sep,
+        ImmutableList.Builder<Path> out) {
+      int len = sb.length();
+      sb.append(name);
+      if (isFile && m.reset(sb).matches()) {
+        out.add(fs.getPath(sb.toString()));
+      }
+      if (nChildren != 0) {
+        sb.append(sep);
+        // If the match failed without reaching the end of the input then no
+        // path under this directory can match.
+        if (m.reset(sb).matches() || m.hitEnd()) {
+          for (int i = 0; i < nChildren; ++i) {
+            children[i].matching(m, sb, sep, out);
+          }
+        }
+      }
+      sb.setLength(len);
+    }
+  }
+}
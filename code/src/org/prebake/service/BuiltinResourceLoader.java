@@ -54,7 +54,7 @@ public class BuiltinResourceLoader {
     }
     InputStream in = BuiltinResourceLoader.class.getResourceAsStream(relUriStr);
     if (in == null) { throw new FileNotFoundException(p.toString()); }
-    return FileAndHash.fromStream(p, in, false);
+    return FileAndHash.fromStream(p, in, null);
   }
 
   /**
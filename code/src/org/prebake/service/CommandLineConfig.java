@@ -15,6 +15,7 @@
 package org.prebake.service;
 
 import org.prebake.core.DidYouMean;
+import org.prebake.core.HashAlgorithm;
 import org.prebake.core.MessageQueue;
 import org.prebake.js.JsonSink;
 import org.prebake.util.CommandLineArgs;
@@ -22,11 +23,15 @@ import org.prebake.util.CommandLineArgs;
 import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.AccessMode;
 import java.nio.file.FileSystem;
 import java.nio.file.LinkOption;
@@ -57,6 +62,14 @@ final class CommandLineConfig implements Config {
   private final int umask;
   private final int wwwPort;
   private final boolean localhostTrusted;
+  private final boolean persistentState;
+  private final int hashThreads;
+  private final HashAlgorithm hashAlgorithm;
+  private final Map<WorkerPools.Workload, Integer> poolThreads;
+  private final URI remoteCache;
+  private final boolean serveCache;
+  private final Path cacheSecretFile;
+  private final boolean keepWorkingDirs;
 
   private static final short DEFAULT_UMASK = 0x1a0 /* octal 0640 */;
   private static final String DANGLING_MODIFIER_MSG;
@@ -96,6 +109,40 @@ final class CommandLineConfig implements Config {
      * on open source code so don't care.
      */
     LOCALHOST_TRUSTED("-localhost-trusted"),
+    /**
+     * Specifies that file hashes should be kept across restarts so that the
+     * service need not rehash the whole client directory when it starts.
+     */
+    PERSISTENT_STATE("--persistent-state"),
+    /** Specifies the number of threads used to hash changed files. */
+    HASH_THREADS("--hash-threads"),
+    /** Specifies the algorithm used to hash file content. */
+    HASH_ALGORITHM("--hash-algorithm"),
+    /**
+     * Specifies the number of threads in worker pools as a comma separated
+     * list like <tt>plan=2,bake=8</tt>.
+     */
+    THREADS("--threads"),
+    /**
+     * Specifies the base URL of an HTTP cache of bake outputs shared with
+     * other services.
+     */
+    REMOTE_CACHE("--remote-cache"),
+    /**
+     * Specifies that the HTTP service should serve this service's cache of
+     * bake outputs to other services.
+     */
+    SERVE_CACHE("--serve-cache"),
+    /**
+     * Specifies a file whose first line is a secret shared by the services
+     * that use the same remote cache.
+     */
+    CACHE_SECRET_FILE("--cache-secret-file"),
+    /**
+     * Specifies that products' working directories should be kept between
+     * bakes and only changed inputs synced into them.
+     */
+    KEEP_WORKING_DIRS("--keep-working-dirs"),
     ;
 
     final String flag;
@@ -113,6 +160,14 @@ final class CommandLineConfig implements Config {
       List<Path> toolDirs = Lists.newArrayList();
       Integer wwwPort = null;
       Boolean localhostTrusted = null;
+      Boolean persistentState = null;
+      Integer hashThreads = null;
+      HashAlgorithm hashAlgorithm = null;
+      Map<WorkerPools.Workload, Integer> poolThreads = null;
+      URI remoteCache = null;
+      Boolean serveCache = null;
+      Path cacheSecretFile = null;
+      Boolean keepWorkingDirs = null;
       for (CommandLineArgs.Flag flag : args.getFlags()) {
         FlagName name = null;
         for (FlagName fn : FlagName.values()) {
@@ -206,6 +261,114 @@ final class CommandLineConfig implements Config {
                 mq.error("Dupe arg " + flag.name);
               }
               break;
+            case PERSISTENT_STATE:
+              if (persistentState == null) {
+                if ("true".equals(flag.value) || null == flag.value) {
+                  persistentState = Boolean.TRUE;
+                } else if ("false".equals(flag.value)) {
+                  persistentState = Boolean.FALSE;
+                } else {
+                  mq.error("Expected boolean value for flag " + flag.name);
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case HASH_THREADS:
+              if (hashThreads == null) {
+                try {
+                  hashThreads = Integer.valueOf(flag.value, 10);
+                  if (hashThreads <= 0) {
+                    mq.error(
+                        flag.name + "=" + flag.value
+                        + " is not a positive integer");
+                  }
+                } catch (NumberFormatException ex) {
+                  mq.error(
+                      flag.name + "=" + flag.value
+                      + " is not a positive integer");
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case HASH_ALGORITHM:
+              if (hashAlgorithm == null) {
+                hashAlgorithm = HashAlgorithm.fromName(flag.value);
+                if (hashAlgorithm == null) {
+                  HashAlgorithm[] algorithms = HashAlgorithm.values();
+                  String[] names = new String[algorithms.length];
+                  for (int i = names.length; --i >= 0;) {
+                    names[i] = algorithms[i].name;
+                  }
+                  mq.error(DidYouMean.toMessage(
+                      "Unrecognized hash algorithm " + flag.value,
+                      String.valueOf(flag.value), names));
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case THREADS:
+              if (poolThreads == null) {
+                poolThreads = parsePoolThreads(flag, mq);
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case REMOTE_CACHE:
+              if (remoteCache == null) {
+                try {
+                  remoteCache = new URI(String.valueOf(flag.value));
+                  if (!("http".equals(remoteCache.getScheme())
+                        || "https".equals(remoteCache.getScheme()))) {
+                    mq.error(
+                        flag.name + "=" + flag.value + " is not an HTTP URL");
+                  }
+                } catch (URISyntaxException ex) {
+                  mq.error(flag.name + "=" + flag.value + " is not a URL");
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case SERVE_CACHE:
+              if (serveCache == null) {
+                if ("true".equals(flag.value) || null == flag.value) {
+                  serveCache = Boolean.TRUE;
+                } else if ("false".equals(flag.value)) {
+                  serveCache = Boolean.FALSE;
+                } else {
+                  mq.error("Expected boolean value for flag " + flag.name);
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case CACHE_SECRET_FILE:
+              if (cacheSecretFile == null) {
+                try {
+                  cacheSecretFile = fs.getPath(flag.value).toRealPath(false);
+                } catch (IOException ex) {
+                  mq.error("Bad cache secret file " + flag.value);
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
+            case KEEP_WORKING_DIRS:
+              if (keepWorkingDirs == null) {
+                if ("true".equals(flag.value) || null == flag.value) {
+                  keepWorkingDirs = Boolean.TRUE;
+                } else if ("false".equals(flag.value)) {
+                  keepWorkingDirs = Boolean.FALSE;
+                } else {
+                  mq.error("Expected boolean value for flag " + flag.name);
+                }
+              } else {
+                mq.error("Dupe arg " + flag.name);
+              }
+              break;
             default: throw new RuntimeException(flag.name);
           }
         } else {
@@ -241,11 +404,31 @@ final class CommandLineConfig implements Config {
       this.umask = umask != null ? umask.intValue() : DEFAULT_UMASK;
       this.wwwPort = wwwPort != null ? wwwPort.intValue() : -1;
       this.localhostTrusted = localhostTrusted != null && localhostTrusted;
+      this.persistentState = persistentState != null && persistentState;
+      this.hashThreads = hashThreads != null ? hashThreads.intValue() : -1;
+      this.hashAlgorithm = hashAlgorithm != null
+          ? hashAlgorithm : HashAlgorithm.DEFAULT;
+      this.poolThreads = poolThreads != null
+          ? poolThreads : ImmutableMap.<WorkerPools.Workload, Integer>of();
+      this.remoteCache = remoteCache;
+      this.serveCache = serveCache != null && serveCache;
+      this.cacheSecretFile = cacheSecretFile;
+      this.keepWorkingDirs = keepWorkingDirs != null && keepWorkingDirs;
       if (this.localhostTrusted && this.wwwPort == -1) {
         mq.error(
             FlagName.LOCALHOST_TRUSTED.flag
             + " specified but HTTP service not configured");
       }
+      if (this.serveCache && this.wwwPort == -1) {
+        mq.error(
+            FlagName.SERVE_CACHE.flag
+            + " specified but HTTP service not configured");
+      }
+      if (this.remoteCache != null && this.cacheSecretFile == null) {
+        mq.error(
+            FlagName.REMOTE_CACHE.flag + " specified but "
+            + FlagName.CACHE_SECRET_FILE.flag + " not");
+      }
     }
 
     if (clientRoot == null) {
@@ -295,6 +478,19 @@ final class CommandLineConfig implements Config {
         || (umask & 0x080) == 0) {
       mq.error("Invalid umask " + String.format("%04o", umask));
     }
+    if (cacheSecretFile != null) {
+      boolean ok;
+      try {
+        BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+            cacheSecretFile);
+        ok = attrs.isRegularFile();
+      } catch (IOException ex) {
+        ok = false;
+      }
+      if (!ok) {
+        mq.error("Cache secret file " + cacheSecretFile + " is not a file");
+      }
+    }
   }
 
   public static String toArgv(
@@ -354,6 +550,46 @@ final class CommandLineConfig implements Config {
     if (config.getLocalhostTrusted()) {
       argv.add(FlagName.LOCALHOST_TRUSTED.flag);
     }
+    if (config.getPersistentState()) {
+      argv.add(FlagName.PERSISTENT_STATE.flag);
+    }
+    int hashThreads = config.getHashThreads();
+    if (hashThreads != -1) {
+      argv.add(FlagName.HASH_THREADS.flag);
+      argv.add(Integer.toString(hashThreads));
+    }
+    HashAlgorithm hashAlgorithm = config.getHashAlgorithm();
+    if (hashAlgorithm != HashAlgorithm.DEFAULT) {
+      argv.add(FlagName.HASH_ALGORITHM.flag);
+      argv.add(hashAlgorithm.name);
+    }
+    Map<WorkerPools.Workload, Integer> poolThreads = config.getPoolThreads();
+    if (!poolThreads.isEmpty()) {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<WorkerPools.Workload, Integer> e
+           : poolThreads.entrySet()) {
+        if (sb.length() != 0) { sb.append(','); }
+        sb.append(e.getKey().name).append('=').append(e.getValue());
+      }
+      argv.add(FlagName.THREADS.flag);
+      argv.add(sb.toString());
+    }
+    URI remoteCache = config.getRemoteCache();
+    if (remoteCache != null) {
+      argv.add(FlagName.REMOTE_CACHE.flag);
+      argv.add(remoteCache.toString());
+    }
+    if (config.getServeCache()) {
+      argv.add(FlagName.SERVE_CACHE.flag);
+    }
+    Path cacheSecretFile = config.getCacheSecretFile();
+    if (cacheSecretFile != null) {
+      argv.add(FlagName.CACHE_SECRET_FILE.flag);
+      argv.add(cacheSecretFile.toString());
+    }
+    if (config.getKeepWorkingDirs()) {
+      argv.add(FlagName.KEEP_WORKING_DIRS.flag);
+    }
     int planStart = argv.size();
     boolean needsSep = false;
     for (Path pf : config.getPlanFiles()) {
@@ -402,6 +638,60 @@ final class CommandLineConfig implements Config {
 
   public boolean getLocalhostTrusted() { return localhostTrusted; }
 
+  public boolean getPersistentState() { return persistentState; }
+
+  public int getHashThreads() { return hashThreads; }
+
+  public HashAlgorithm getHashAlgorithm() { return hashAlgorithm; }
+
+  public Map<WorkerPools.Workload, Integer> getPoolThreads() {
+    return poolThreads;
+  }
+
+  public @Nullable URI getRemoteCache() { return remoteCache; }
+
+  public boolean getServeCache() { return serveCache; }
+
+  public @Nullable Path getCacheSecretFile() { return cacheSecretFile; }
+
+  public boolean getKeepWorkingDirs() { return keepWorkingDirs; }
+
+  private static Map<WorkerPools.Workload, Integer> parsePoolThreads(
+      CommandLineArgs.Flag flag, MessageQueue mq) {
+    Map<WorkerPools.Workload, Integer> poolThreads = Maps.newEnumMap(
+        WorkerPools.Workload.class);
+    String value = flag.value != null ? flag.value : "";
+    for (String part : value.split(",")) {
+      int eq = part.indexOf('=');
+      String name = eq >= 0 ? part.substring(0, eq) : part;
+      WorkerPools.Workload w = WorkerPools.Workload.fromName(name);
+      if (w == null) {
+        WorkerPools.Workload[] workloads = WorkerPools.Workload.values();
+        String[] names = new String[workloads.length];
+        for (int i = names.length; --i >= 0;) { names[i] = workloads[i].name; }
+        mq.error(DidYouMean.toMessage(
+            "Unrecognized worker pool " + name + " in " + flag.name, name,
+            names));
+        continue;
+      }
+      int n = -1;
+      if (eq >= 0) {
+        try {
+          n = Integer.parseInt(part.substring(eq + 1), 10);
+        } catch (NumberFormatException ex) {
+          // Reported below.
+        }
+      }
+      if (n <= 0) {
+        mq.error(flag.name + "=" + value + " has no positive integer for "
+                 + name);
+      } else if (poolThreads.put(w, n) != null) {
+        mq.error("Duplicate worker pool " + name + " in " + flag.name);
+      }
+    }
+    return ImmutableMap.copyOf(poolThreads);
+  }
+
   private static String commonPrefix(String a, String b) {
     int n = Math.min(a.length(), b.length());
     int i = 0;
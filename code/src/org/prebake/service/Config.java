@@ -14,8 +14,12 @@
 
 package org.prebake.service;
 
+import org.prebake.core.HashAlgorithm;
+
+import java.net.URI;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -68,4 +72,49 @@ public interface Config {
    * service.
    */
   boolean getLocalhostTrusted();
+  /**
+   * True iff file hashes and other state derived from the client directory
+   * should be stored under the <tt>.prebake</tt> directory so that they
+   * survive restarts of the service.
+   */
+  boolean getPersistentState();
+  /**
+   * The number of threads used to hash changed files, or -1 to use one per
+   * available processor.
+   */
+  int getHashThreads();
+  /**
+   * The number of threads in the pool for each class of work.  Workloads
+   * without an entry get
+   * {@link WorkerPools.Workload#getDefaultThreads a default}.
+   */
+  @Nonnull Map<WorkerPools.Workload, Integer> getPoolThreads();
+  /** The algorithm used to hash the content of files under the client root. */
+  @Nonnull HashAlgorithm getHashAlgorithm();
+  /**
+   * The base URI of an HTTP cache of bake outputs shared with other services,
+   * or null to only cache bake outputs locally.
+   * @see org.prebake.service.bake.RemoteCache
+   */
+  @Nullable URI getRemoteCache();
+  /**
+   * True iff the {@link #getWwwPort HTTP} service should let other services
+   * use this service's cache of bake outputs as their
+   * {@link #getRemoteCache remote cache}.
+   */
+  boolean getServeCache();
+  /**
+   * A file whose first line is a secret shared by the services that use the
+   * same {@link #getRemoteCache remote cache}, or null if there is none.
+   * Required if there is a remote cache.  When the cache is
+   * {@link #getServeCache served}, requests must carry the secret or the
+   * service's token.
+   */
+  @Nullable Path getCacheSecretFile();
+  /**
+   * True iff each product's working directory should be kept after a
+   * successful bake so that the next bake need only sync the inputs that
+   * changed, and tools can reuse what they left there.
+   */
+  boolean getKeepWorkingDirs();
 }
@@ -21,6 +21,8 @@ import org.prebake.js.CommonEnvironment;
 import org.prebake.js.JsonSource;
 import org.prebake.os.OperatingSystem;
 import org.prebake.os.RealOperatingSystem;
+import org.prebake.service.bake.RemoteCache;
+import org.prebake.service.www.CacheServlet;
 import org.prebake.service.www.MainServlet;
 import org.prebake.util.Clock;
 import org.prebake.util.CommandLineArgs;
@@ -30,7 +32,6 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 
@@ -55,8 +56,6 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -101,10 +100,11 @@ public final class Main {
     }
     ImmutableMap<String, ?> env = CommonEnvironment.makeEnvironment(
         config.getClientRoot().getRoot(), getSystemPropertyMap());
-    ScheduledExecutorService execer = MoreExecutors
-        .getExitingScheduledExecutorService(
-            new ScheduledThreadPoolExecutor(16));
-    OperatingSystem os = new RealOperatingSystem(fs, execer);
+    // Separate pools so that slow plan files do not starve bakes and vice
+    // versa.  Pool threads are daemons so they do not keep the VM alive.
+    WorkerPools pools = WorkerPools.create(config.getPoolThreads());
+    OperatingSystem os = new RealOperatingSystem(
+        fs, pools.get(WorkerPools.Workload.PROCESS_IO));
     final String token;
     {
       byte[] bytes = new byte[256];
@@ -135,7 +135,7 @@ public final class Main {
 
     final Logs logs = new Logs(highLevelLog, logger, hydra);
 
-    final Prebakery pb = new Prebakery(config, env, execer, os, logs) {
+    final Prebakery pb = new Prebakery(config, env, pools, os, logs) {
       @Override
       protected String makeToken() { return token; }
 
@@ -198,18 +198,39 @@ public final class Main {
 
     final Server server;
     if (config.getWwwPort() > 0) {
+      String secret = null;
+      Path cacheSecretFile = config.getCacheSecretFile();
+      if (cacheSecretFile != null) {
+        try {
+          secret = RemoteCache.readSecret(cacheSecretFile);
+        } catch (IOException ex) {
+          logger.log(Level.SEVERE, "Failed to read cache secret", ex);
+          System.exit(-1);
+        }
+      }
+      final String cacheSecret = secret;
       server = new Server(config.getWwwPort()) {
         @Override public String toString() { return "[Prebake Web Server]"; }
       };
       server.setSendServerVersion(false);
       server.setHandler(new AbstractHandler() {
         MainServlet servlet = new MainServlet(token, pb, TimeZone.getDefault());
+        CacheServlet cacheServlet = config.getServeCache()
+            ? new CacheServlet(
+                pb.getCacheDir(), config.getHashAlgorithm(), token,
+                cacheSecret, logger)
+            : null;
         public void handle(
             String tgt, Request r, HttpServletRequest req,
             HttpServletResponse resp)
             throws IOException, ServletException {
           try {
-            servlet.service(req, resp);
+            if (cacheServlet != null
+                && tgt.startsWith(CacheServlet.PATH_PREFIX)) {
+              cacheServlet.service(req, resp);
+            } else {
+              servlet.service(req, resp);
+            }
           } catch (RuntimeException ex) {
             logger.log(Level.WARNING, "Web request failed", ex);
             throw ex;
@@ -276,7 +297,12 @@ public final class Main {
       ""
       + "Usage: prebakery --root <dir> [--ignore <pattern>] [--tools <dirs>]\n"
       + "       [-v | -vv | -q | -qq | --logLevel=<level]\n"
-      + "       [--www-port <port>] [--umask <octal>] [<plan-file> ...]");
+      + "       [--www-port <port>] [--umask <octal>] [--persistent-state]\n"
+      + "       [--hash-threads <n>] [--hash-algorithm md5|sha256|murmur3]\n"
+      + "       [--threads plan=<n>,bake=<n>,io=<n>,housekeeping=<n>]\n"
+      + "       [--remote-cache <url>] [--serve-cache]\n"
+      + "       [--cache-secret-file <file>] [--keep-working-dirs]\n"
+      + "       [<plan-file> ...]");
 
   private static Map<String, String> getSystemPropertyMap() {
     ImmutableMap.Builder<String, String> sysProps = ImmutableMap.builder();
@@ -17,13 +17,18 @@ package org.prebake.service;
 import org.prebake.channel.Command;
 import org.prebake.channel.Commands;
 import org.prebake.channel.FileNames;
+import org.prebake.core.ArtifactListener;
 import org.prebake.core.BoundName;
 import org.prebake.core.Documentation;
+import org.prebake.core.HashAlgorithm;
 import org.prebake.fs.DbFileVersioner;
 import org.prebake.fs.DirectoryHooks;
 import org.prebake.fs.FilePerms;
 import org.prebake.fs.FileVersioner;
+import org.prebake.fs.IgnorePredicate;
 import org.prebake.os.OperatingSystem;
+import org.prebake.service.bake.ActionCache;
+import org.prebake.service.bake.RemoteCache;
 import org.prebake.service.bake.Baker;
 import org.prebake.service.plan.DependencyCycleException;
 import org.prebake.service.plan.Ingredient;
@@ -38,13 +43,15 @@ import org.prebake.service.tools.ToolSignature;
 import com.google.caja.lexer.escaping.UriUtil;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.Environment;
 
 import java.io.Closeable;
@@ -56,6 +63,7 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemException;
 import java.nio.file.Path;
@@ -67,11 +75,18 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -92,13 +107,17 @@ public abstract class Prebakery implements Closeable {
   private final String token;
   private final LinkedBlockingQueue<Commands> cmdQueue;
   private final Logs logs;
+  private final WorkerPools pools;
+  /** Used for housekeeping. */
   private final ScheduledExecutorService execer;
   private final OperatingSystem os;
   private Environment env;
   private FileVersioner files;
+  private ExecutorService hashExecer;
   private Runnable onClose;
-  private Predicate<Path> toWatch;
+  private IgnorePredicate toWatch;
   private DirectoryHooks hooks;
+  private int scanThreads;
   private Consumer<Path> pathConsumer;
   private Consumer<Commands> commandConsumer;
   private ToolBox tools;
@@ -121,14 +140,26 @@ public abstract class Prebakery implements Closeable {
       + "|/\\.DS_Store$",
       Pattern.DOTALL);
 
+  /** A service that does all its work on the given executor. */
   public Prebakery(
       Config config, ImmutableMap<String, ?> commonJsEnv,
       ScheduledExecutorService execer, OperatingSystem os, Logs logs) {
+    this(config, commonJsEnv, WorkerPools.sharing(execer), os, logs);
+  }
+
+  /**
+   * @param pools the thread pools used for each class of work.  They are
+   *     shut down when the service is closed.
+   */
+  public Prebakery(
+      Config config, ImmutableMap<String, ?> commonJsEnv,
+      WorkerPools pools, OperatingSystem os, Logs logs) {
     assert config != null;
     config = staticCopy(config);
     this.config = config;
     this.commonJsEnv = commonJsEnv;
-    this.execer = execer;
+    this.pools = pools;
+    this.execer = pools.get(WorkerPools.Workload.HOUSEKEEPING);
     this.os = os;
     this.logs = logs;
     this.token = makeToken();
@@ -159,14 +190,21 @@ public abstract class Prebakery implements Closeable {
         Closeables.closeQuietly(tools);
         tools = null;
       }
+      if (baker != null) {
+        baker.close();
+      }
       if (files != null) {
         files.close();
         files = null;
       }
+      if (hashExecer != null) {
+        hashExecer.shutdown();
+        hashExecer = null;
+      }
       if (os instanceof Closeable) {
         Closeables.closeQuietly((Closeable) os);
       }
-      if (!execer.isShutdown()) { execer.shutdown(); }
+      pools.shutdown();
       // Close the DB environment after DB users.
       if (env != null) {
         env.close();
@@ -194,6 +232,15 @@ public abstract class Prebakery implements Closeable {
 
   public Config getConfig() { return config; }
 
+  /**
+   * The directory under which the outputs of bakes are cached.
+   * @see org.prebake.service.www.CacheServlet
+   */
+  public Path getCacheDir() {
+    return config.getClientRoot().resolve(FileNames.DIR)
+        .resolve(FileNames.CACHE);
+  }
+
   /**
    * Snapshot of the available valid tools.
    * @return a map m such that map {@code m.get(k).name.equals(k)}.
@@ -255,6 +302,12 @@ public abstract class Prebakery implements Closeable {
 
   public HighLevelLog getHighLevelLog() { return logs.highLevelLog; }
 
+  /** Size, queue depth and utilization of the service's thread pools. */
+  public ImmutableMap<String, ImmutableMap<String, Object>>
+      getWorkerPoolStats() {
+    return pools.getStats();
+  }
+
   /**
    * @param portHint the port to use or 0 to let the system choose a port.
    * @param q receives commands from the outside.
@@ -377,53 +430,131 @@ public abstract class Prebakery implements Closeable {
     }
     write(tokenFile, token);
 
-    this.toWatch = new Predicate<Path>() {
-      final Pattern regex;
-      {
-        // Make sure the clientRoot and everything under it is ignored.
-        Pattern base = config.getIgnorePattern() != null
-            ? config.getIgnorePattern() : DEFAULT_IGNORE_PATTERN;
-        String pattern = base.pattern();
-        Path clientRoot = config.getClientRoot();
-        pattern += "|^" + Pattern.quote(clientRoot.toString()) + "(?:"
-            + Pattern.quote(clientRoot.getFileSystem().getSeparator()) + ")?$";
-        regex = Pattern.compile(pattern, base.flags());
-      }
-      public boolean apply(Path p) {
-        String pathStr = p.toString();
-        String sep = p.getFileSystem().getSeparator();
-        if (!"/".equals(sep)) { pathStr = pathStr.replace(sep, "/"); }
-        return !regex.matcher(pathStr).find();
-      }
-    };
+    {
+      // Make sure the clientRoot and everything under it is ignored.
+      Pattern base = config.getIgnorePattern() != null
+          ? config.getIgnorePattern() : DEFAULT_IGNORE_PATTERN;
+      String pattern = base.pattern();
+      pattern += "|^" + Pattern.quote(clientRoot.toString()) + "(?:"
+          + Pattern.quote(clientRoot.getFileSystem().getSeparator()) + ")?$";
+      this.toWatch = new IgnorePredicate(
+          Pattern.compile(pattern, base.flags()));
+    }
 
     this.env = createDbEnv(dir);
-    this.files = new DbFileVersioner(env, clientRoot, toWatch, logs.logger);
+    int hashThreads = config.getHashThreads();
+    if (hashThreads == -1) {
+      hashThreads = Runtime.getRuntime().availableProcessors();
+    }
+    // Walking the tree at startup is bounded by the same limit as hashing.
+    this.scanThreads = hashThreads;
+    // The thread that consumes file updates hashes files too.
+    if (hashThreads > 1) {
+      this.hashExecer = Executors.newFixedThreadPool(
+          hashThreads - 1, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+              Thread th = new Thread(
+                  r, "prebake-hasher-" + counter.incrementAndGet());
+              th.setDaemon(true);
+              return th;
+            }
+          });
+    }
+    this.files = new DbFileVersioner(
+        env, clientRoot, toWatch, config.getPersistentState(),
+        config.getHashAlgorithm(), hashExecer, hashThreads, execer,
+        logs.logger);
+    // Cached outputs are state that survives restarts, and are needed to
+    // share outputs with other services.
+    ActionCache actionCache = null;
+    URI remoteCache = config.getRemoteCache();
+    if (config.getPersistentState() || remoteCache != null
+        || config.getServeCache()) {
+      actionCache = new ActionCache(
+          files, getCacheDir(),
+          remoteCache != null
+              ? new RemoteCache(
+                  remoteCache,
+                  RemoteCache.readSecret(config.getCacheSecretFile()))
+              : null,
+          logs.logger);
+    }
+    Database productStore = null;
+    if (config.getPersistentState()) {
+      DatabaseConfig productConfig = new DatabaseConfig();
+      productConfig.setAllowCreate(true);
+      productStore = env.openDatabase(null, "products", productConfig);
+    }
     this.baker = new Baker(
-        os, files, commonJsEnv, config.getUmask(), logs, execer);
+        os, files, commonJsEnv, config.getUmask(), logs, pools, actionCache,
+        productStore, config.getKeepWorkingDirs());
+    // The planner re-runs plan files when tools change, but is created after
+    // the tool box, so forward to it once it exists.
+    final AtomicReference<Planner> plannerRef = new AtomicReference<Planner>();
+    ArtifactListener<ToolSignature> plannerToolListener
+        = new ArtifactListener<ToolSignature>() {
+      public void artifactChanged(ToolSignature sig) {
+        Planner planner = plannerRef.get();
+        if (planner != null) { planner.toolListener.artifactChanged(sig); }
+      }
+      public void artifactDestroyed(String toolName) {
+        Planner planner = plannerRef.get();
+        if (planner != null) {
+          planner.toolListener.artifactDestroyed(toolName);
+        }
+      }
+    };
     this.tools = new ToolBox(
         files, commonJsEnv, config.getToolDirs(), logs,
-        baker.toolListener, execer);
+        ArtifactListener.Factory.chain(
+            baker.toolListener, plannerToolListener),
+        pools.get(WorkerPools.Workload.PLAN));
     this.baker.setToolBox(this.tools);
+    Database planGraphStore = null;
+    if (config.getPersistentState()) {
+      DatabaseConfig planGraphConfig = new DatabaseConfig();
+      planGraphConfig.setAllowCreate(true);
+      // The graph is written whole on each change, so only the last write
+      // before a shutdown needs to reach the disk.
+      planGraphConfig.setDeferredWrite(true);
+      planGraphStore = env.openDatabase(null, "planGraph", planGraphConfig);
+    }
     this.planner = new Planner(
         files, commonJsEnv, tools, config.getPlanFiles(), logs,
-        this.baker.prodListener, execer);
+        this.baker.prodListener, pools.get(WorkerPools.Workload.PLAN),
+        pools.get(WorkerPools.Workload.HOUSEKEEPING), planGraphStore);
+    plannerRef.set(this.planner);
   }
 
   private void setupFileSystemWatcher() {
-    hooks = new DirectoryHooks(config.getClientRoot(), toWatch);
+    if (config.getPersistentState()) {
+      // Bring hashes stored by a previous run up-to-date before the watcher
+      // starts reporting changes.
+      files.reconcile();
+    }
+    // Don't descend into ignored directories like .svn.
+    hooks = new DirectoryHooks(
+        config.getClientRoot(), toWatch, toWatch.subtreePredicate(),
+        scanThreads);
     pathConsumer = new Consumer<Path>(hooks.getUpdates()) {
       @Override
       protected void consume(BlockingQueue<? extends Path> q, Path x) {
         List<Path> updates = Lists.newArrayList();
         updates.add(x);
-        q.drainTo(updates, 64);
+        // Take big batches so that files can be hashed in parallel and the
+        // results stored together.
+        q.drainTo(updates, 1024);
         files.updateFiles(updates);
       }
     };
     pathConsumer.start();
     try {
       hooks.start();
+      logs.logger.log(
+          Level.INFO, "Watching {0} directories containing {1} files",
+          new Object[] {
+            hooks.getDirectoriesScanned(), hooks.getFilesScanned() });
     } catch (IOException ex) {
       logs.logger.log(Level.SEVERE, "Failed to start directory hooks", ex);
     }
@@ -590,17 +721,35 @@ public abstract class Prebakery implements Closeable {
   private void sync() throws InterruptedException {
     DirectoryHooks hooks;
     Consumer<Path> pathConsumer;
+    FileVersioner files;
     synchronized (this) {
       hooks = this.hooks;
       pathConsumer = this.pathConsumer;
+      files = this.files;
     }
     hooks.waitForStart();
     pathConsumer.waitUntilEmpty();
+    // Invalidation happens off the path consumer's thread, so wait for it
+    // too lest a bake find a product up-to-date that is about to be
+    // invalidated.
+    files.awaitInvalidations();
   }
 
   private void doBake(
       final Set<BoundName> products, Recipe recipe,
       final ClientChannel outChannel) {
+    // The housekeeping pool rejects work once it is shutting down, and a
+    // dropped listener would leave the client's channel open, so run
+    // listeners on the calling thread instead.
+    final Executor listenerExecutor = new Executor() {
+      public void execute(Runnable listener) {
+        try {
+          execer.execute(listener);
+        } catch (RejectedExecutionException ex) {
+          listener.run();
+        }
+      }
+    };
     recipe.cook(new Recipe.Chef() {
       List<BoundName> ok = Collections.synchronizedList(
           Lists.<BoundName>newArrayList());
@@ -609,32 +758,50 @@ public abstract class Prebakery implements Closeable {
 
       public void cook(
           final Ingredient ingredient, final Function<Boolean, ?> whenDone) {
-        execer.submit(new Runnable() {
+        final Logger logger = logs.logger;
+        final BoundName prod = ingredient.product;
+        logger.log(Level.INFO, "Cooking {0}", prod);
+        final ListenableFuture<Boolean> baking;
+        try {
+          baking = baker.bake(prod, ingredient.preRequisites);
+        } catch (RuntimeException ex) {
+          logger.log(Level.SEVERE, "Failed to build " + prod, ex);
+          cooked(prod, false, whenDone);
+          return;
+        }
+        // Rather than tying up a thread waiting for the bake, report back once
+        // it is done.  The listener never blocks, and running it on the
+        // housekeeping pool keeps a long chain of already up-to-date products
+        // from recursing through whenDone on one stack.
+        baking.addListener(new Runnable() {
           public void run() {
-            Logger logger = logs.logger;
-            logger.log(Level.INFO, "Cooking {0}", ingredient.product);
-            BoundName prod = ingredient.product;
             boolean status = false;
             try {
-              status = baker.bake(prod, ingredient.preRequisites).get();
+              // Does not block since the bake is done.
+              status = Boolean.TRUE.equals(baking.get());
             } catch (ExecutionException ex) {
               logger.log(Level.SEVERE, "Failed to build " + prod, ex);
             } catch (InterruptedException ex) {
               logger.log(Level.SEVERE, "Failed to build " + prod, ex);
-            } catch (RuntimeException ex) {
+            } catch (RuntimeException ex) {  // Cancelled
               logger.log(Level.SEVERE, "Failed to build " + prod, ex);
             } finally {
-              (status ? ok : failed).add(prod);
-              if (status) {
-                logger.log(Level.INFO, "Cooked {0}", ingredient.product);
-              } else {
-                logger.log(
-                    Level.WARNING, "Failed to cook {0}", ingredient.product);
-              }
-              whenDone.apply(status);
+              cooked(prod, status, whenDone);
             }
           }
-        });
+        }, listenerExecutor);
+      }
+
+      private void cooked(
+          BoundName prod, boolean status, Function<Boolean, ?> whenDone) {
+        Logger logger = logs.logger;
+        (status ? ok : failed).add(prod);
+        if (status) {
+          logger.log(Level.INFO, "Cooked {0}", prod);
+        } else {
+          logger.log(Level.WARNING, "Failed to cook {0}", prod);
+        }
+        whenDone.apply(status);
       }
 
       public void done(boolean allSucceeded) {
@@ -670,6 +837,15 @@ public abstract class Prebakery implements Closeable {
     final int umask = config.getUmask();
     final int wwwPort = config.getWwwPort();
     final boolean localhostTrusted = config.getLocalhostTrusted();
+    final boolean persistentState = config.getPersistentState();
+    final int hashThreads = config.getHashThreads();
+    final HashAlgorithm hashAlgorithm = config.getHashAlgorithm();
+    final Map<WorkerPools.Workload, Integer> poolThreads
+        = ImmutableMap.copyOf(config.getPoolThreads());
+    final URI remoteCache = config.getRemoteCache();
+    final boolean serveCache = config.getServeCache();
+    final Path cacheSecretFile = config.getCacheSecretFile();
+    final boolean keepWorkingDirs = config.getKeepWorkingDirs();
     return new Config() {
       public Path getClientRoot() { return clientRoot; }
       public Pattern getIgnorePattern() { return ignorePattern; }
@@ -679,6 +855,16 @@ public abstract class Prebakery implements Closeable {
       public int getUmask() { return umask; }
       public int getWwwPort() { return wwwPort; }
       public boolean getLocalhostTrusted() { return localhostTrusted; }
+      public boolean getPersistentState() { return persistentState; }
+      public int getHashThreads() { return hashThreads; }
+      public HashAlgorithm getHashAlgorithm() { return hashAlgorithm; }
+      public Map<WorkerPools.Workload, Integer> getPoolThreads() {
+        return poolThreads;
+      }
+      public URI getRemoteCache() { return remoteCache; }
+      public boolean getServeCache() { return serveCache; }
+      public Path getCacheSecretFile() { return cacheSecretFile; }
+      public boolean getKeepWorkingDirs() { return keepWorkingDirs; }
     };
   }
 
@@ -0,0 +1,85 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A fixed size pool of daemon threads that keeps track of how busy it is, so
+ * that pools can be sized for the machine they run on.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public final class WorkerPool extends ScheduledThreadPoolExecutor {
+  private final String name;
+  private final long createdNanos = System.nanoTime();
+  /** Total time spent running tasks by tasks that have finished. */
+  private final AtomicLong busyNanos = new AtomicLong();
+  /** When the task running on the current thread started. */
+  private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+    @Override protected long[] initialValue() { return new long[1]; }
+  };
+
+  /**
+   * @param name used to name threads.
+   * @param nThreads the number of threads in the pool.
+   */
+  public WorkerPool(final String name, int nThreads) {
+    super(nThreads, new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread th = new Thread(
+            r, "prebake-" + name + "-" + counter.incrementAndGet());
+        th.setDaemon(true);
+        return th;
+      }
+    });
+    this.name = name;
+  }
+
+  public String getName() { return name; }
+
+  /** The number of tasks waiting for a thread. */
+  public int getQueueDepth() { return getQueue().size(); }
+
+  /**
+   * The fraction of the pool's thread time, since the pool was created, that
+   * was spent running tasks.  Tasks still running are not counted.
+   */
+  public double getUtilization() {
+    long elapsed = (System.nanoTime() - createdNanos) * getCorePoolSize();
+    return elapsed > 0 ? ((double) busyNanos.get()) / elapsed : 0d;
+  }
+
+  @Override
+  protected void beforeExecute(Thread th, Runnable r) {
+    super.beforeExecute(th, r);
+    taskStart.get()[0] = System.nanoTime();
+  }
+
+  @Override
+  protected void afterExecute(Runnable r, Throwable th) {
+    busyNanos.addAndGet(System.nanoTime() - taskStart.get()[0]);
+    super.afterExecute(r, th);
+  }
+
+  @Override public String toString() { return "[WorkerPool " + name + "]"; }
+}
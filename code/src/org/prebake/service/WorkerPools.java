@@ -0,0 +1,136 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * The thread pools used by the service, one per class of work, so that a
+ * slow plan file cannot starve bakes and vice versa.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public final class WorkerPools {
+  /** A class of work that gets its own pool. */
+  public enum Workload {
+    /** Running plan files and tool files. */
+    PLAN("plan"),
+    /** Baking products. */
+    BAKE("bake"),
+    /** Shuttling bytes between processes, and waiting on processes. */
+    PROCESS_IO("io"),
+    /**
+     * Invalidating artifacts, deleting obsolete working directories, and
+     * coordinating bakes.
+     */
+    HOUSEKEEPING("housekeeping"),
+    ;
+
+    /** The name used on the command line and in thread names. */
+    public final String name;
+
+    Workload(String name) { this.name = name; }
+
+    /** The size of the pool when none is configured. */
+    public int getDefaultThreads() {
+      int nCpus = Runtime.getRuntime().availableProcessors();
+      switch (this) {
+        case PLAN: case BAKE: return nCpus;
+        // Pipe flushing can block a thread on a read, so this matches the
+        // size of the single pool used before pools were split.
+        case PROCESS_IO: return 16;
+        case HOUSEKEEPING: return 8;
+      }
+      throw new AssertionError(this);
+    }
+
+    public static @Nullable Workload fromName(String name) {
+      for (Workload w : values()) {
+        if (w.name.equals(name)) { return w; }
+      }
+      return null;
+    }
+  }
+
+  private final ImmutableMap<Workload, ScheduledExecutorService> pools;
+
+  private WorkerPools(Map<Workload, ScheduledExecutorService> pools) {
+    this.pools = ImmutableMap.copyOf(pools);
+  }
+
+  /**
+   * @param threadCounts the number of threads per workload.  Workloads not
+   *     present get {@link Workload#getDefaultThreads a default size}.
+   */
+  public static WorkerPools create(Map<Workload, Integer> threadCounts) {
+    Map<Workload, ScheduledExecutorService> pools
+        = Maps.newEnumMap(Workload.class);
+    for (Workload w : Workload.values()) {
+      Integer n = threadCounts.get(w);
+      pools.put(
+          w, new WorkerPool(w.name, n != null ? n : w.getDefaultThreads()));
+    }
+    return new WorkerPools(pools);
+  }
+
+  /** Pools that all use the same executor, as in tests. */
+  public static WorkerPools sharing(ScheduledExecutorService execer) {
+    Map<Workload, ScheduledExecutorService> pools
+        = Maps.newEnumMap(Workload.class);
+    for (Workload w : Workload.values()) { pools.put(w, execer); }
+    return new WorkerPools(pools);
+  }
+
+  public ScheduledExecutorService get(Workload w) { return pools.get(w); }
+
+  /**
+   * Size, queue depth, and utilization for each pool that keeps track of
+   * them, keyed by workload name.
+   */
+  public ImmutableMap<String, ImmutableMap<String, Object>> getStats() {
+    ImmutableMap.Builder<String, ImmutableMap<String, Object>> b
+        = ImmutableMap.builder();
+    for (Map.Entry<Workload, ScheduledExecutorService> e : pools.entrySet()) {
+      if (!(e.getValue() instanceof WorkerPool)) { continue; }
+      WorkerPool pool = (WorkerPool) e.getValue();
+      Map<String, Object> stats = Maps.newLinkedHashMap();
+      stats.put("threads", pool.getCorePoolSize());
+      stats.put("active", pool.getActiveCount());
+      stats.put("queued", pool.getQueueDepth());
+      stats.put("completed", pool.getCompletedTaskCount());
+      stats.put("utilization", pool.getUtilization());
+      b.put(e.getKey().name, ImmutableMap.copyOf(stats));
+    }
+    return b.build();
+  }
+
+  /** Shuts down each distinct pool. */
+  public void shutdown() {
+    Set<ScheduledExecutorService> distinct = Sets.newHashSet();
+    for (ScheduledExecutorService pool : pools.values()) {
+      if (distinct.add(pool) && !pool.isShutdown()) { pool.shutdown(); }
+    }
+  }
+}
@@ -0,0 +1,463 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.channel.FileNames;
+import org.prebake.core.Hash;
+import org.prebake.core.ImmutableGlobSet;
+import org.prebake.fs.FileVersioner;
+import org.prebake.service.plan.Product;
+import org.prebake.service.tools.ToolProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Remembers the outputs of product bakes so that a product whose inputs,
+ * tools and definition are the same as those of an earlier bake can be
+ * brought up-to-date without running any tools.
+ *
+ * <p>
+ * Under the cache directory, {@code actions/} holds one file per bake, named
+ * by the hash of what went into the bake, that lists the files the tools
+ * loaded and the outputs.  Output content is stored once under
+ * {@code blobs/}, named by the hash of the content.
+ *
+ * <p>
+ * If there is a {@link RemoteCache}, bakes not found locally are looked for
+ * there, and the outputs of bakes are also stored there so that other
+ * services that share it can use them.
+ *
+ * <p>
+ * Entries are not trusted to name only files under the client root or only
+ * outputs of the product, and blobs are not trusted to have the content their
+ * names say, whether they come from the remote cache or the cache directory.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public final class ActionCache {
+  private static final int FORMAT = 1;
+  private static final String TMP_PREFIX = "tmp-";
+
+  private final FileVersioner files;
+  private final Path actionsDir;
+  private final Path blobsDir;
+  private final @Nullable RemoteCache remote;
+  private final Logger logger;
+  /**
+   * Distinguishes temporary files written by concurrent bakes.  It restarts
+   * with each service, so temporary files left by an earlier service are
+   * deleted on construction.
+   */
+  private final AtomicLong tmpCounter = new AtomicLong();
+
+  /**
+   * @param cacheDir a directory that need not exist yet.
+   * @param remote consulted when a bake is not cached locally.
+   */
+  public ActionCache(
+      FileVersioner files, Path cacheDir, @Nullable RemoteCache remote,
+      Logger logger) {
+    this.files = files;
+    this.actionsDir = cacheDir.resolve(FileNames.ACTIONS);
+    this.blobsDir = cacheDir.resolve(FileNames.BLOBS);
+    this.remote = remote;
+    this.logger = logger;
+    deleteTempFiles(actionsDir);
+    deleteTempFiles(blobsDir);
+  }
+
+  /** Deletes temporary files left in dir by a service that did not finish. */
+  private void deleteTempFiles(Path dir) {
+    if (dir.notExists()) { return; }
+    try {
+      DirectoryStream<Path> children = dir.newDirectoryStream();
+      try {
+        for (Path child : children) {
+          if (child.getName().toString().startsWith(TMP_PREFIX)) {
+            child.deleteIfExists();
+          }
+        }
+      } finally {
+        children.close();
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to delete temporary files", ex);
+    }
+  }
+
+  /**
+   * The cache key for a bake of product, which does not depend on anything
+   * that is only known after the product's tools have run.
+   * @param inputs paths relative to the client root of the product's inputs.
+   * @param inputHashes the hashes of inputs.
+   */
+  Hash keyFor(
+      Product product, ToolProvider toolbox, List<Path> inputs,
+      List<Hash> inputHashes)
+      throws IOException {
+    Hash.Builder key = ProductRecords.withDefinition(
+        Hash.builder(files.getHashAlgorithm()).withString("v" + FORMAT),
+        product, toolbox);
+    for (int i = 0, n = inputs.size(); i < n; ++i) {
+      key.withString(inputs.get(i).toString()).withHash(inputHashes.get(i));
+    }
+    return key.build();
+  }
+
+  /**
+   * The outputs stored under the given key, or null if there are none or if a
+   * file loaded by the product's tools has changed since they were stored.
+   * @param outputGlobs the product's outputs which all of the entry's outputs
+   *     must match.
+   */
+  @Nullable Entry lookup(Hash key, ImmutableGlobSet outputGlobs) {
+    Path entryFile = actionsDir.resolve(key.toHexString());
+    byte[] entryBytes = null;
+    try {
+      InputStream in = entryFile.newInputStream();
+      try {
+        entryBytes = ByteStreams.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      // Not cached locally.
+    }
+    boolean isRemote = false;
+    if (entryBytes == null && remote != null) {
+      try {
+        entryBytes = remote.get(FileNames.ACTIONS, key);
+      } catch (IOException ex) {
+        remoteFailed(ex);
+      }
+      isRemote = true;
+    }
+    if (entryBytes == null) { return null; }
+    Entry e;
+    try {
+      DataInputStream din = new DataInputStream(
+          new ByteArrayInputStream(entryBytes));
+      if (din.readInt() != FORMAT) { return null; }
+      PathsAndHashes deps = readPathsAndHashes(din, files.getVersionRoot());
+      PathsAndHashes outputs = readPathsAndHashes(din, null);
+      for (Path output : outputs.paths) {
+        if (!outputGlobs.matches(output)) {
+          throw new IOException(output + " is not an output of the product");
+        }
+      }
+      e = new Entry(deps, outputs);
+    } catch (IOException ex) {
+      logger.log(
+          Level.WARNING, "Bad action cache entry " + key.toHexString(), ex);
+      return null;
+    }
+    try {
+      if (!files.hashFiles(e.dependencies).equals(e.dependencyHashes)) {
+        return null;
+      }
+    } catch (IOException ex) {
+      return null;  // A dependency no longer exists.
+    }
+    for (Hash blob : e.outputHashes) {
+      if (hasBlob(blob)) { continue; }
+      if (remote == null || !fetchBlob(blob)) { return null; }
+    }
+    if (isRemote) {
+      // So that the next lookup need not go over the network.
+      try {
+        mkdirs(actionsDir);
+        writeAtomically(entryBytes, entryFile);
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Failed to cache " + entryFile, ex);
+      }
+    }
+    return e;
+  }
+
+  /**
+   * True if the blob is in the cache directory with the content its name says.
+   * A blob with other content is deleted.
+   */
+  private boolean hasBlob(Hash blob) {
+    Path p = blobsDir.resolve(blob.toHexString());
+    if (p.notExists()) { return false; }
+    try {
+      if (Hash.builder(blob.getAlgorithm()).withFile(p).build().equals(blob)) {
+        return true;
+      }
+      logger.log(Level.WARNING, "Deleting corrupt blob {0}", p);
+      p.deleteIfExists();
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to check blob " + p, ex);
+    }
+    return false;
+  }
+
+  /** Copies a blob from the remote cache if its content is what is expected. */
+  private boolean fetchBlob(Hash blob) {
+    try {
+      mkdirs(blobsDir);
+      Path tmp = tmpFile(blobsDir);
+      try {
+        if (!remote.fetch(FileNames.BLOBS, blob, tmp)) { return false; }
+        // Don't trust the remote cache to serve the content that was asked for.
+        Hash actual = Hash.builder(blob.getAlgorithm()).withFile(tmp).build();
+        if (!actual.equals(blob)) {
+          logger.log(
+              Level.WARNING, "Remote cache {0} has bad content for blob {1}",
+              new Object[] { remote.getBase(), blob.toHexString() });
+          return false;
+        }
+        tmp.moveTo(
+            blobsDir.resolve(blob.toHexString()),
+            StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        tmp.deleteIfExists();
+      }
+      return true;
+    } catch (IOException ex) {
+      remoteFailed(ex);
+      return false;
+    }
+  }
+
+  private void remoteFailed(IOException ex) {
+    logger.log(
+        Level.WARNING, "Failed to read from remote cache " + remote.getBase(),
+        ex);
+  }
+
+  /**
+   * Copies the outputs of a cached bake into a working directory.
+   */
+  void materialize(Entry e, Path workingDir) throws IOException {
+    for (int i = 0, n = e.outputs.size(); i < n; ++i) {
+      Path out = workingDir.resolve(e.outputs.get(i));
+      // We use 0700 since we're only operating in the working dir.
+      Baker.mkdirs(out.getParent(), 0700);
+      blobsDir.resolve(e.outputHashes.get(i).toHexString()).copyTo(
+          out, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+
+  /**
+   * Stores the outputs of a successful bake.  Nothing is stored if an input or
+   * a file that the tools loaded has changed since it was hashed, since the
+   * outputs might then have been produced from content other than that the
+   * key describes.
+   * @param inputs the client files for the product's inputs.
+   * @param inputHashes the hashes of inputs that went into key.
+   * @param dependencies client files other than inputs that the tools loaded.
+   * @param prereqHash the hash of the inputs' hashes followed by the
+   *     dependencies' hashes as they were when the tools loaded them.
+   * @param outputs client files produced by the bake.
+   */
+  void store(
+      Hash key, List<Path> inputs, List<Hash> inputHashes,
+      List<Path> dependencies, Hash prereqHash, List<Path> outputs) {
+    Path root = files.getVersionRoot();
+    ImmutableList<Hash> blobHashes;
+    byte[] entryBytes;
+    try {
+      if (!files.hashFiles(inputs).equals(inputHashes)) { return; }
+      ImmutableList<Hash> dependencyHashes = files.hashFiles(dependencies);
+      Hash.Builder current = Hash.builder(prereqHash.getAlgorithm());
+      for (Hash h : inputHashes) { current.withHash(h); }
+      for (Hash h : dependencyHashes) { current.withHash(h); }
+      if (!current.build().equals(prereqHash)) { return; }
+      ImmutableList.Builder<Path> relOutputs = ImmutableList.builder();
+      ImmutableList.Builder<Hash> outputHashes = ImmutableList.builder();
+      mkdirs(blobsDir);
+      for (Path output : outputs) {
+        relOutputs.add(root.relativize(output));
+        outputHashes.add(storeBlob(output));
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(FORMAT);
+      writePathsAndHashes(
+          relativize(root, dependencies), dependencyHashes, out);
+      blobHashes = outputHashes.build();
+      writePathsAndHashes(relOutputs.build(), blobHashes, out);
+      out.close();
+      entryBytes = bytes.toByteArray();
+      mkdirs(actionsDir);
+      writeAtomically(entryBytes, actionsDir.resolve(key.toHexString()));
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to store outputs in action cache", ex);
+      return;
+    }
+    if (remote != null) {
+      try {
+        // Blobs first so that another service never sees an entry whose
+        // outputs are missing.
+        for (Hash blob : blobHashes) {
+          remote.put(
+              FileNames.BLOBS, blob, blobsDir.resolve(blob.toHexString()));
+        }
+        remote.put(FileNames.ACTIONS, key, entryBytes);
+      } catch (IOException ex) {
+        logger.log(
+            Level.WARNING,
+            "Failed to store outputs in remote cache " + remote.getBase(), ex);
+      }
+    }
+  }
+
+  private void writeAtomically(byte[] content, Path dest) throws IOException {
+    Path tmp = tmpFile(dest.getParent());
+    OutputStream out = tmp.newOutputStream();
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    tmp.moveTo(dest, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Hash storeBlob(Path p) throws IOException {
+    Hash h = Hash.builder(files.getHashAlgorithm()).withFile(p).build();
+    Path blob = blobsDir.resolve(h.toHexString());
+    if (blob.notExists()) {
+      Path tmp = tmpFile(blobsDir);
+      p.copyTo(tmp, StandardCopyOption.COPY_ATTRIBUTES);
+      // Blobs with the same name have the same content so it does not matter
+      // which of two concurrent bakes wins.
+      tmp.moveTo(blob, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return h;
+  }
+
+  private Path tmpFile(Path dir) {
+    return dir.resolve(
+        TMP_PREFIX + tmpCounter.incrementAndGet() + "-" + FORMAT);
+  }
+
+  private static void mkdirs(Path dir) throws IOException {
+    // Only the service reads the cache.
+    Baker.mkdirs(dir, 0700);
+  }
+
+  private ImmutableList<Path> relativize(Path root, List<Path> paths)
+      throws IOException {
+    ImmutableList.Builder<Path> b = ImmutableList.builder();
+    for (Path p : paths) {
+      if (!p.startsWith(root)) {
+        throw new IOException("Cannot cache dependency " + p);
+      }
+      b.add(root.relativize(p));
+    }
+    return b.build();
+  }
+
+  private static void writePathsAndHashes(
+      List<Path> paths, List<Hash> hashes, DataOutputStream out)
+      throws IOException {
+    out.writeInt(paths.size());
+    for (int i = 0, n = paths.size(); i < n; ++i) {
+      out.writeUTF(paths.get(i).toString());
+      byte[] hash = hashes.get(i).toDatabaseEntry().getData();
+      out.writeShort(hash.length);
+      out.write(hash);
+    }
+  }
+
+  /**
+   * @param root if not null, paths are resolved against it.  Otherwise they
+   *     are left relative.
+   * @throws IOException if a path is not a relative path that stays under
+   *     the directory it is resolved against.
+   */
+  private PathsAndHashes readPathsAndHashes(
+      DataInputStream in, @Nullable Path root)
+      throws IOException {
+    ImmutableList.Builder<Path> paths = ImmutableList.builder();
+    ImmutableList.Builder<Hash> hashes = ImmutableList.builder();
+    for (int i = in.readInt(); --i >= 0;) {
+      String path = in.readUTF();
+      byte[] hash = new byte[in.readUnsignedShort()];
+      in.readFully(hash);
+      if (Hash.algorithmOf(hash) == null) {
+        throw new IOException("Unrecognized hash algorithm");
+      }
+      Path p = files.getFileSystem().getPath(path);
+      if (!isRelativeAndNormal(p)) {
+        throw new IOException("Bad path " + path);
+      }
+      paths.add(root != null ? root.resolve(p) : p);
+      hashes.add(Hash.fromDatabaseEntry(new DatabaseEntry(hash)));
+    }
+    return new PathsAndHashes(paths.build(), hashes.build());
+  }
+
+  private static boolean isRelativeAndNormal(Path p) {
+    if (p.isAbsolute() || p.getRoot() != null || "".equals(p.toString())
+        || !p.equals(p.normalize())) {
+      return false;
+    }
+    for (Path name : p) {
+      if ("..".equals(name.toString())) { return false; }
+    }
+    return true;
+  }
+
+  private static final class PathsAndHashes {
+    final ImmutableList<Path> paths;
+    final ImmutableList<Hash> hashes;
+
+    PathsAndHashes(ImmutableList<Path> paths, ImmutableList<Hash> hashes) {
+      this.paths = paths;
+      this.hashes = hashes;
+    }
+  }
+
+  /** The result of a cached bake. */
+  static final class Entry {
+    /** Client files other than inputs that the tools loaded. */
+    final ImmutableList<Path> dependencies;
+    final ImmutableList<Hash> dependencyHashes;
+    /** Output paths relative to the client root. */
+    final ImmutableList<Path> outputs;
+    final ImmutableList<Hash> outputHashes;
+
+    private Entry(PathsAndHashes dependencies, PathsAndHashes outputs) {
+      this.dependencies = dependencies.paths;
+      this.dependencyHashes = dependencies.hashes;
+      this.outputs = outputs.paths;
+      this.outputHashes = outputs.hashes;
+    }
+  }
+}
@@ -29,6 +29,7 @@ import org.prebake.os.OperatingSystem;
 import org.prebake.service.ArtifactDescriptors;
 import org.prebake.service.LogHydra;
 import org.prebake.service.Logs;
+import org.prebake.service.WorkerPools;
 import org.prebake.service.plan.Action;
 import org.prebake.service.plan.Product;
 import org.prebake.service.tools.ToolProvider;
@@ -49,6 +50,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
@@ -63,11 +65,15 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.ValueFuture;
+import com.sleepycat.je.Database;
 
 /**
  * Maintains a set of products and whether they're up to date.
@@ -80,11 +86,24 @@ public final class Baker {
   private final FileVersioner files;
   private final ImmutableMap<String, ?> commonJsEnv;
   private final Logs logs;
+  /** Bakes products. */
   private final ScheduledExecutorService execer;
+  /** Runs in-process commands. */
+  private final ScheduledExecutorService ioExecer;
+  /** Deletes working directories and drops derived products. */
+  private final ScheduledExecutorService housekeepingExecer;
+  /** Links or copies inputs into working directories. */
+  private final InputStager stager;
+  private final @Nullable ActionCache actionCache;
+  private final @Nullable ProductRecords records;
+  private final @Nullable KeptWorkingDirs keptDirs;
   private final ConcurrentHashMap<BoundName, ProductStatus> productStatuses
       = new ConcurrentHashMap<BoundName, ProductStatus>();
   private final ConcurrentHashMap<String, ProductStatusChain> toolDeps
       = new ConcurrentHashMap<String, ProductStatusChain>();
+  /** The signatures of available tools by name. */
+  private final ConcurrentHashMap<String, ToolSignature> toolSignatures
+      = new ConcurrentHashMap<String, ToolSignature>();
   /**
    * For each name of an up-to-date product, the names of products that depend
    * on it.
@@ -115,19 +134,63 @@ public final class Baker {
    * @param umask for all files and directories created by the baker.
    * @param logs receive messages about {@link Product product} statuses and
    *     from plan files, tool files, and external processes.
-   * @param execer an executor which is used to schedule periodic maintenance
-   *     tasks and which is used to update product definitions.
+   * @param execer an executor which is used to bake products and for all
+   *     other background work.
    */
   public Baker(
       OperatingSystem os, FileVersioner files,
       ImmutableMap<String, ?> commonJsEnv, int umask, Logs logs,
       ScheduledExecutorService execer) {
+    this(
+        os, files, commonJsEnv, umask, logs, WorkerPools.sharing(execer),
+        null, null, false);
+  }
+
+  /**
+   * @param pools products are baked on the bake pool, in-process commands
+   *     run on the I/O pool, and obsolete working directories are deleted on
+   *     the housekeeping pool.
+   * @param actionCache if not null, used to restore the outputs of a product
+   *     instead of baking it when nothing it depends on has changed since
+   *     an earlier bake.
+   * @param productStore if not null, a table in which what each up-to-date
+   *     product was built from is recorded, so that products that are still
+   *     up-to-date after a restart need not be rebuilt.
+   * @param keepWorkingDirs true to keep each product's working directory
+   *     after a successful bake and sync only the inputs that changed into it
+   *     for the next bake instead of staging all of them into a new one.
+   */
+  public Baker(
+      OperatingSystem os, FileVersioner files,
+      ImmutableMap<String, ?> commonJsEnv, int umask, Logs logs,
+      WorkerPools pools, @Nullable ActionCache actionCache,
+      @Nullable Database productStore, boolean keepWorkingDirs) {
     this.os = os;
     this.files = files;
     this.commonJsEnv = commonJsEnv;
     this.umask = umask;
     this.logs = logs;
-    this.execer = execer;
+    this.execer = pools.get(WorkerPools.Workload.BAKE);
+    this.ioExecer = pools.get(WorkerPools.Workload.PROCESS_IO);
+    this.housekeepingExecer = pools.get(WorkerPools.Workload.HOUSEKEEPING);
+    this.stager = new InputStager(logs.logger);
+    this.actionCache = actionCache;
+    this.records = productStore != null
+        ? new ProductRecords(productStore, files.getFileSystem(), logs.logger)
+        : null;
+    this.keptDirs = keepWorkingDirs
+        ? new KeptWorkingDirs(umask, logs.logger) : null;
+  }
+
+  /** Closes the product store if any and deletes kept working directories. */
+  public void close() {
+    if (records != null) { records.close(); }
+    if (keptDirs != null) {
+      for (BoundName product : keptDirs.forgetAll()) {
+        Path workingDir = workingDirectoryFor(product);
+        if (workingDir.exists()) { deleteTree(workingDir); }
+      }
+    }
   }
 
   /**
@@ -138,7 +201,8 @@ public final class Baker {
     if (toolbox == null) { throw new IllegalArgumentException(); }
     if (this.toolbox != null) { throw new IllegalStateException(); }
     this.toolbox = toolbox;
-    this.oven = new Oven(os, files, commonJsEnv, toolbox, execer, logs.logger);
+    this.oven = new Oven(
+        os, files, commonJsEnv, toolbox, ioExecer, logs.logger);
     this.finisher = new Finisher(files, umask, logs.logger);
   }
 
@@ -176,9 +240,10 @@ public final class Baker {
    *     to be complete, while the postReqs for a Recipe depend on the
    *     products to be baked, and so are a subset of the dependers.
    * @return a future whose result is true if the product is up-to-date, and
-   *     false if it cannot be brought up-to-date.
+   *     false if it cannot be brought up-to-date.  Callers should listen for
+   *     its completion rather than blocking on it from a pool thread.
    */
-  public Future<Boolean> bake(
+  public ListenableFuture<Boolean> bake(
       final BoundName productName, final ImmutableList<BoundName> prereqs) {
     assert toolbox != null;
     final ProductStatus status = deriveProductStatus(productName);
@@ -189,7 +254,7 @@ public final class Baker {
     synchronized (status) {
       if (status.getBuildFuture() == null) {
         final Product product = status.getProduct();
-        Future<Boolean> f = execer.submit(new Callable<Boolean>() {
+        Callable<Boolean> baking = new Callable<Boolean>() {
           public Boolean call() {
             String artifactDescriptor = ArtifactDescriptors.forProduct(
                 product.name.ident);
@@ -207,13 +272,34 @@ public final class Baker {
             }
           }
 
+          /**
+           * The hash of the product definition and its tools, or null if
+           * neither products' records nor their working directories are kept,
+           * or a tool could not be read.
+           */
+          private Hash definition;
+
           private boolean build() {
             Logger logger = logs.logger;
+            long t0 = logs.highLevelLog.getClock().nanoTime();
+            if (records != null || keptDirs != null) {
+              try {
+                definition = ProductRecords.withDefinition(
+                    Hash.builder(), product, toolbox).build();
+              } catch (IOException ex) {
+                definition = null;  // A tool is missing so the bake will fail.
+              }
+            }
+            // The record only helps the first bake after a restart, since
+            // the product has been built or found stale since.
+            if (records != null && definition != null
+                && status.takeRecordCheck() && isStillUpToDate(t0)) {
+              return true;
+            }
             logger.log(Level.INFO, "Starting bake of product {0}", productName);
             final Path workDir;
             final ImmutableList<Path> inputs;
             boolean passed = false;
-            long t0 = logs.highLevelLog.getClock().nanoTime();
 
             try {
               ImmutableGlobSet inputGlobs = product.getInputs();
@@ -225,66 +311,147 @@ public final class Baker {
               boolean toolsPassed = false;
               ImmutableList.Builder<Path> paths = ImmutableList.builder();
               Hash.Builder hashes = Hash.builder();
+              // The files the product depends on and the hash of their hashes.
+              ImmutableList<Path> depPaths = null;
+              Hash depHash = null;
+              ImmutableList<Path> outputs = ImmutableList.of();
               if (!(product.actions.isEmpty()
                     && !product.filesAndParams.outputs.iterator().hasNext())) {
-                workDir = createWorkingDirectory(product.name);
+                ImmutableList<Hash> inputHashes = hashInputs(
+                    inputs, paths, hashes);
+                Hash cacheKey = null;
+                ActionCache.Entry cached = null;
+                if (actionCache != null) {
+                  cacheKey = actionCache.keyFor(
+                      product, toolbox, inputs, inputHashes);
+                  cached = actionCache.lookup(
+                      cacheKey, product.getOutputs());
+                }
+                // Outputs restored from the cache are put in a new working
+                // directory since what else is in a kept one is not known.
+                Path keptDir = workingDirectoryFor(product.name);
+                boolean reuseDir = keptDirs != null && cached == null
+                    && keptDirs.isKept(product.name, definition, keptDir);
+                if (!reuseDir && keptDirs != null) {
+                  // Tools would misuse what was left by a different definition,
+                  // so create the directory afresh.
+                  keptDirs.forget(product.name);
+                }
+                workDir = reuseDir
+                    ? keptDir : createWorkingDirectory(product.name);
+                // The inputs in workDir if it is to be kept.
+                ImmutableMap<Path, KeptWorkingDirs.StagedInput> keptInputs
+                    = null;
                 try {
                   Set<Path> workingDirInputs = Sets.newLinkedHashSet();
-                  copyToWorkingDirectory(
-                      inputs, workDir, workingDirInputs, paths, hashes);
-                  Executor.Output<Boolean> result = oven.executeActions(
-                      workDir, product, paths, hashes);
-                  if (Boolean.TRUE.equals(result.result)) {
-                    // TODO: can't pass if there are problems moving files to
-                    // the repo.
-                    ImmutableList<Path> outputs = finisher.moveToRepo(
+                  if (cached != null) {
+                    logger.log(
+                        Level.INFO, "Restoring {0} from the action cache",
+                        product.name);
+                    actionCache.materialize(cached, workDir);
+                    paths.addAll(cached.dependencies);
+                    for (Hash h : cached.dependencyHashes) {
+                      hashes.withHash(h);
+                    }
+                    outputs = finisher.moveToRepo(
                         product.name, workDir, workingDirInputs,
                         product.getOutputs());
                     files.updateFiles(outputs);
+                    depPaths = paths.build();
+                    depHash = hashes.build();
                     toolsPassed = true;
                   } else {
-                    if (result.exit != null) {
-                      logger.log(
-                          Level.SEVERE,
-                          "Failed to build product " + product.name,
-                          result.exit);
+                    InputStager.Staged staged = stager.begin(
+                        hasReadOnlyInputs(product));
+                    ImmutableMap<Path, KeptWorkingDirs.StagedInput> synced
+                        = null;
+                    if (keptDirs != null) {
+                      synced = keptDirs.sync(
+                          product.name, files.getVersionRoot(), workDir,
+                          inputs, inputHashes, staged, workingDirInputs);
+                    } else {
+                      copyToWorkingDirectory(
+                          inputs, workDir, staged, workingDirInputs);
+                    }
+                    Executor.Output<Boolean> result = oven.executeActions(
+                        workDir, product, staged, paths, hashes);
+                    if (Boolean.TRUE.equals(result.result)) {
+                      staged.checkClientFilesUnchanged();
+                      // TODO: can't pass if there are problems moving files
+                      // to the repo.
+                      outputs = finisher.moveToRepo(
+                          product.name, workDir, workingDirInputs,
+                          product.getOutputs());
+                      files.updateFiles(outputs);
+                      depPaths = paths.build();
+                      depHash = hashes.build();
+                      toolsPassed = true;
+                      if (definition != null) { keptInputs = synced; }
+                      // Tools may have used state left in a kept directory
+                      // by earlier bakes, which the key does not describe.
+                      if (cacheKey != null && !reuseDir) {
+                        actionCache.store(
+                            cacheKey, depPaths.subList(0, inputs.size()),
+                            inputHashes,
+                            depPaths.subList(inputs.size(), depPaths.size()),
+                            depHash, outputs);
+                      }
                     } else {
-                      logger.log(
-                          Level.WARNING, "Failed to build product {0} : {1}",
-                          new Object[] {
-                            product.name, JsonSink.stringify(result.result)
-                          });
+                      if (result.exit != null) {
+                        logger.log(
+                            Level.SEVERE,
+                            "Failed to build product " + product.name,
+                            result.exit);
+                      } else {
+                        logger.log(
+                            Level.WARNING,
+                            "Failed to build product {0} : {1}",
+                            new Object[] {
+                              product.name, JsonSink.stringify(result.result)
+                            });
+                      }
                     }
                   }
                 } finally {
-                  cleanWorkingDirectory(workDir);
+                  if (keptInputs != null) {
+                    keptDirs.keep(product.name, definition, keptInputs);
+                    // If the product was dropped during the bake, then
+                    // whichever of this and dropKeptDir forgets it deletes
+                    // the directory.
+                    if (productStatuses.get(product.name) != status) {
+                      dropKeptDir(product.name);
+                    }
+                  } else {
+                    if (keptDirs != null) { keptDirs.forget(product.name); }
+                    cleanWorkingDirectory(workDir);
+                  }
                 }
               } else {
                 // Fast path for simple aggregating products.
-                for (Path clientInput : inputs) {
-                  paths.add(clientInput);
-                  hashes.withHash(Hash.builder().withFile(clientInput).build());
-                }
+                paths.addAll(inputs);
+                for (Hash h : files.hashFiles(inputs)) { hashes.withHash(h); }
+                depPaths = paths.build();
+                depHash = hashes.build();
                 toolsPassed = true;
               }
               if (toolsPassed) {
                 synchronized (status) {
                   if (status.product.equals(product)
                       && files.updateArtifact(
-                          addresser, status, t0, paths.build(),
-                          hashes.build())) {
+                          addresser, status, t0, depPaths, depHash)) {
                     passed = true;
-                    synchronized (productDeps) {
-                      // Make sure we know to invalidate this product when
-                      // any of the products that had to be built before it
-                      // are invalidated, or when its template is invalidated.
-                      for (BoundName prereq : prereqs) {
-                        productDeps.put(prereq, product.name);
-                      }
-                      if (product.template != null) {
-                        productDeps.put(product.template.name, product.name);
-                      }
-                    }
+                    addProductDeps();
+                  }
+                }
+                if (passed && records != null && definition != null) {
+                  try {
+                    records.put(product.name, new ProductRecords.Record(
+                        definition, prereqs, inputs.size(), depPaths, depHash,
+                        outputs, files.hashFiles(outputs)));
+                  } catch (IOException ex) {
+                    // The product will be rebuilt after a restart.
+                    logger.log(
+                        Level.WARNING, "Failed to record " + product.name, ex);
                   }
                 }
                 if (toolsPassed) {
@@ -302,15 +469,82 @@ public final class Baker {
             }
             return passed;
           }
-        });
+
+          /**
+           * True if the product's record shows that it was built, possibly by
+           * an earlier run of the service, from the inputs, tools and
+           * definition that it has now, and that its outputs have not changed
+           * since.  Marks the product up-to-date if so.
+           */
+          private boolean isStillUpToDate(long t0) {
+            ProductRecords.Record r = records.get(product.name);
+            if (r == null || !r.definition.equals(definition)
+                || !ImmutableSet.copyOf(r.prereqs).equals(
+                    ImmutableSet.copyOf(prereqs))) {
+              return false;
+            }
+            // A new file that matches the input globs is not in the record.
+            Path root = files.getVersionRoot();
+            List<Path> inputs = Lists.newArrayList();
+            for (Path input : sortedFilesMatching(files, product.getInputs())) {
+              inputs.add(root.resolve(input));
+            }
+            if (!inputs.equals(r.dependencies.subList(0, r.inputCount))) {
+              return false;
+            }
+            try {
+              if (!files.hashFiles(r.outputs).equals(r.outputHashes)) {
+                return false;
+              }
+            } catch (IOException ex) {
+              return false;  // An output was deleted.
+            }
+            synchronized (status) {
+              // Fails if an input or a file a tool loaded has changed.
+              if (!(status.product.equals(product)
+                    && files.updateArtifact(
+                        addresser, status, t0, r.dependencies,
+                        r.dependencyHash))) {
+                return false;
+              }
+              addProductDeps();
+            }
+            logs.logger.log(
+                Level.INFO, "Product {0} is still up to date", product.name);
+            return true;
+          }
+
+          private void addProductDeps() {
+            synchronized (productDeps) {
+              // Make sure we know to invalidate this product when any of the
+              // products that had to be built before it are invalidated, or
+              // when its template is invalidated.
+              for (BoundName prereq : prereqs) {
+                productDeps.put(prereq, product.name);
+              }
+              if (product.template != null) {
+                productDeps.put(product.template.name, product.name);
+              }
+            }
+          }
+        };
+        ListenableFutureTask<Boolean> f = new ListenableFutureTask<Boolean>(
+            baking);
         status.setBuildFuture(f);
+        try {
+          execer.execute(f);
+        } catch (RejectedExecutionException ex) {
+          // Shutting down.  Cancelling notifies anyone listening for the bake.
+          f.cancel(false);
+        }
       }
-      Future<Boolean> bf = status.getBuildFuture();
+      ListenableFuture<Boolean> bf = status.getBuildFuture();
       return bf != null ? bf : FAILURE_FUTURE;
     }
   }
 
-  private static final Future<Boolean> FAILURE_FUTURE = ValueFuture.create();
+  private static final ListenableFuture<Boolean> FAILURE_FUTURE
+      = ValueFuture.create();
   static { ((ValueFuture<Boolean>) FAILURE_FUTURE).set(Boolean.FALSE); }
 
   public Set<BoundName> getUpToDateProducts() {
@@ -321,18 +555,41 @@ public final class Baker {
     return upToDate.build();
   }
 
+  private Path workingDirectoryFor(BoundName productName) {
+    return os.getTempDir().resolve(
+        "prebake-" + ArtifactDescriptors.forProduct(productName.ident));
+  }
+
   private Path createWorkingDirectory(BoundName productName)
       throws IOException {
-    Path path = os.getTempDir().resolve(
-        "prebake-" + ArtifactDescriptors.forProduct(productName.ident));
+    Path path = workingDirectoryFor(productName);
     if (path.exists()) { cleanWorkingDirectory(path); }
     path.createDirectory(FilePerms.perms(0700, true));
     return path;
   }
 
+  /**
+   * Adds the client files for inputs and their hashes to paths and hashes.
+   * @return the hashes of inputs.
+   */
+  private ImmutableList<Hash> hashInputs(
+      Iterable<Path> inputs, ImmutableList.Builder<Path> paths,
+      Hash.Builder hashes)
+      throws IOException {
+    Path root = files.getVersionRoot();
+    List<Path> clientInputs = Lists.newArrayList();
+    for (Path input : inputs) { clientInputs.add(root.resolve(input)); }
+    paths.addAll(clientInputs);
+    // Use stored hashes where the client file has not changed instead of
+    // rereading the files.
+    ImmutableList<Hash> inputHashes = files.hashFiles(clientInputs);
+    for (Hash h : inputHashes) { hashes.withHash(h); }
+    return inputHashes;
+  }
+
   private void copyToWorkingDirectory(
-      Iterable<Path> inputs, Path workingDir, Set<Path> workingDirInputs,
-      ImmutableList.Builder<Path> paths, Hash.Builder hashes)
+      Iterable<Path> inputs, Path workingDir, InputStager.Staged staged,
+      Set<Path> workingDirInputs)
       throws IOException {
     Path root = files.getVersionRoot();
     for (Path input : inputs) {
@@ -341,9 +598,7 @@ public final class Baker {
       Path workingDirInput = workingDir.resolve(input);
       workingDirInputs.add(workingDirInput);
       mkdirs(workingDirInput.getParent());
-      clientInput.copyTo(workingDirInput);
-      paths.add(clientInput);
-      hashes.withHash(Hash.builder().withFile(workingDirInput).build());
+      staged.stage(clientInput, workingDirInput);
     }
   }
 
@@ -382,41 +637,57 @@ public final class Baker {
     }
     workingDir.moveTo(tmpName);
     final Path toDelete = tmpName;
-    execer.submit(new Runnable() {
-      public void run() {
-        Files.walkFileTree(toDelete, new FileVisitor<Path>() {
-          public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
-            if (ex != null) {
-              logs.logger.log(Level.WARNING, "Deleting " + dir, ex);
-            }
-            try {
-              dir.deleteIfExists();
-            } catch (IOException ioex) {
-              logs.logger.log(Level.WARNING, "Deleting " + dir, ioex);
-            }
-            return FileVisitResult.CONTINUE;
-          }
-          public FileVisitResult preVisitDirectory(Path dir) {
-            return FileVisitResult.CONTINUE;
-          }
-          public FileVisitResult preVisitDirectoryFailed(
-              Path dir, IOException ex) {
-            logs.logger.log(Level.WARNING, "Deleting " + dir, ex);
-            return FileVisitResult.CONTINUE;
-          }
-          public FileVisitResult visitFile(Path f, BasicFileAttributes atts) {
-            try {
-              f.deleteIfExists();
-            } catch (IOException ioex) {
-              logs.logger.log(Level.WARNING, "Deleting " + f, ioex);
-            }
-            return FileVisitResult.CONTINUE;
-          }
-          public FileVisitResult visitFileFailed(Path f, IOException ex) {
-            logs.logger.log(Level.WARNING, "Deleting " + f, ex);
-            return FileVisitResult.CONTINUE;
-          }
-        });
+    housekeepingExecer.submit(new Runnable() {
+      public void run() { deleteTree(toDelete); }
+    });
+  }
+
+  /**
+   * Deletes a product's kept working directory if it is kept, e.g. because
+   * the product was dropped.
+   */
+  private void dropKeptDir(BoundName productName) {
+    if (keptDirs == null || !keptDirs.forget(productName)) { return; }
+    Path workingDir = workingDirectoryFor(productName);
+    try {
+      if (workingDir.exists()) { cleanWorkingDirectory(workingDir); }
+    } catch (IOException ex) {
+      logs.logger.log(Level.WARNING, "Failed to delete " + workingDir, ex);
+    }
+  }
+
+  private void deleteTree(Path toDelete) {
+    Files.walkFileTree(toDelete, new FileVisitor<Path>() {
+      public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+        if (ex != null) {
+          logs.logger.log(Level.WARNING, "Deleting " + dir, ex);
+        }
+        try {
+          dir.deleteIfExists();
+        } catch (IOException ioex) {
+          logs.logger.log(Level.WARNING, "Deleting " + dir, ioex);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      public FileVisitResult preVisitDirectory(Path dir) {
+        return FileVisitResult.CONTINUE;
+      }
+      public FileVisitResult preVisitDirectoryFailed(
+          Path dir, IOException ex) {
+        logs.logger.log(Level.WARNING, "Deleting " + dir, ex);
+        return FileVisitResult.CONTINUE;
+      }
+      public FileVisitResult visitFile(Path f, BasicFileAttributes atts) {
+        try {
+          f.deleteIfExists();
+        } catch (IOException ioex) {
+          logs.logger.log(Level.WARNING, "Deleting " + f, ioex);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      public FileVisitResult visitFileFailed(Path f, IOException ex) {
+        logs.logger.log(Level.WARNING, "Deleting " + f, ex);
+        return FileVisitResult.CONTINUE;
       }
     });
   }
@@ -429,9 +700,11 @@ public final class Baker {
   public final ArtifactListener<Product> prodListener
       = new ArtifactListener<Product>() {
     public void artifactDestroyed(String productName) {
-      ProductStatus status = productStatuses.remove(
-          BoundName.fromString(productName));
+      BoundName name = BoundName.fromString(productName);
+      ProductStatus status = productStatuses.remove(name);
       if (status != null) { status.setProduct(null); }
+      if (records != null) { records.remove(name); }
+      dropKeptDir(name);
     }
 
     public void artifactChanged(Product product) {
@@ -453,9 +726,13 @@ public final class Baker {
   public final ArtifactListener<ToolSignature> toolListener
       = new ArtifactListener<ToolSignature>() {
     public void artifactChanged(ToolSignature sig) {
+      toolSignatures.put(sig.name, sig);
       invalidate(sig.name);
     }
-    public void artifactDestroyed(String toolName) { invalidate(toolName); }
+    public void artifactDestroyed(String toolName) {
+      toolSignatures.remove(toolName);
+      invalidate(toolName);
+    }
     private void invalidate(String toolName) {
       for (ProductStatusChain statuses = toolDeps.get(toolName);
            statuses != null; statuses = statuses.next) {
@@ -464,6 +741,18 @@ public final class Baker {
     }
   };
 
+  /**
+   * True if every tool that product uses declares that it does not modify its
+   * inputs, so they may be linked into the working directory.
+   */
+  private boolean hasReadOnlyInputs(Product product) {
+    for (Action action : product.actions) {
+      ToolSignature sig = toolSignatures.get(action.toolName);
+      if (sig == null || !sig.readOnlyInputs) { return false; }
+    }
+    return true;
+  }
+
   private final ArtifactListener<GlobUnion> fileListener
       = new ArtifactListener<GlobUnion>() {
     public void artifactChanged(GlobUnion union) { check(union.name); }
@@ -481,10 +770,12 @@ public final class Baker {
     final BoundName name;
     private Product product;
     /** Iff the product is built, non-null. */
-    private Future<Boolean> buildFuture;
+    private ListenableFuture<Boolean> buildFuture;
     private GlobUnion inputs;
     private ImmutableSet<String> tools;
     private boolean upToDate;
+    /** True once the product's record has been checked. */
+    private boolean recordChecked;
 
     ProductStatus(BoundName name) { this.name = name; }
 
@@ -559,13 +850,16 @@ public final class Baker {
 
     synchronized Product getProduct() { return product; }
 
-    synchronized void setBuildFuture(@Nullable Future<Boolean> newBuildFuture) {
+    synchronized void setBuildFuture(
+        @Nullable ListenableFuture<Boolean> newBuildFuture) {
       if (buildFuture == newBuildFuture) { return; }
       if (buildFuture != null) { buildFuture.cancel(true); }
       buildFuture = newBuildFuture;
     }
 
-    synchronized Future<Boolean> getBuildFuture() { return buildFuture; }
+    synchronized ListenableFuture<Boolean> getBuildFuture() {
+      return buildFuture;
+    }
 
     public void invalidate() {
       boolean wasUpToDate;
@@ -577,9 +871,13 @@ public final class Baker {
         // when they become invalid.
         if (product.isDerived()) {
           productStatuses.remove(product.name, this);
-          execer.submit(new Runnable() {
+          housekeepingExecer.submit(new Runnable() {
             // Dodge a concurrent modification exception on listener dispatch.
-            public void run() { setProduct(null); }
+            public void run() {
+              setProduct(null);
+              // Unless the product was derived again since.
+              if (!productStatuses.containsKey(name)) { dropKeptDir(name); }
+            }
           });
         }
       }
@@ -607,6 +905,13 @@ public final class Baker {
     }
 
     synchronized boolean isUpToDate() { return upToDate; }
+
+    /** True the first time it is called. */
+    synchronized boolean takeRecordCheck() {
+      if (recordChecked) { return false; }
+      recordChecked = true;
+      return true;
+    }
   }
 
   private static final class ProductStatusChain {
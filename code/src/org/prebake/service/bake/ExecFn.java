@@ -226,7 +226,7 @@ final class ExecFn extends SimpleMembranableFunction {
               Path outPath = workingDir.resolve((String) args[1]);
               // We use 0700 since we're only operating in the working dir.
               Baker.mkdirs(outPath.getParent(), 0700);
-              p.appendTo(checker.check(outPath));
+              p.appendTo(checker.checkWritable(outPath));
             } catch (IOException ex) {
               logger.log(
                   Level.WARNING, "Possible attempt to touch client dir", ex);
@@ -247,7 +247,7 @@ final class ExecFn extends SimpleMembranableFunction {
               Path outPath = workingDir.resolve((String) args[1]);
               // We use 0700 since we're only operating in the working dir.
               Baker.mkdirs(outPath.getParent(), 0700);
-              p.writeTo(checker.check(outPath));
+              p.writeTo(checker.checkWritable(outPath));
             } catch (IOException ex) {
               logger.log(
                   Level.WARNING, "Possible attempt to touch client dir", ex);
@@ -0,0 +1,181 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.Attributes;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Puts inputs into working directories by copying them, or, for bakes whose
+ * tools all declare
+ * {@link org.prebake.service.tools.ToolDefProperty#readOnlyInputs read-only
+ * inputs}, by hard linking them where the file system allows.
+ *
+ * <p>
+ * A hard link shares storage and permissions with the client file, so any
+ * process that writes to a linked input in place, or changes its mode,
+ * changes the client file.  Nothing prevents that but the tool's
+ * declaration.  {@link WorkingFileChecker#checkWritable} replaces a linked
+ * input with a copy before an action's output is streamed to it, and
+ * {@link Staged#checkClientFilesUnchanged} fails the bake if a client file's
+ * size or modified time changed anyway, but only after the damage is done,
+ * and not for mode changes or writes that keep both.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class InputStager {
+  private final Logger logger;
+  /**
+   * False once a hard link has failed, e.g. because the working directory is
+   * on a different device than the client directory.
+   */
+  private volatile boolean linksWork = true;
+
+  InputStager(Logger logger) { this.logger = logger; }
+
+  /**
+   * Starts staging inputs for one bake.
+   * @param linkInputs true if the bake's tools all declare that they do not
+   *     modify their inputs, so inputs may be linked instead of copied.
+   */
+  Staged begin(boolean linkInputs) { return new Staged(linkInputs); }
+
+  /** The inputs staged for one bake. */
+  final class Staged {
+    /**
+     * Normalized working directory paths of inputs that are still linked to
+     * their client file, mapped to the client file's state when linked.
+     */
+    private final Map<Path, LinkedInput> linked = Maps.newHashMap();
+    private final boolean linkInputs;
+
+    private Staged(boolean linkInputs) { this.linkInputs = linkInputs; }
+
+    /**
+     * Makes clientInput's content available at workingDirInput whose parent
+     * directory must exist.
+     */
+    void stage(Path clientInput, Path workingDirInput) throws IOException {
+      if (linkInputs && linksWork) {
+        // Read before linking so that a write through after linking shows.
+        BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+            clientInput);
+        boolean ok = false;
+        try {
+          workingDirInput.createLink(clientInput);
+          ok = true;
+        } catch (IOException ex) {
+          linkFailed(workingDirInput, ex);
+        } catch (UnsupportedOperationException ex) {
+          linkFailed(workingDirInput, ex);
+        }
+        if (ok) {
+          synchronized (this) {
+            linked.put(
+                workingDirInput.normalize(),
+                new LinkedInput(
+                    clientInput, attrs.size(), attrs.lastModifiedTime()));
+          }
+          return;
+        }
+      }
+      clientInput.copyTo(workingDirInput);
+    }
+
+    /**
+     * Takes over an input that an earlier bake staged into a working directory
+     * that was kept, so that a link to the client file is treated like one
+     * staged by this bake.
+     * @return false if the input is a link but this bake may not link inputs,
+     *     in which case the caller should stage it again.
+     */
+    boolean adopt(Path clientInput, Path workingDirInput) throws IOException {
+      if (!workingDirInput.isSameFile(clientInput)) { return true; }  // A copy.
+      if (!linkInputs) { return false; }
+      BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+          clientInput);
+      synchronized (this) {
+        linked.put(
+            workingDirInput.normalize(),
+            new LinkedInput(
+                clientInput, attrs.size(), attrs.lastModifiedTime()));
+      }
+      return true;
+    }
+
+    /**
+     * If p is a linked input, replaces it with a copy so that writing to it
+     * does not write to the client directory.
+     */
+    void unshare(Path p) throws IOException {
+      LinkedInput input;
+      synchronized (this) { input = linked.remove(p.normalize()); }
+      if (input == null) { return; }
+      p.delete();
+      input.clientFile.copyTo(p);
+    }
+
+    /**
+     * Fails if a client file whose link is still in the working directory
+     * changed since it was linked, since that means a tool wrote through.
+     */
+    void checkClientFilesUnchanged() throws IOException {
+      Map<Path, LinkedInput> linked;
+      synchronized (this) { linked = Maps.newHashMap(this.linked); }
+      for (LinkedInput input : linked.values()) {
+        BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+            input.clientFile);
+        if (attrs.size() != input.size
+            || !input.modified.equals(attrs.lastModifiedTime())) {
+          throw new IOException(
+              "Please do not touch files in the client directory during builds."
+              + "  " + input.clientFile + " changed");
+        }
+      }
+    }
+  }
+
+  private void linkFailed(Path workingDirInput, Exception ex) {
+    if (linksWork) {
+      linksWork = false;
+      logger.log(
+          Level.INFO, "Cannot link inputs into {0} so copying instead : {1}",
+          new Object[] { workingDirInput.getParent(), ex.toString() });
+    }
+  }
+
+  private static final class LinkedInput {
+    final Path clientFile;
+    final long size;
+    final FileTime modified;
+
+    LinkedInput(Path clientFile, long size, FileTime modified) {
+      this.clientFile = clientFile;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+}
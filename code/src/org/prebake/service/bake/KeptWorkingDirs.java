@@ -0,0 +1,214 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.core.BoundName;
+import org.prebake.core.Hash;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.Attributes;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps each product's working directory between bakes, and brings its inputs
+ * up-to-date by staging only those that were added or changed and deleting
+ * those that were removed.  Anything else that tools leave in the working
+ * directory, like the object files of an incremental compiler, is there for
+ * the next bake.
+ *
+ * <p>
+ * What was staged is only known for directories kept by this instance, so a
+ * working directory left by an earlier run of the service is recreated.
+ * So is one kept for a different product definition or different tools,
+ * since what they left in it, like object files compiled with other flags,
+ * would be unsound to reuse.
+ * The baker deletes a kept directory when its product is dropped and when
+ * the baker is closed.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class KeptWorkingDirs {
+  private final int umask;
+  private final Logger logger;
+  /** For each product whose working directory is kept, what is in it. */
+  private final ConcurrentHashMap<BoundName, Kept> kept
+      = new ConcurrentHashMap<BoundName, Kept>();
+
+  KeptWorkingDirs(int umask, Logger logger) {
+    this.umask = umask;
+    this.logger = logger;
+  }
+
+  /**
+   * True if the product's working directory can be synced.
+   * @param definition as computed by {@link ProductRecords#withDefinition}
+   *     for the product being baked.
+   */
+  boolean isKept(
+      BoundName product, @Nullable Hash definition, Path workingDir) {
+    Kept k = kept.get(product);
+    return k != null && k.definition.equals(definition) && workingDir.exists();
+  }
+
+  /**
+   * Brings the inputs in a product's working directory up-to-date.
+   * If the working directory is not {@link #isKept kept}, it must be empty.
+   * Until {@link #keep} is called, the working directory is not kept.
+   *
+   * @param inputs paths relative to the client root.
+   * @param inputHashes the hashes of the client files for inputs.
+   * @param workingDirInputs receives the working directory path of each
+   *     input.
+   * @return the staged inputs to pass to {@link #keep}.
+   */
+  ImmutableMap<Path, StagedInput> sync(
+      BoundName product, Path clientRoot, Path workingDir, List<Path> inputs,
+      List<Hash> inputHashes, InputStager.Staged staged,
+      Set<Path> workingDirInputs)
+      throws IOException {
+    Kept k = kept.remove(product);
+    Map<Path, StagedInput> before;
+    if (k == null) {
+      before = ImmutableMap.of();
+    } else {
+      before = Maps.newHashMap(k.inputs);
+    }
+    ImmutableMap.Builder<Path, StagedInput> after = ImmutableMap.builder();
+    int nStaged = 0;
+    for (int i = 0, n = inputs.size(); i < n; ++i) {
+      Path input = inputs.get(i);
+      Hash hash = inputHashes.get(i);
+      Path clientInput = clientRoot.resolve(input);
+      Path workingDirInput = workingDir.resolve(input);
+      workingDirInputs.add(workingDirInput);
+      StagedInput old = before.remove(input);
+      if (old != null && old.hash.equals(hash)
+          && old.isUnchanged(workingDirInput)
+          && staged.adopt(clientInput, workingDirInput)) {
+        after.put(input, old);
+        continue;
+      }
+      // A tool may have replaced a link with a copy, or written to it, or
+      // this bake may not use links.
+      workingDirInput.deleteIfExists();
+      Baker.mkdirs(workingDirInput.getParent(), umask);
+      staged.stage(clientInput, workingDirInput);
+      after.put(input, StagedInput.of(hash, workingDirInput));
+      ++nStaged;
+    }
+    for (Path removed : before.keySet()) {
+      workingDir.resolve(removed).deleteIfExists();
+    }
+    logger.log(
+        Level.INFO,
+        "Synced working directory for {0}: staged {1} of {2} input(s),"
+        + " removed {3}",
+        new Object[] { product, nStaged, inputs.size(), before.size() });
+    return after.build();
+  }
+
+  /**
+   * Keeps a product's working directory for the next bake after a bake that
+   * succeeded.
+   * @param definition as computed by {@link ProductRecords#withDefinition}
+   *     for the product that was baked.
+   */
+  void keep(
+      BoundName product, Hash definition,
+      ImmutableMap<Path, StagedInput> inputs) {
+    kept.put(product, new Kept(definition, inputs));
+  }
+
+  /**
+   * Stops keeping a product's working directory, e.g. because a bake failed
+   * and may have left it in a bad state.
+   * @return true if it was kept, in which case the caller is responsible for
+   *     deleting it.
+   */
+  boolean forget(BoundName product) { return kept.remove(product) != null; }
+
+  /**
+   * Stops keeping all working directories.
+   * @return the products whose working directories were kept.
+   */
+  Set<BoundName> forgetAll() {
+    Set<BoundName> forgotten = Sets.newHashSet();
+    for (BoundName product : kept.keySet()) {
+      if (forget(product)) { forgotten.add(product); }
+    }
+    return forgotten;
+  }
+
+  /** A kept working directory. */
+  private static final class Kept {
+    /** The definition of the product that was last baked in it. */
+    final Hash definition;
+    /** The inputs staged into it keyed by path relative to it. */
+    final ImmutableMap<Path, StagedInput> inputs;
+
+    Kept(Hash definition, ImmutableMap<Path, StagedInput> inputs) {
+      this.definition = definition;
+      this.inputs = inputs;
+    }
+  }
+
+  /** An input as staged into a working directory. */
+  static final class StagedInput {
+    /** The hash of the client file that was staged. */
+    final Hash hash;
+    final long size;
+    final FileTime modified;
+
+    private StagedInput(Hash hash, long size, FileTime modified) {
+      this.hash = hash;
+      this.size = size;
+      this.modified = modified;
+    }
+
+    static StagedInput of(Hash hash, Path workingDirInput) throws IOException {
+      BasicFileAttributes attrs = Attributes.readBasicFileAttributes(
+          workingDirInput);
+      return new StagedInput(hash, attrs.size(), attrs.lastModifiedTime());
+    }
+
+    /** False if the working directory copy changed since it was staged. */
+    boolean isUnchanged(Path workingDirInput) {
+      @Nullable BasicFileAttributes attrs;
+      try {
+        attrs = Attributes.readBasicFileAttributes(workingDirInput);
+      } catch (IOException ex) {
+        return false;  // Deleted by a tool.
+      }
+      return attrs.isRegularFile() && attrs.size() == size
+          && modified.equals(attrs.lastModifiedTime());
+    }
+  }
+}
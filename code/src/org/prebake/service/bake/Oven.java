@@ -75,12 +75,12 @@ final class Oven {
   }
 
   @Nonnull Executor.Output<Boolean> executeActions(
-      final Path workingDir, Product p,
+      final Path workingDir, Product p, InputStager.Staged staged,
       final ImmutableList.Builder<Path> paths, final Hash.Builder hashes)
       throws IOException {
     Executor execer = Executor.Factory.createJsExecutor();
     final WorkingFileChecker checker = new WorkingFileChecker(
-        files.getVersionRoot(), workingDir);
+        files.getVersionRoot(), workingDir, staged);
     ExecFn execFn = new ExecFn(os, workingDir, checker, execService, logger);
     ImmutableMap.Builder<String, Object> actuals = ImmutableMap.builder();
     actuals.putAll(commonJsEnv);
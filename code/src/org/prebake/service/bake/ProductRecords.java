@@ -0,0 +1,234 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.core.BoundName;
+import org.prebake.core.Hash;
+import org.prebake.service.plan.Action;
+import org.prebake.service.plan.Product;
+import org.prebake.service.tools.ToolProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Remembers what each up-to-date product was built from so that a restarted
+ * service can tell which products are still up-to-date instead of rebuilding
+ * them all.
+ *
+ * <p>
+ * Records are not trusted as is.  {@link Baker} checks a product's record
+ * against the current product definition, tools and file hashes before it
+ * uses it.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+final class ProductRecords {
+  /** Identifies the layout of stored records. */
+  private static final int STORE_FORMAT = 1;
+
+  private final Database store;
+  private final FileSystem fs;
+  private final Logger logger;
+  private boolean closed;
+
+  /**
+   * @param store a table keyed by product name.
+   * @param fs the file system of the paths in records.
+   */
+  ProductRecords(Database store, FileSystem fs, Logger logger) {
+    this.store = store;
+    this.fs = fs;
+    this.logger = logger;
+  }
+
+  /**
+   * Adds the product definition and the content of the tools it uses to a
+   * hash so that a change to either changes the hash.
+   */
+  static Hash.Builder withDefinition(
+      Hash.Builder hb, Product product, ToolProvider toolbox)
+      throws IOException {
+    hb.withString(product.toString());
+    Set<String> toolNames = Sets.newTreeSet();
+    for (Action a : product.actions) { toolNames.add(a.toolName); }
+    for (String toolName : toolNames) {
+      hb.withString(toolName)
+          .withString(toolbox.getTool(toolName).fh.getContentAsString(
+              Charsets.UTF_8));
+    }
+    return hb;
+  }
+
+  /** The record stored for the named product, or null if there is none. */
+  synchronized @Nullable Record get(BoundName product) {
+    if (closed) { return null; }
+    DatabaseEntry data = new DatabaseEntry();
+    if (store.get(null, keyFor(product), data, null)
+        != OperationStatus.SUCCESS) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(data.getData()));
+    try {
+      if (in.readInt() != STORE_FORMAT) { return null; }
+      Hash definition = readHash(in);
+      ImmutableList.Builder<BoundName> prereqs = ImmutableList.builder();
+      for (int i = in.readInt(); --i >= 0;) {
+        prereqs.add(BoundName.fromString(in.readUTF()));
+      }
+      int inputCount = in.readInt();
+      ImmutableList<Path> dependencies = readPaths(in);
+      if (inputCount < 0 || inputCount > dependencies.size()) {
+        throw new IOException("Bad input count " + inputCount);
+      }
+      Hash dependencyHash = readHash(in);
+      ImmutableList<Path> outputs = readPaths(in);
+      ImmutableList.Builder<Hash> outputHashes = ImmutableList.builder();
+      for (int i = outputs.size(); --i >= 0;) {
+        outputHashes.add(readHash(in));
+      }
+      return new Record(
+          definition, prereqs.build(), inputCount, dependencies,
+          dependencyHash, outputs, outputHashes.build());
+    } catch (IOException ex) {
+      logger.log(
+          Level.WARNING, "Discarding unreadable record for " + product, ex);
+      return null;
+    } catch (IllegalArgumentException ex) {
+      logger.log(
+          Level.WARNING, "Discarding unreadable record for " + product, ex);
+      return null;
+    }
+  }
+
+  synchronized void put(BoundName product, Record r) {
+    if (closed) { return; }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(STORE_FORMAT);
+      writeHash(r.definition, out);
+      out.writeInt(r.prereqs.size());
+      for (BoundName prereq : r.prereqs) { out.writeUTF(prereq.ident); }
+      out.writeInt(r.inputCount);
+      writePaths(r.dependencies, out);
+      writeHash(r.dependencyHash, out);
+      writePaths(r.outputs, out);
+      for (Hash h : r.outputHashes) { writeHash(h, out); }
+      out.flush();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);  // Writing to memory.
+    }
+    store.put(null, keyFor(product), new DatabaseEntry(bytes.toByteArray()));
+  }
+
+  synchronized void remove(BoundName product) {
+    if (closed) { return; }
+    store.delete(null, keyFor(product));
+  }
+
+  /**
+   * Closes the store.  Bakes that finish after this do not record their
+   * products.
+   */
+  synchronized void close() {
+    if (closed) { return; }
+    closed = true;
+    store.close();
+  }
+
+  private static DatabaseEntry keyFor(BoundName product) {
+    return new DatabaseEntry(product.ident.getBytes(Charsets.UTF_8));
+  }
+
+  private ImmutableList<Path> readPaths(DataInputStream in)
+      throws IOException {
+    ImmutableList.Builder<Path> paths = ImmutableList.builder();
+    for (int i = in.readInt(); --i >= 0;) {
+      paths.add(fs.getPath(in.readUTF()));
+    }
+    return paths.build();
+  }
+
+  private static void writePaths(List<Path> paths, DataOutputStream out)
+      throws IOException {
+    out.writeInt(paths.size());
+    for (Path p : paths) { out.writeUTF(p.toString()); }
+  }
+
+  private static Hash readHash(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedShort()];
+    in.readFully(bytes);
+    return Hash.fromDatabaseEntry(new DatabaseEntry(bytes));
+  }
+
+  private static void writeHash(Hash h, DataOutputStream out)
+      throws IOException {
+    byte[] bytes = h.toDatabaseEntry().getData();
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /** What an up-to-date product was built from and what it produced. */
+  static final class Record {
+    /** @see ProductRecords#withDefinition */
+    final Hash definition;
+    /** The products that had to be built before this one. */
+    final ImmutableList<BoundName> prereqs;
+    /** The number of leading dependencies that are the product's inputs. */
+    final int inputCount;
+    /** Absolute paths of inputs followed by files the tools loaded. */
+    final ImmutableList<Path> dependencies;
+    /** The hash of the dependencies' hashes. */
+    final Hash dependencyHash;
+    /** Absolute paths of the files produced. */
+    final ImmutableList<Path> outputs;
+    final ImmutableList<Hash> outputHashes;
+
+    Record(
+        Hash definition, ImmutableList<BoundName> prereqs, int inputCount,
+        ImmutableList<Path> dependencies, Hash dependencyHash,
+        ImmutableList<Path> outputs, ImmutableList<Hash> outputHashes) {
+      this.definition = definition;
+      this.prereqs = prereqs;
+      this.inputCount = inputCount;
+      this.dependencies = dependencies;
+      this.dependencyHash = dependencyHash;
+      this.outputs = outputs;
+      this.outputHashes = outputHashes;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.channel.FileNames;
+import org.prebake.core.Hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.Attributes;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.io.LimitInputStream;
+
+/**
+ * A client for an HTTP cache shared between several services that
+ * {@link ActionCache} consults when it has no local copy of a bake's outputs.
+ *
+ * <p>
+ * The protocol is a plain GET or PUT of
+ * <tt>&lt;base&gt;/&lt;kind&gt;/&lt;hex&gt;</tt> where kind is
+ * {@link org.prebake.channel.FileNames#ACTIONS} or
+ * {@link org.prebake.channel.FileNames#BLOBS} and hex is the hex form of an
+ * action cache key or of the hash of a blob's content.  A GET of something
+ * not in the cache returns 404.  Every request carries a secret shared by the
+ * services that use the cache in the {@link #SECRET_HEADER} header, so use an
+ * HTTPS URI where the network is not trusted.
+ * {@link org.prebake.service.www.CacheServlet} is a server for this protocol.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+@ParametersAreNonnullByDefault
+public final class RemoteCache {
+  /** The name of the HTTP request header that carries the shared secret. */
+  public static final String SECRET_HEADER = "X-Prebake-Cache-Secret";
+  /** The size of the largest action cache entry that may be stored. */
+  public static final long MAX_ENTRY_BYTES = 1L << 24;
+  /** The size of the largest blob that may be stored. */
+  public static final long MAX_BLOB_BYTES = 1L << 30;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int READ_TIMEOUT_MILLIS = 30000;
+
+  private final URI base;
+  private final String secret;
+
+  /**
+   * @param base the URI of the cache, e.g.
+   *     <tt>http://build-server:8080/cache/</tt>.
+   * @param secret the secret shared by services that use the cache.
+   */
+  public RemoteCache(URI base, String secret) {
+    String uri = base.toString();
+    this.base = uri.endsWith("/") ? base : URI.create(uri + "/");
+    this.secret = secret;
+  }
+
+  public URI getBase() { return base; }
+
+  /**
+   * Reads a shared secret from the first line of a file.
+   * @throws IOException if the file cannot be read or has no secret.
+   */
+  public static String readSecret(Path secretFile) throws IOException {
+    InputStream in = secretFile.newInputStream();
+    String secret;
+    try {
+      secret = CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+    } finally {
+      in.close();
+    }
+    secret = secret.split("[\\r\\n]", 2)[0].trim();
+    if ("".equals(secret)) {
+      throw new IOException("No secret in " + secretFile);
+    }
+    return secret;
+  }
+
+  /**
+   * The content stored under the given key, or null if there is none or it
+   * is larger than the cache would store.
+   */
+  @Nullable byte[] get(String kind, Hash key) throws IOException {
+    HttpURLConnection conn = open(kind, key);
+    try {
+      InputStream in = openResponse(conn);
+      if (in == null) { return null; }
+      try {
+        long maxBytes = maxBytes(kind);
+        if (conn.getContentLength() > maxBytes) { return null; }
+        // The content length may be absent, so count as well.
+        byte[] content = ByteStreams.toByteArray(
+            new LimitInputStream(in, maxBytes + 1));
+        return content.length > maxBytes ? null : content;
+      } finally {
+        in.close();
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Writes the content stored under the given key to dest.
+   * @return false if there is no such content or it is larger than the cache
+   *     would store, in which case dest is not created.
+   */
+  boolean fetch(String kind, Hash key, Path dest) throws IOException {
+    HttpURLConnection conn = open(kind, key);
+    try {
+      InputStream in = openResponse(conn);
+      if (in == null) { return false; }
+      long size;
+      long maxBytes = maxBytes(kind);
+      try {
+        if (conn.getContentLength() > maxBytes) { return false; }
+        OutputStream out = dest.newOutputStream(
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+          size = ByteStreams.copy(new LimitInputStream(in, maxBytes + 1), out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (size > maxBytes) {
+        dest.delete();
+        return false;
+      }
+      return true;
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  void put(String kind, Hash key, byte[] content) throws IOException {
+    put(kind, key, new ByteArrayInputStream(content), content.length);
+  }
+
+  /** Stores the content of the file src under the given key. */
+  void put(String kind, Hash key, Path src) throws IOException {
+    long size = Attributes.readBasicFileAttributes(src).size();
+    InputStream in = src.newInputStream();
+    try {
+      put(kind, key, in, size);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void put(String kind, Hash key, InputStream in, long size)
+      throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Too large to cache remotely: " + size);
+    }
+    HttpURLConnection conn = open(kind, key);
+    try {
+      conn.setRequestMethod("PUT");
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode((int) size);
+      conn.setRequestProperty("Content-Type", "application/octet-stream");
+      OutputStream out = conn.getOutputStream();
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        out.close();
+      }
+      int status = conn.getResponseCode();
+      if (status / 100 != 2) {
+        throw new IOException(
+            "PUT " + conn.getURL() + " failed with status " + status);
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private static long maxBytes(String kind) {
+    return FileNames.BLOBS.equals(kind) ? MAX_BLOB_BYTES : MAX_ENTRY_BYTES;
+  }
+
+  /** The response body, or null if the server does not have the content. */
+  private static @Nullable InputStream openResponse(HttpURLConnection conn)
+      throws IOException {
+    int status = conn.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) { return null; }
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException(
+          "GET " + conn.getURL() + " failed with status " + status);
+    }
+    return conn.getInputStream();
+  }
+
+  private HttpURLConnection open(String kind, Hash key) throws IOException {
+    URLConnection conn = base.resolve(kind + "/" + key.toHexString()).toURL()
+        .openConnection();
+    if (!(conn instanceof HttpURLConnection)) {
+      throw new IOException("Remote cache " + base + " is not an HTTP URI");
+    }
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    conn.setUseCaches(false);
+    conn.setRequestProperty(SECRET_HEADER, secret);
+    return (HttpURLConnection) conn;
+  }
+
+  @Override public String toString() { return "[RemoteCache " + base + "]"; }
+}
@@ -19,6 +19,8 @@ import java.nio.file.Path;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * Gates access to files specified by running actions to prevent unintentional
  * access to files in the client directory.
@@ -37,12 +39,23 @@ final class WorkingFileChecker {
   private final Path clientDir;
   private final Path workingDir;
   private final Pattern fingerprint;
+  private final @Nullable InputStager.Staged staged;
 
   WorkingFileChecker(Path clientDir, Path workingDir) {
+    this(clientDir, workingDir, null);
+  }
+
+  /**
+   * @param staged the inputs in the working directory, some of which may be
+   *     linked to client files.
+   */
+  WorkingFileChecker(
+      Path clientDir, Path workingDir, @Nullable InputStager.Staged staged) {
     assert clientDir.isAbsolute();
     assert workingDir.isAbsolute();
     this.clientDir = clientDir;
     this.workingDir = workingDir;
+    this.staged = staged;
     this.fingerprint = makeFingerprint(
         workingDir.relativize(clientDir).toString(),
         // DOS paths are case-insensitive
@@ -62,6 +75,17 @@ final class WorkingFileChecker {
     return p;
   }
 
+  /**
+   * Applied to paths that are about to be written to.  Like {@link #check}
+   * but also makes sure that writing to an input linked to a client file does
+   * not write through to the client file.
+   */
+  Path checkWritable(Path p) throws IOException {
+    check(p);
+    if (staged != null) { staged.unshare(workingDir.resolve(p)); }
+    return p;
+  }
+
   /**
    * Applied to command line arguments to make sure they don't reach into the
    * client directory.
@@ -18,22 +18,33 @@ import org.prebake.core.ArtifactListener;
 import org.prebake.core.BoundName;
 import org.prebake.core.Glob;
 import org.prebake.core.ImmutableGlobSet;
+import org.prebake.core.MutableGlobSet;
 
-import java.util.Arrays;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
-import com.google.common.collect.HashMultiset;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.OperationStatus;
 
 /**
  * Maintains a sparse graph of product dependencies.
@@ -45,20 +56,56 @@ import com.google.common.collect.Sets;
  * <p>
  * At any time the graph can be {@link #snapshot}ted as an
  * {@link PlanGraph immutable graph} that allows efficient edge traversal.
+ * The snapshot is rebuilt only when products have changed since the last one.
+ *
+ * <p>
+ * If backed by a store, the last graph snapshotted is written to it, and on
+ * restart, edges between products whose inputs and outputs have not changed
+ * are read from the stored graph instead of being recomputed.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
 @ParametersAreNonnullByDefault
 public final class PlanGrapher {
+  /** Identifies the layout of the stored graph. */
+  private static final int STORE_FORMAT = 1;
+  private static final DatabaseEntry GRAPH_KEY = new DatabaseEntry(
+      "graph".getBytes(Charsets.UTF_8));
+
   /** The end points per product. */
   private final Map<BoundName, ProdEndPoints> nodes = Maps.newHashMap();
-  /** Glob sets needed to compute the intersection graph of end-points. */
-  private final Multiset<ImmutableGlobSet> endPoints = HashMultiset.create();
-  /** True if there is an edge in the intersection graph of end-points. */
-  private final Map<EndPoints, Boolean> edges = Maps.newHashMap();
+  /** The input globs of all products. */
+  private final MutableGlobSet inputIndex = new MutableGlobSet();
+  /** The output globs of all products. */
+  private final MutableGlobSet outputIndex = new MutableGlobSet();
+  /** The products that have each glob in {@link #inputIndex} as an input. */
+  private final Multimap<Glob, BoundName> consumers = HashMultimap.create();
+  /** The products that have each glob in {@link #outputIndex} as an output. */
+  private final Multimap<Glob, BoundName> producers = HashMultimap.create();
+  /** Maps each product to the products whose outputs overlap its inputs. */
+  private final TreeMultimap<BoundName, BoundName> prerequisites
+      = TreeMultimap.create();
+  /** The inverse of {@link #prerequisites}. */
+  private final Multimap<BoundName, BoundName> postrequisites
+      = HashMultimap.create();
   /** Products that have not been incorporated into the other collections. */
   private final Map<BoundName, Product> unprocessed
       = Collections.synchronizedMap(Maps.<BoundName, Product>newHashMap());
+  /**
+   * Products read from the store whose end points have not changed since.
+   * Edges between two of these are taken from the store.
+   */
+  private final Map<BoundName, StoredNode> trusted = Maps.newHashMap();
+  /** The inverse of the prerequisites in {@link #trusted}. */
+  private final Multimap<BoundName, BoundName> storedPostrequisites
+      = HashMultimap.create();
+  private final @Nullable Database store;
+  private final Logger logger;
+  /** Incremented each time the graph changes. */
+  private long version;
+  private @Nullable PlanGraph latest;
+  private long latestVersion = -1;
+  private long storedVersion;
 
   final ArtifactListener<Product> productListener
       = new ArtifactListener<Product>() {
@@ -68,139 +115,325 @@ public final class PlanGrapher {
     }
   };
 
-  public PlanGraph snapshot() {
-    ProdEndPoints[] prodEndPoints;
-    Product[] products;
-    synchronized (this) {
-      processProducts();
-      prodEndPoints = nodes.values().toArray(NO_PROD_END_POINTS);
-      Arrays.sort(prodEndPoints, CMP_BY_NAME);
-      int n = prodEndPoints.length;
-      products = new Product[n];
-      for (int i = n; --i >= 0;) { products[i] = prodEndPoints[i].p; }
-    }
-    int n = products.length;
+  /** A grapher that starts empty and is not persisted. */
+  public PlanGrapher() {
+    this(null, Logger.getLogger(PlanGrapher.class.getName()));
+  }
+
+  /**
+   * @param store if not null, a table that the graph is loaded from and
+   *     that each new snapshot is written to.
+   */
+  public PlanGrapher(@Nullable Database store, Logger logger) {
+    this.store = store;
+    this.logger = logger;
+    if (store != null) { load(); }
+  }
+
+  /**
+   * The graph as of the last change.  If no products have changed since the
+   * last call, returns the same instance.
+   */
+  public synchronized PlanGraph snapshot() {
+    processProducts();
+    if (latest == null || latestVersion != version) {
+      latest = buildGraph();
+      latestVersion = version;
+    }
+    if (store != null && storedVersion != version) {
+      save();
+      storedVersion = version;
+    }
+    return latest;
+  }
+
+  /** Writes the graph to the store if it has changed and closes the store. */
+  public synchronized void close() {
+    if (store == null) { return; }
+    snapshot();
+    store.close();
+  }
+
+  private PlanGraph buildGraph() {
+    // Sort so that the graph is independent of the order of changes.
+    List<BoundName> names = Lists.newArrayList(nodes.keySet());
+    Collections.sort(names);
+    Product[] products = new Product[names.size()];
+    for (int i = products.length; --i >= 0;) {
+      products[i] = nodes.get(names.get(i)).p;
+    }
     PlanGraph.Builder b = PlanGraph.builder(products);
-    for (int i = 0; i < n; ++i) {
-      BoundName p = products[i].name;
-      ImmutableGlobSet sources = prodEndPoints[i].sources;
-      for (int j = 0; j < n; ++j) {
-        ImmutableGlobSet targets = prodEndPoints[j].targets;
-        if (Boolean.TRUE.equals(edges.get(new EndPoints(sources, targets)))) {
-          b.edge(products[j].name, p);
-        }
-      }
+    for (BoundName name : names) {
+      for (BoundName prereq : prerequisites.get(name)) { b.edge(prereq, name); }
     }
     return b.build();
   }
 
+  /**
+   * Brings the graph up to date with the products changed since the last
+   * call.
+   * Only edges incident to changed products are recomputed, and only globs
+   * whose literal prefixes and extensions are compatible, as found via
+   * {@link MutableGlobSet#overlapCandidates}, are checked for overlap.
+   */
   private synchronized void processProducts() {
-    // This is O(n**2) in the number of products but minimizes the number of
-    // glob intersection checks which are the expensive parts, and the number
-    // of globs is strictly greater than the number of products.
-    List<Product> prods = Lists.newArrayList();
-    List<BoundName> removed = Lists.newArrayList();
+    Map<BoundName, Product> batch;
     synchronized (unprocessed) {
-      for (Map.Entry<BoundName, Product> e : unprocessed.entrySet()) {
-        Product p = e.getValue();
-        if (p != null) {
-          prods.add(p);
-        } else {
-          removed.add(e.getKey());
-        }
-      }
+      if (unprocessed.isEmpty()) { return; }
+      batch = Maps.newHashMap(unprocessed);
       unprocessed.clear();
     }
-    List<ImmutableGlobSet> oldGlobs = Lists.newArrayList();
-    for (Product p : prods) {
-      ImmutableGlobSet sources = p.getInputs();
-      ImmutableGlobSet targets = p.getOutputs();
-      ProdEndPoints newNode = new ProdEndPoints(sources, targets);
-      ProdEndPoints oldNode = nodes.get(p.name);
-      if (newNode.equals(oldNode)) {
-        oldNode.p = p;
-        continue;
+    List<ProdEndPoints> changed = Lists.newArrayList();
+    for (Map.Entry<BoundName, Product> e : batch.entrySet()) {
+      BoundName name = e.getKey();
+      Product p = e.getValue();
+      ProdEndPoints oldNode = nodes.get(name);
+      if (p != null) {
+        ProdEndPoints newNode = new ProdEndPoints(
+            name, p.getInputs(), p.getOutputs());
+        if (newNode.equals(oldNode)) {
+          if (oldNode.p != p) {
+            oldNode.p = p;
+            ++version;
+          }
+          continue;
+        }
+        newNode.p = p;
+        changed.add(newNode);
+        StoredNode stored = trusted.get(name);
+        if (stored != null && !stored.endPoints.equals(newNode)) {
+          trusted.remove(name);
+        }
+      } else {
+        trusted.remove(name);
       }
-      newNode.p = p;
-      nodes.put(p.name, newNode);
       if (oldNode != null) {
-        oldGlobs.add(oldNode.sources);
-        oldGlobs.add(oldNode.targets);
+        ++version;
+        nodes.remove(name);
+        unindex(oldNode);
       }
-      endPoints.add(newNode.sources);
-      endPoints.add(newNode.targets);
     }
-    for (BoundName name : removed) {
-      EndPoints oldNode = nodes.get(name);
-      if (oldNode != null) {
-        oldGlobs.add(oldNode.sources);
-        oldGlobs.add(oldNode.targets);
+    // Index all changed products before computing edges so that edges
+    // between two products changed in the same batch are found.
+    for (ProdEndPoints node : changed) {
+      nodes.put(node.name, node);
+      index(node);
+    }
+    for (ProdEndPoints node : changed) { addEdges(node); }
+    if (!changed.isEmpty()) { ++version; }
+  }
+
+  private void index(ProdEndPoints node) {
+    for (Glob g : node.sources) {
+      if (!consumers.containsKey(g)) { inputIndex.add(g); }
+      consumers.put(g, node.name);
+    }
+    for (Glob g : node.targets) {
+      if (!producers.containsKey(g)) { outputIndex.add(g); }
+      producers.put(g, node.name);
+    }
+  }
+
+  private void unindex(ProdEndPoints node) {
+    for (Glob g : node.sources) {
+      if (consumers.remove(g, node.name) && !consumers.containsKey(g)) {
+        inputIndex.remove(g);
+      }
+    }
+    for (Glob g : node.targets) {
+      if (producers.remove(g, node.name) && !producers.containsKey(g)) {
+        outputIndex.remove(g);
+      }
+    }
+    for (BoundName prereq : prerequisites.removeAll(node.name)) {
+      postrequisites.remove(prereq, node.name);
+    }
+    for (BoundName postreq : postrequisites.removeAll(node.name)) {
+      prerequisites.remove(postreq, node.name);
+    }
+  }
+
+  /** Adds the edges between node and any product, including itself. */
+  private void addEdges(ProdEndPoints node) {
+    BoundName name = node.name;
+    boolean isTrusted = trusted.containsKey(name);
+    if (isTrusted) {
+      for (BoundName prereq : trusted.get(name).prerequisites) {
+        if (nodes.containsKey(prereq) && trusted.containsKey(prereq)) {
+          edge(prereq, name);
+        }
+      }
+      for (BoundName postreq : storedPostrequisites.get(name)) {
+        if (nodes.containsKey(postreq) && trusted.containsKey(postreq)) {
+          edge(name, postreq);
+        }
+      }
+    }
+    for (Glob input : node.sources) {
+      for (Glob output : outputIndex.overlapCandidates(input)) {
+        Collection<BoundName> others = producers.get(output);
+        if (isTrusted) { others = untrusted(others); }
+        if (!others.isEmpty() && overlaps(input, output)) {
+          for (BoundName producer : others) { edge(producer, name); }
+        }
+      }
+    }
+    for (Glob output : node.targets) {
+      for (Glob input : inputIndex.overlapCandidates(output)) {
+        Collection<BoundName> others = consumers.get(input);
+        if (isTrusted) { others = untrusted(others); }
+        if (!others.isEmpty() && overlaps(input, output)) {
+          for (BoundName consumer : others) { edge(name, consumer); }
+        }
       }
     }
-    Set<ImmutableGlobSet> defunct = Sets.newHashSet();
-    for (ImmutableGlobSet globs : oldGlobs) {
-      if (endPoints.remove(globs, 1) == 0) { defunct.add(globs); }
+  }
+
+  /**
+   * The products whose edges to a trusted product cannot be taken from the
+   * store.
+   */
+  private Collection<BoundName> untrusted(Collection<BoundName> names) {
+    List<BoundName> out = null;
+    for (BoundName name : names) {
+      if (!trusted.containsKey(name)) {
+        if (out == null) { out = Lists.newArrayList(); }
+        out.add(name);
+      }
+    }
+    return out != null ? out : Collections.<BoundName>emptyList();
+  }
+
+  private void edge(BoundName prerequisite, BoundName postrequisite) {
+    if (prerequisites.put(postrequisite, prerequisite)) {
+      postrequisites.put(prerequisite, postrequisite);
+    }
+  }
+
+  private static boolean overlaps(Glob a, Glob b) {
+    return Glob.overlaps(ImmutableList.of(a), ImmutableList.of(b));
+  }
+
+  /**
+   * Reads the stored graph into {@link #trusted}.  A graph that cannot be
+   * read is ignored, so all edges are recomputed.
+   */
+  private void load() {
+    DatabaseEntry data = new DatabaseEntry();
+    if (store.get(null, GRAPH_KEY, data, null) != OperationStatus.SUCCESS) {
+      return;
     }
-    if (!defunct.isEmpty()) {
-      for (Iterator<EndPoints> it = edges.keySet().iterator(); it.hasNext();) {
-        EndPoints ep = it.next();
-        if (defunct.contains(ep.sources) || defunct.contains(ep.targets)) {
-          it.remove();
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(data.getData()));
+    Map<BoundName, StoredNode> loaded = Maps.newHashMap();
+    try {
+      if (in.readInt() != STORE_FORMAT) { return; }
+      for (int i = in.readInt(); --i >= 0;) {
+        BoundName name = BoundName.fromString(in.readUTF());
+        ImmutableGlobSet sources = readGlobs(in);
+        ImmutableGlobSet targets = readGlobs(in);
+        ImmutableList.Builder<BoundName> prereqs = ImmutableList.builder();
+        for (int j = in.readInt(); --j >= 0;) {
+          prereqs.add(BoundName.fromString(in.readUTF()));
         }
+        loaded.put(name, new StoredNode(
+            new ProdEndPoints(name, sources, targets), prereqs.build()));
       }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Discarding unreadable plan graph", ex);
+      return;
+    } catch (IllegalArgumentException ex) {
+      logger.log(Level.WARNING, "Discarding unreadable plan graph", ex);
+      return;
     }
-    ImmutableGlobSet[] globsArr = endPoints.toArray(NO_GLOBS);
-    for (int n = globsArr.length, i = n; --i >= 0;) {
-      for (int j = i; --j >= 0;) {
-        if (j == i) { continue; }
-        EndPoints ep = new EndPoints(globsArr[i], globsArr[j]);
-        if (edges.containsKey(ep)) { continue; }
-        Boolean inter = Glob.overlaps(ep.sources, ep.targets);
-        edges.put(ep, inter);
-        edges.put(new EndPoints(globsArr[j], globsArr[i]), inter);
+    trusted.putAll(loaded);
+    for (StoredNode node : loaded.values()) {
+      for (BoundName prereq : node.prerequisites) {
+        storedPostrequisites.put(prereq, node.endPoints.name);
       }
     }
   }
 
-  private static class EndPoints {
+  /**
+   * Writes the whole graph as one record so that a crash cannot leave a
+   * stored edge that is inconsistent with the stored end points.
+   */
+  private void save() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(STORE_FORMAT);
+      out.writeInt(nodes.size());
+      for (ProdEndPoints node : nodes.values()) {
+        out.writeUTF(node.name.ident);
+        writeGlobs(node.sources, out);
+        writeGlobs(node.targets, out);
+        Collection<BoundName> prereqs = prerequisites.get(node.name);
+        out.writeInt(prereqs.size());
+        for (BoundName prereq : prereqs) { out.writeUTF(prereq.ident); }
+      }
+      out.flush();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);  // Writing to memory.
+    }
+    store.put(null, GRAPH_KEY, new DatabaseEntry(bytes.toByteArray()));
+  }
+
+  private static ImmutableGlobSet readGlobs(DataInputStream in)
+      throws IOException {
+    ImmutableList.Builder<Glob> globs = ImmutableList.builder();
+    for (int i = in.readInt(); --i >= 0;) {
+      globs.add(Glob.fromString(in.readUTF()));
+    }
+    return ImmutableGlobSet.of(globs.build());
+  }
+
+  private static void writeGlobs(ImmutableGlobSet globs, DataOutputStream out)
+      throws IOException {
+    List<Glob> list = Lists.newArrayList(globs);
+    out.writeInt(list.size());
+    for (Glob g : list) { out.writeUTF(g.toString()); }
+  }
+
+  private static final class ProdEndPoints {
+    final BoundName name;
     final ImmutableGlobSet sources;
     final ImmutableGlobSet targets;
+    Product p;
 
-    EndPoints(ImmutableGlobSet sources, ImmutableGlobSet targets) {
+    ProdEndPoints(
+        BoundName name, ImmutableGlobSet sources, ImmutableGlobSet targets) {
+      this.name = name;
       this.sources = sources;
       this.targets = targets;
     }
 
     @Override
-    public final boolean equals(Object o) {
-      if (!(o instanceof EndPoints)) { return false; }
-      EndPoints that = (EndPoints) o;
+    public boolean equals(Object o) {
+      if (!(o instanceof ProdEndPoints)) { return false; }
+      ProdEndPoints that = (ProdEndPoints) o;
       return this.sources.equals(that.sources)
           && this.targets.equals(that.targets);
     }
 
-    @Override public final int hashCode() {
+    @Override public int hashCode() {
       return sources.hashCode() + 31 * targets.hashCode();
     }
+
     @Override public String toString() {
       return "[" + sources + " -> " + targets + "]";
     }
   }
 
-  private static final class ProdEndPoints extends EndPoints {
-    Product p;
-    ProdEndPoints(ImmutableGlobSet sources, ImmutableGlobSet targets) {
-      super(sources, targets);
-    }
-  }
+  /** The end points of a product and its edges as read from the store. */
+  private static final class StoredNode {
+    final ProdEndPoints endPoints;
+    final ImmutableList<BoundName> prerequisites;
 
-  private static final ImmutableGlobSet[] NO_GLOBS = new ImmutableGlobSet[0];
-  private static final ProdEndPoints[] NO_PROD_END_POINTS
-      = new ProdEndPoints[0];
-  private static final Comparator<ProdEndPoints> CMP_BY_NAME
-      = new Comparator<ProdEndPoints>() {
-    public int compare(ProdEndPoints a, ProdEndPoints b) {
-      return a.p.name.compareTo(b.p.name);
+    StoredNode(
+        ProdEndPoints endPoints, ImmutableList<BoundName> prerequisites) {
+      this.endPoints = endPoints;
+      this.prerequisites = prerequisites;
     }
-  };
+  }
 }
@@ -44,6 +44,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.sleepycat.je.Database;
 
 import java.io.Closeable;
 import java.io.FileNotFoundException;
@@ -59,16 +60,20 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
  * Keeps the set of {@link Product products} and the {@link PlanGrapher}
  * up-to-date.
+ * <p>
+ * Plan files are re-run when they are invalidated, or when a tool signature
+ * changes, since plan files are run with the tool definitions in scope.
  *
  * @author Mike Samuel <mikesamuel@gmail.com>
  */
@@ -86,6 +91,7 @@ public final class Planner implements Closeable {
   private final ToolProvider toolbox;
   private final Logs logs;
   private final ScheduledExecutorService execer;
+  private final ScheduledExecutorService updateExecer;
   private final ArtifactAddresser<PlanPart> productAddresser
       = new ArtifactAddresser<PlanPart>() {
     public String addressFor(PlanPart artifact) {
@@ -95,9 +101,24 @@ public final class Planner implements Closeable {
       return planParts.get(files.getFileSystem().getPath(address));
     }
   };
-  private final Future<?> updater;
   private final ArtifactListener<Product> listener;
-  private final PlanGrapher grapher = new PlanGrapher();
+  private final PlanGrapher grapher;
+  /** Incremented when a tool signature changes.  Guarded by this. */
+  private int toolsVersion;
+  /** Tool definitions as of toolsVersion or null.  Guarded by this. */
+  private @Nullable ToolDef toolDef;
+  /** Re-runs plan files that are not valid.  Guarded by this. */
+  private @Nullable Future<?> updater;
+  /** True if {@link #updater} has not yet started.  Guarded by this. */
+  private boolean updatePending;
+  private boolean closed;
+
+  /** Receives updates as tool signatures are validated or invalidated. */
+  public final ArtifactListener<ToolSignature> toolListener
+      = new ArtifactListener<ToolSignature>() {
+    public void artifactChanged(ToolSignature sig) { toolsChanged(); }
+    public void artifactDestroyed(String toolName) { toolsChanged(); }
+  };
 
   /**
    * @param files versions plan files.
@@ -105,31 +126,54 @@ public final class Planner implements Closeable {
    * @param toolbox defines the tools available to plan files.
    * @param logs receive messages about product definitions.
    * @param listener receives updates as products are defined or destroyed.
-   * @param execer an executor which is used to schedule periodic maintenance
-   *     tasks and which is used to update product definitions.
+   * @param execer an executor which is used to update product definitions.
    */
   public Planner(
       FileVersioner files, ImmutableMap<String, ?> commonJsEnv,
       ToolProvider toolbox, Iterable<Path> planFiles, Logs logs,
       ArtifactListener<Product> listener, ScheduledExecutorService execer) {
+    this(
+        files, commonJsEnv, toolbox, planFiles, logs, listener, execer, execer,
+        null);
+  }
+
+  /**
+   * @param execer an executor which runs plan files.
+   * @param updateExecer an executor for the updates which wait on tool
+   *     definitions and then hand plan files to execer.  If execer is small
+   *     it should be a different executor, since the tools may be waiting
+   *     for a thread in execer.
+   * @param planGraphStore if not null, a table that the product graph is
+   *     loaded from and saved to so that a restart need not recompute it.
+   *     It is closed when the planner is.
+   */
+  public Planner(
+      FileVersioner files, ImmutableMap<String, ?> commonJsEnv,
+      ToolProvider toolbox, Iterable<Path> planFiles, Logs logs,
+      ArtifactListener<Product> listener, ScheduledExecutorService execer,
+      ScheduledExecutorService updateExecer,
+      @Nullable Database planGraphStore) {
     this.files = files;
     this.commonJsEnv = commonJsEnv;
     this.toolbox = toolbox;
     this.logs = logs;
     this.execer = execer;
+    this.updateExecer = updateExecer;
     ImmutableMap.Builder<Path, PlanPart> b = ImmutableMap.builder();
     for (Path p : planFiles) { b.put(p, new PlanPart(p)); }
     this.planParts = b.build();
-    this.updater = execer.scheduleWithFixedDelay(new Runnable() {
-      public void run() { getProductLists(); }
-    }, 1000, 1000, TimeUnit.MILLISECONDS);
+    this.grapher = new PlanGrapher(planGraphStore, logs.logger);
     this.listener = ArtifactListener.Factory.chain(
         grapher.productListener, listener);
+    scheduleUpdate();
   }
 
   /** Tears down non-local state. */
   public void close() {
-    updater.cancel(true);
+    synchronized (this) {
+      closed = true;
+      if (updater != null) { updater.cancel(true); }
+    }
     for (PlanPart pp : planParts.values()) {
       synchronized (pp) {
         if (pp.future != null) {
@@ -138,6 +182,7 @@ public final class Planner implements Closeable {
         }
       }
     }
+    grapher.close();
   }
 
   /**
@@ -189,16 +234,93 @@ public final class Planner implements Closeable {
 
   /**
    * A snapshot of the product graph.  This does not wait for products to be
-   * brought up-to-date.
+   * brought up-to-date.  Repeated calls return the same graph until products
+   * change.
    */
   public PlanGraph getPlanGraph() { return grapher.snapshot(); }
 
+  /**
+   * Brings plan files up-to-date as soon as possible.  Requests made while an
+   * update is waiting to run are coalesced.
+   */
+  private void scheduleUpdate() {
+    synchronized (this) {
+      if (updatePending || closed) { return; }
+      updatePending = true;
+      try {
+        updater = updateExecer.submit(new Runnable() {
+          public void run() {
+            synchronized (Planner.this) { updatePending = false; }
+            getProductLists();
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        // Shutting down.
+        updatePending = false;
+      }
+    }
+  }
+
+  private void toolsChanged() {
+    synchronized (this) {
+      ++toolsVersion;
+      toolDef = null;
+    }
+    scheduleUpdate();
+  }
+
   private List<Future<ImmutableList<Product>>> getProductLists() {
+    ToolDef tools = getToolDef();
+    if (tools == null) { return Collections.emptyList(); }
+    List<Future<ImmutableList<Product>>> out = Lists.newArrayList();
+    for (PlanPart pp : planParts.values()) {
+      boolean stale;
+      synchronized (pp) {
+        stale = pp.valid && pp.toolsVersion != tools.version;
+      }
+      // Products derived with old tool definitions need to be re-derived.
+      if (stale) { pp.invalidate(); }
+      Future<ImmutableList<Product>> products = requirePlanPart(tools, pp);
+      if (products != null) { out.add(products); }
+    }
+    return out;
+  }
+
+  /**
+   * The tool definitions that plan files are run with.  These are rebuilt
+   * only after a tool signature changes.
+   */
+  private @Nullable ToolDef getToolDef() {
+    synchronized (this) {
+      if (toolDef != null) { return toolDef; }
+    }
     Logger logger = logs.logger;
     // TODO: instead create an input so each tool's validator is in its own
     // appropriately named file to keep stack traces informative.
-    String toolJs;
+    List<ToolSignature> sigs = Lists.newArrayList();
     boolean gotAllTools = true;
+    for (Future<ToolSignature> f : toolbox.getAvailableToolSignatures()) {
+      try {
+        ToolSignature sig = f.get();
+        if (sig == null) {
+          gotAllTools = false;
+          continue;
+        }
+        sigs.add(sig);
+      } catch (ExecutionException ex) {
+        logger.log(Level.SEVERE, "Tool not available", ex);
+        gotAllTools = false;
+      } catch (InterruptedException ex) {
+        logger.log(Level.SEVERE, "Tool not available", ex);
+        gotAllTools = false;
+      }
+    }
+    // Read after the signatures are, since validating a tool above bumps the
+    // version.  A change that races with this is followed by another once the
+    // tool is re-validated.
+    int version;
+    synchronized (this) { version = toolsVersion; }
+    String toolJs;
     try {
       StringBuilder sb = new StringBuilder();
       JsonSink sink = new JsonSink(sb);
@@ -213,49 +335,36 @@ public final class Planner implements Closeable {
           .write("({\n")
           .write("  toString: function () { return '[object Tools]'; }");
 
-      for (Future<ToolSignature> f : toolbox.getAvailableToolSignatures()) {
-        try {
-          ToolSignature sig = f.get();
-          if (sig == null) {
-            gotAllTools = false;
-            continue;
-          }
-          sink.write(",\n");
-          sink.writeValue(sig.name).write(":freeze(");
-          if (sig.help != null) {
-            sink.write("withHelp(").writeValue(sig.help).write(", ");
-          } else {
-            sink.write("(");
-          }
-          sink.write("function ").write(sig.name)
-              .write("(inputs, outputs, options) {\n")
-              // copy and freeze options, outputs, and inputs
-              .write("    if ('string' === typeof inputs) {\n")
-              .write("      inputs = [inputs];\n")
-              .write("    }\n")
-              .write("    if ('string' === typeof outputs) {\n")
-              .write("      outputs = [outputs];\n")
-              .write("    }\n")
-              .write("    inputs = frozenCopy(inputs);\n")
-              .write("    outputs = frozenCopy(outputs);\n")
-              .write("    options = frozenCopy(options);\n")
-              .write("    var action = freeze({ tool: ").writeValue(sig.name)
-              .write(", outputs: outputs")
-              .write(", inputs: inputs")
-              .write(", options: options });\n");
-          if (sig.productChecker != null) {
-            sink.write("    (").writeValue(sig.productChecker)
-                .write(")(action);\n");
-          }
-          sink.write("    return action;\n")
-              .write("  }))\n");
-        } catch (ExecutionException ex) {
-          logger.log(Level.SEVERE, "Tool not available", ex);
-          gotAllTools = false;
-        } catch (InterruptedException ex) {
-          logger.log(Level.SEVERE, "Tool not available", ex);
-          gotAllTools = false;
+      for (ToolSignature sig : sigs) {
+        sink.write(",\n");
+        sink.writeValue(sig.name).write(":freeze(");
+        if (sig.help != null) {
+          sink.write("withHelp(").writeValue(sig.help).write(", ");
+        } else {
+          sink.write("(");
+        }
+        sink.write("function ").write(sig.name)
+            .write("(inputs, outputs, options) {\n")
+            // copy and freeze options, outputs, and inputs
+            .write("    if ('string' === typeof inputs) {\n")
+            .write("      inputs = [inputs];\n")
+            .write("    }\n")
+            .write("    if ('string' === typeof outputs) {\n")
+            .write("      outputs = [outputs];\n")
+            .write("    }\n")
+            .write("    inputs = frozenCopy(inputs);\n")
+            .write("    outputs = frozenCopy(outputs);\n")
+            .write("    options = frozenCopy(options);\n")
+            .write("    var action = freeze({ tool: ").writeValue(sig.name)
+            .write(", outputs: outputs")
+            .write(", inputs: inputs")
+            .write(", options: options });\n");
+        if (sig.productChecker != null) {
+          sink.write("    (").writeValue(sig.productChecker)
+              .write(")(action);\n");
         }
+        sink.write("    return action;\n")
+            .write("  }))\n");
       }
       sink.write("})\n");
       sink.close();
@@ -263,29 +372,29 @@ public final class Planner implements Closeable {
       logger.log(Level.FINER, "{0}", toolJs);
     } catch (IOException ex) {
       Throwables.propagate(ex);  // Writing to StringBuilder
-      return Collections.emptyList();
+      return null;
     }
 
-    if (!gotAllTools) {
+    ToolDef def = new ToolDef(
+        Executor.Input.builder(
+            toolJs,
+            BuiltinResourceLoader.getBuiltinResourceRoot(
+                files.getVersionRoot()).resolve("tools"))
+            .withActuals(commonJsEnv).build(),
+        version);
+    if (gotAllTools) {
+      synchronized (this) {
+        if (toolsVersion == version) { toolDef = def; }
+      }
+    } else {
+      // Don't cache so that missing tools are asked for again next time.
       logger.log(Level.WARNING, "Planner could not retrieve all tools");
     }
-
-    Executor.Input toolDef = Executor.Input.builder(
-        toolJs,
-        BuiltinResourceLoader.getBuiltinResourceRoot(files.getVersionRoot())
-            .resolve("tools"))
-        .withActuals(commonJsEnv).build();
-
-    List<Future<ImmutableList<Product>>> out = Lists.newArrayList();
-    for (PlanPart pp : planParts.values()) {
-      Future<ImmutableList<Product>> products = requirePlanPart(toolDef, pp);
-      if (products != null) { out.add(products); }
-    }
-    return out;
+    return def;
   }
 
   private Future<ImmutableList<Product>> requirePlanPart(
-      final Executor.Input toolDef, final PlanPart pp) {
+      final ToolDef toolDef, final PlanPart pp) {
     synchronized (pp) {
       if (pp.future != null) { return pp.future; }
       return pp.future = execer.submit(new Callable<ImmutableList<Product>>() {
@@ -318,7 +427,7 @@ public final class Planner implements Closeable {
             ImmutableList.Builder<Path> paths = ImmutableList.builder();
             try {
               Executor.Output<YSON> planFileOut = execPlan(
-                  toolDef, pp, hashes, paths);
+                  toolDef.input, pp, hashes, paths);
               if (planFileOut.exit == null) {
                 Object javaObj = planFileOut.result.toJavaObject();
                 ImmutableList<Product> products = unpack(pp, javaObj);
@@ -326,7 +435,8 @@ public final class Planner implements Closeable {
                   boolean isValid;
                   synchronized (pp) {
                     isValid = files.updateArtifact(
-                        productAddresser, pp, new PlannerResult(t0, products),
+                        productAddresser, pp,
+                        new PlannerResult(t0, toolDef.version, products),
                         paths.build(), hashes.build());
                   }
                   if (isValid) {
@@ -413,6 +523,8 @@ public final class Planner implements Closeable {
     final String normPath;
     ImmutableList<Product> products;
     boolean valid;
+    /** The version of the tool definitions that products were derived with. */
+    int toolsVersion;
     Future<ImmutableList<Product>> future;
 
     PlanPart(Path planFile) {
@@ -453,6 +565,7 @@ public final class Planner implements Closeable {
       }
       logs.highLevelLog.planStatusChanged(
           logs.highLevelLog.getClock().nanoTime(), normPath, false);
+      scheduleUpdate();
     }
 
     public void validate(PlannerResult result) {
@@ -460,9 +573,16 @@ public final class Planner implements Closeable {
       synchronized (this) {
         this.valid = true;
         this.products = products;
+        this.toolsVersion = result.toolsVersion;
       }
       for (Product p : products) { listener.artifactChanged(p); }
       logs.highLevelLog.planStatusChanged(result.t0, normPath, true);
+      boolean toolsChanged;
+      synchronized (Planner.this) {
+        toolsChanged = result.toolsVersion != Planner.this.toolsVersion;
+      }
+      // Tools changed while the plan was running.
+      if (toolsChanged) { scheduleUpdate(); }
     }
   }
 
@@ -472,11 +592,24 @@ public final class Planner implements Closeable {
 
   private static final class PlannerResult {
     final long t0;
+    final int toolsVersion;
     final ImmutableList<Product> products;
 
-    PlannerResult(long t0, ImmutableList<Product> products) {
+    PlannerResult(
+        long t0, int toolsVersion, ImmutableList<Product> products) {
       this.t0 = t0;
+      this.toolsVersion = toolsVersion;
       this.products = products;
     }
   }
+
+  private static final class ToolDef {
+    final Executor.Input input;
+    final int version;
+
+    ToolDef(Executor.Input input, int version) {
+      this.input = input;
+      this.version = version;
+    }
+  }
 }
@@ -59,8 +59,8 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -99,7 +99,12 @@ public class ToolBox implements ToolProvider {
         }
       };
   final ArtifactListener<ToolSignature> listener;
-  private Future<?> updater;
+  /** Guarded by this. */
+  private @Nullable Future<?> updater;
+  /** True if {@link #updater} has been submitted but has not yet started. */
+  private boolean updatePending;
+  /** True once {@link #start} has found the initial set of tools. */
+  private volatile boolean started;
 
   /**
    * An initialized but inactive tool-box.  Call {@link #start} to activate it.
@@ -109,8 +114,7 @@ public class ToolBox implements ToolProvider {
    * @param logs receive messages about tool building progress.
    * @param listener is updated when tool definitions are invalidated or
    *     validated.
-   * @param execer an executor which is used to schedule periodic maintenance
-   *     tasks and which is used to update tool definitions.
+   * @param execer an executor which is used to update tool definitions.
    */
   public ToolBox(FileVersioner files, ImmutableMap<String, ?> commonJsEnv,
                  Iterable<Path> toolDirs, Logs logs,
@@ -149,15 +153,26 @@ public class ToolBox implements ToolProvider {
     }
     // Load the builtin tools from a tools.txt file in this same directory.
     for (String builtin : getBuiltinToolNames()) { checkBuiltin(builtin); }
-
-    scheduleUpdate();
   }
 
+  /**
+   * Validates tools as soon as possible.  Requests made while an update is
+   * waiting to run are coalesced, so a burst of invalidations causes one
+   * update, not one per invalidation.
+   */
   synchronized void scheduleUpdate() {
-    if (this.updater == null || this.updater.isDone()) {
-      this.updater = execer.schedule(new Runnable() {
-        public void run() { getAvailableToolSignatures(); }
-      }, 1000, TimeUnit.MILLISECONDS);
+    if (updatePending) { return; }
+    updatePending = true;
+    try {
+      this.updater = execer.submit(new Runnable() {
+        public void run() {
+          synchronized (ToolBox.this) { updatePending = false; }
+          getAvailableToolSignatures();
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // Shutting down.
+      updatePending = false;
     }
   }
 
@@ -223,6 +238,8 @@ public class ToolBox implements ToolProvider {
       th.setDaemon(true);
       th.start();
     }
+    started = true;
+    scheduleUpdate();
   }
 
   protected Iterable<String> getBuiltinToolNames() throws IOException {
@@ -459,7 +476,10 @@ public class ToolBox implements ToolProvider {
       underVersionRoot = toolPath.startsWith(files.getVersionRoot());
     }
     return new ToolContent(
-        FileAndHash.fromStream(toolPath, jsIn, underVersionRoot), isBuiltin);
+        FileAndHash.fromStream(
+            toolPath, jsIn,
+            underVersionRoot ? files.getHashAlgorithm() : null),
+        isBuiltin);
   }
 
   Path nextToolPath(ToolImpl ti, Path path) throws IOException {
@@ -484,7 +504,9 @@ public class ToolBox implements ToolProvider {
   public final void close() throws IOException {
     if (watcher != null) { watcher.close(); }
     synchronized (tools) { tools.clear(); }
-    updater.cancel(true);
+    synchronized (this) {
+      if (updater != null) { updater.cancel(true); }
+    }
   }
 
   private static @Nullable String toolName(String fileName) {
@@ -536,6 +558,8 @@ public class ToolBox implements ToolProvider {
   private void check(int dirIndex, boolean exists, Path localName) {
     String toolName = toolName(localName.toString());
     if (toolName == null) { return; }
+    boolean added = false;
+    ToolImpl removed = null;
     synchronized (tools) {
       Tool tool = tools.get(toolName);
       if (exists) {
@@ -545,12 +569,20 @@ public class ToolBox implements ToolProvider {
         }
         if (!tool.impls.containsKey(dirIndex)) {
           tool.impls.put(dirIndex, new ToolImpl(tool, dirIndex));
+          added = true;
         }
       } else if (tool != null) {
-        tool.impls.remove(dirIndex);
+        removed = tool.impls.remove(dirIndex);
         if (tool.impls.isEmpty()) { tools.remove(toolName); }
       }
     }
+    // Tell listeners that the removed tool's signature is gone, and validate
+    // any implementation that now takes its place.
+    if (removed != null && removed.isValid()) {
+      removed.invalidate();
+    } else if (added && started) {
+      scheduleUpdate();
+    }
   }
 
   private static final class PathToRealPath implements Function<Path, Path> {
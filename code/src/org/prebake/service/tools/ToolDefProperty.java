@@ -31,5 +31,11 @@ public enum ToolDefProperty {
    * The name of a function that uses the tool to build a product.
    */
   fire,
+  /**
+   * The name of a boolean that, if true, declares that no process the tool
+   * runs writes to or changes the permissions of its inputs, so inputs may be
+   * hard linked into working directories instead of copied.
+   */
+  readOnlyInputs,
   ;
 }
@@ -40,14 +40,18 @@ public final class ToolSignature implements JsonSerializable {
   public final @Nullable MobileFunction productChecker;
   public final @Nullable Documentation help;
   public final boolean deterministic;
+  /** @see ToolDefProperty#readOnlyInputs */
+  public final boolean readOnlyInputs;
 
   public ToolSignature(
       String name, @Nullable MobileFunction productChecker,
-      @Nullable Documentation help, boolean deterministic) {
+      @Nullable Documentation help, boolean deterministic,
+      boolean readOnlyInputs) {
     this.name = name;
     this.productChecker = productChecker;
     this.help = help;
     this.deterministic = deterministic;
+    this.readOnlyInputs = readOnlyInputs;
   }
 
   public void toJson(JsonSink sink) throws IOException {
@@ -60,6 +64,10 @@ public final class ToolSignature implements JsonSerializable {
       sink.write(",").writeValue(ToolDefProperty.check.name())
           .write(":").writeValue(productChecker);
     }
+    if (readOnlyInputs) {
+      sink.write(",").writeValue(ToolDefProperty.readOnlyInputs.name())
+          .write(":").writeValue(true);
+    }
     sink.write("}");
   }
 
@@ -72,6 +80,7 @@ public final class ToolSignature implements JsonSerializable {
     if (!(o instanceof ToolSignature)) { return false; }
     ToolSignature that = (ToolSignature) o;
     return this.deterministic == that.deterministic
+        && this.readOnlyInputs == that.readOnlyInputs
         && this.name.equals(that.name)
         && Objects.equals(this.productChecker, that.productChecker)
         && Objects.equals(this.help, that.help);
@@ -87,6 +96,9 @@ public final class ToolSignature implements JsonSerializable {
           .optional(ToolDefProperty.help.name(), Documentation.CONVERTER, null)
           .optional(ToolDefProperty.check.name(), FN, null)
           .optional(ToolDefProperty.fire.name(), FN, null)
+          .optional(
+              ToolDefProperty.readOnlyInputs.name(),
+              YSONConverter.Factory.withType(Boolean.class), false)
           .build();
   public static final YSONConverter<ToolSignature> converter(
       final String name, final boolean deterministic) {
@@ -102,7 +114,10 @@ public final class ToolSignature implements JsonSerializable {
             check = check.withNameHint(
                 "_tool_" + YSON.stripNonNameChars(name) + "$check");
           }
-          return new ToolSignature(name, check, help, deterministic);
+          boolean readOnlyInputs = Boolean.TRUE.equals(
+              map.get(ToolDefProperty.readOnlyInputs));
+          return new ToolSignature(
+              name, check, help, deterministic, readOnlyInputs);
         }
         return null;
       }
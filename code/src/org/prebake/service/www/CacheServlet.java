@@ -0,0 +1,225 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.www;
+
+import org.prebake.channel.FileNames;
+import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
+import org.prebake.fs.FilePerms;
+import org.prebake.service.bake.RemoteCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.Attributes;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LimitInputStream;
+
+/**
+ * An HTTP servlet that serves and stores action cache entries and blobs for
+ * {@link org.prebake.service.bake.RemoteCache}s of other services so that
+ * several machines can share the outputs of bakes.
+ *
+ * <p>
+ * Content is stored in the same layout as the local
+ * {@link org.prebake.service.bake.ActionCache}, so when this servlet serves
+ * the service's own cache directory, the service's bakes are shared too.
+ *
+ * <p>
+ * Every request must carry the service's token or the secret shared by the
+ * services that use the cache in the {@link RemoteCache#SECRET_HEADER} header.
+ * A blob is only stored if its content hashes to its name, but any client
+ * that knows the secret can store action cache entries, so only share the
+ * secret with machines that are trusted to build.
+ *
+ * @author Mike Samuel <mikesamuel@gmail.com>
+ */
+public final class CacheServlet extends HttpServlet {
+  /** The path prefix under which the cache is served. */
+  public static final String PATH_PREFIX = "/cache/";
+
+  private static final Pattern PATH = Pattern.compile(
+      "^" + Pattern.quote(PATH_PREFIX)
+      + "(" + Pattern.quote(FileNames.ACTIONS)
+      + "|" + Pattern.quote(FileNames.BLOBS) + ")"
+      + "/([0-9a-f]{1,128})$");
+
+  private final Path cacheDir;
+  private final HashAlgorithm hashAlgorithm;
+  private final byte[] token;
+  private final @Nullable byte[] sharedSecret;
+  private final Logger logger;
+  /** Distinguishes temporary files written by concurrent requests. */
+  private final AtomicLong tmpCounter = new AtomicLong();
+
+  /**
+   * @param hashAlgorithm the algorithm that names blobs.
+   * @param token the service's token.
+   * @param sharedSecret the secret shared with other services, if any.
+   */
+  public CacheServlet(
+      Path cacheDir, HashAlgorithm hashAlgorithm, String token,
+      @Nullable String sharedSecret, Logger logger) {
+    this.cacheDir = cacheDir;
+    this.hashAlgorithm = hashAlgorithm;
+    this.token = token.getBytes(Charsets.UTF_8);
+    this.sharedSecret = sharedSecret != null
+        ? sharedSecret.getBytes(Charsets.UTF_8) : null;
+    this.logger = logger;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    if (!checkAuthorized(req, resp)) { return; }
+    Path p = pathFor(req);
+    if (p == null || p.notExists()) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    InputStream in;
+    long size;
+    try {
+      size = Attributes.readBasicFileAttributes(p).size();
+      in = p.newInputStream();
+    } catch (IOException ex) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    try {
+      resp.setContentType("application/octet-stream");
+      resp.setContentLength((int) size);
+      OutputStream out = resp.getOutputStream();
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void doPut(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    if (!checkAuthorized(req, resp)) { return; }
+    Path p = pathFor(req);
+    if (p == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    boolean isBlob = p.startsWith(cacheDir.resolve(FileNames.BLOBS));
+    long maxBytes = isBlob
+        ? RemoteCache.MAX_BLOB_BYTES : RemoteCache.MAX_ENTRY_BYTES;
+    if (req.getContentLength() > maxBytes) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    mkdirs(p.getParent());
+    Path tmp = p.getParent().resolve("tmp-put-" + tmpCounter.incrementAndGet());
+    try {
+      long size;
+      // The content length may be absent, so count as well.
+      InputStream in = new LimitInputStream(req.getInputStream(), maxBytes + 1);
+      try {
+        OutputStream out = tmp.newOutputStream();
+        try {
+          size = ByteStreams.copy(in, out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (size > maxBytes) {
+        tmp.delete();
+        resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+      // Blobs are named by their content so that clients can trust them.
+      if (isBlob && !Hash.builder(hashAlgorithm).withFile(tmp).build()
+          .toHexString().equals(p.getName().toString())) {
+        tmp.delete();
+        resp.sendError(
+            HttpServletResponse.SC_BAD_REQUEST,
+            "Content does not match hash");
+        return;
+      }
+      // Entries and blobs are written whole, so a concurrent GET sees either
+      // the old content or the new.
+      tmp.moveTo(p, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to store " + p + " in cache", ex);
+      tmp.deleteIfExists();
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+    resp.setStatus(HttpServletResponse.SC_CREATED);
+  }
+
+  /**
+   * True if the request carries the token or shared secret.  Otherwise
+   * responds with an error.
+   */
+  private boolean checkAuthorized(
+      HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    String secret = req.getHeader(RemoteCache.SECRET_HEADER);
+    if (secret != null) {
+      byte[] bytes = secret.getBytes(Charsets.UTF_8);
+      if (MessageDigest.isEqual(bytes, token)
+          || (sharedSecret != null
+              && MessageDigest.isEqual(bytes, sharedSecret))) {
+        return true;
+      }
+    }
+    resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    return false;
+  }
+
+  /** The file for the requested cache entry or blob, or null if not valid. */
+  private @Nullable Path pathFor(HttpServletRequest req) {
+    String path = URI.create(req.getRequestURI()).getPath();
+    Matcher m = PATH.matcher(path);
+    if (!m.matches()) { return null; }
+    return cacheDir.resolve(m.group(1)).resolve(m.group(2));
+  }
+
+  private synchronized void mkdirs(Path dir) throws IOException {
+    if (dir.notExists()) {
+      Path parent = dir.getParent();
+      if (parent != null) { mkdirs(parent); }
+      // Only the service reads the cache.
+      dir.createDirectory(FilePerms.perms(0700, true));
+    }
+  }
+}
@@ -200,6 +200,8 @@ public final class MainServlet extends HttpServlet {
       } else {
         resp.sendError(404);
       }
+    } else if ("/pools.json".equals(path)) {
+      servePoolsJson(resp);
     } else if (path.startsWith("/product/")) {
       serveProductDoc(path.substring(9), resp);
     } else if (path.startsWith("/logs/")) {
@@ -302,6 +304,17 @@ public final class MainServlet extends HttpServlet {
     w.close();
   }
 
+  private void servePoolsJson(Response resp) throws IOException {
+    resp.setContentType("application/json; charset=UTF-8");
+    Writer w = resp.getWriter();
+    try {
+      JsonSink sink = new JsonSink(w);
+      sink.writeValue(pb.getWorkerPoolStats());
+    } finally {
+      w.close();
+    }
+  }
+
   private void servePlanJson(Response resp) throws IOException {
     //resp.setContentType("application/json; charset=UTF-8");
     resp.setContentType("application/json; charset=UTF-8");
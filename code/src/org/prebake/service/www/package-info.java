@@ -43,6 +43,12 @@
  *     &lt;tool-name<sub>n</sub>&gt;
  *   mirror/
  *     &lt;mirror of tree under prebake-www&gt;   Generated client reports.
+ *   pools.json                             Worker pool queue depths and
+ *                                          utilization.
+ *   cache/                                 Only with --serve-cache.  Needs
+ *                                          the token or cache secret.
+ *     actions/&lt;hex&gt;                       GET or PUT a cached bake.
+ *     blobs/&lt;hex&gt;                         GET or PUT output content.
  *   prebake-api/
  *     do                                   POST only API.
  *   logs
@@ -17,6 +17,7 @@ package org.prebake;
 import org.prebake.channel.Commands;
 import org.prebake.client.Bake;
 import org.prebake.client.Connection;
+import org.prebake.core.HashAlgorithm;
 import org.prebake.fs.StubPipe;
 import org.prebake.js.JsonSource;
 import org.prebake.os.OperatingSystem;
@@ -26,6 +27,7 @@ import org.prebake.service.HighLevelLog;
 import org.prebake.service.Logs;
 import org.prebake.service.Prebakery;
 import org.prebake.service.TestLogHydra;
+import org.prebake.service.WorkerPools;
 import org.prebake.util.MoreAsserts;
 import org.prebake.util.PbTestCase;
 import org.prebake.util.TestClock;
@@ -37,6 +39,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.util.List;
@@ -120,6 +123,55 @@ public class EndToEndTest extends PbTestCase {
             "  tmpdir/");
   }
 
+  @Test public final void testBakeRightAfterEdit() throws Exception {
+    tester.withFileSystem(fileSystemFromAsciiArt(
+        "/cwd",
+        Joiner.on('\n').join(
+            "/",
+            "  cwd/",
+            "    root/",
+            "      src/",
+            "        a.foo \"foo\"",
+            "      plan.js \"({ foo: tools.cp('src/*.foo', 'out/*.bar') })\"",
+            "  tools/",
+            "  tmpdir/")))
+        .start()
+        .withClientWorkingDir("root")
+        .sendCommand("sync")
+        .assertResult(0)
+        .sendCommand("bake", "foo")
+        .assertResult(0)
+        // The bake must not see foo as up-to-date while its invalidation is
+        // still queued.
+        .writeFile("/cwd/root/src/a.foo", "bar")
+        .sendCommand("files_changed", "src/a.foo")
+        .assertResult(0)
+        .sendCommand("bake", "foo")
+        .assertResult(0)
+        .sendCommand("shutdown")
+        .assertResult(0)
+        .waitForShutdown()
+        .assertLog(
+            "INFO:Starting bake of product foo",
+            "INFO:Cooked foo",
+            "INFO:Starting bake of product foo",
+            "INFO:Cooked foo")
+        .assertFileSystem(
+            "/",
+            "  cwd/",
+            "    root/",
+            "      src/",
+            "        a.foo \"bar\"",
+            "      plan.js \"...\"",
+            "      .prebake/",
+            "        logs/",
+            "        cmdline \"...\"",
+            "      out/",
+            "        a.bar \"bar\"",
+            "  tools/",
+            "  tmpdir/");
+  }
+
   @Test public final void testParameterizedProduct() throws Exception {
     // Normally, you would not use parameterized rules with cp, but this is
     // for a test.
@@ -220,6 +272,18 @@ public class EndToEndTest extends PbTestCase {
         public int getUmask() { return 700; }
         public int getWwwPort() { return -1; }
         public boolean getLocalhostTrusted() { return false; }
+        public boolean getPersistentState() { return false; }
+        public int getHashThreads() { return -1; }
+        public HashAlgorithm getHashAlgorithm() {
+          return HashAlgorithm.DEFAULT;
+        }
+        public Map<WorkerPools.Workload, Integer> getPoolThreads() {
+          return ImmutableMap.of();
+        }
+        public URI getRemoteCache() { return null; }
+        public boolean getServeCache() { return false; }
+        public Path getCacheSecretFile() { return null; }
+        public boolean getKeepWorkingDirs() { return false; }
       };
       OperatingSystem os = new StubOperatingSystem(fs, logger);
 
@@ -344,6 +408,11 @@ public class EndToEndTest extends PbTestCase {
       return this;
     }
 
+    Tester writeFile(String path, String content) throws IOException {
+      EndToEndTest.this.writeFile(fs.getPath(path), content);
+      return this;
+    }
+
     Tester assertResult(int expectedResult) {
       assertEquals(expectedResult, commandResult);
       return this;
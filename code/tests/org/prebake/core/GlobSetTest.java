@@ -44,6 +44,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -146,6 +148,157 @@ public class GlobSetTest extends PbTestCase {
     assertFalse(gset.matches(new StubPath("foo/bar/Bar.java")));
   }
 
+  @Test public final void testOverlapCandidates() {
+    MutableGlobSet gset = new MutableGlobSet();
+    for (String glob : new String[] {
+           "**", "**.c", "**.h", "foo/**", "foo/*.c", "foo/bar/*.h",
+           "foo/bar/baz.c", "src///org/**.c", "bar/*.c" }) {
+      gset.add(Glob.fromString(glob));
+    }
+    assertEquals(
+        "[**, **.c, foo/*.c, foo/**, foo/bar/baz.c]",
+        candidates(gset, "foo/**.c"));
+    assertEquals(
+        "[**, **.h, foo/**, foo/bar/*.h]", candidates(gset, "foo/bar/x.h"));
+    assertEquals("[**, **.c, src///org/**.c]", candidates(gset, "src/*.c"));
+    assertEquals(
+        "[**, **.c, **.h, bar/*.c, foo/*.c, foo/**, foo/bar/*.h,"
+        + " foo/bar/baz.c, src///org/**.c]",
+        candidates(gset, "**"));
+  }
+
+  private static String candidates(GlobSet gset, String glob) {
+    List<Glob> candidates = gset.overlapCandidates(Glob.fromString(glob));
+    Set<Glob> unique = Sets.newTreeSet(candidates);
+    // Each candidate is listed once.
+    assertEquals(unique.size(), candidates.size());
+    return unique.toString();
+  }
+
+  @Test public final void testMatchingEdgeCases() {
+    MutableGlobSet gset = new MutableGlobSet();
+    Glob dir = Glob.fromString("foo/");
+    Glob anyUnderFoo = Glob.fromString("foo/**/*.txt");
+    Glob sameHole = Glob.fromString("*(x)/*(x).txt");
+    Glob treeRoot = Glob.fromString("src///org/*.java");
+    gset.add(dir);
+    gset.add(anyUnderFoo);
+    gset.add(sameHole);
+    gset.add(treeRoot);
+    assertEquals(
+        ImmutableList.of(dir), ImmutableList.copyOf(
+            gset.matching(new StubPath("foo"))));
+    // foo/**/ matches foo/ and the hole for a repeated name must agree.
+    assertEquals(
+        Sets.newHashSet(anyUnderFoo, sameHole),
+        Sets.newHashSet(gset.matching(new StubPath("foo/foo.txt"))));
+    assertEquals(
+        ImmutableList.of(anyUnderFoo), ImmutableList.copyOf(
+            gset.matching(new StubPath("foo/bar.txt"))));
+    // Back-slashes are separators too.
+    assertEquals(
+        ImmutableList.of(anyUnderFoo), ImmutableList.copyOf(
+            gset.matching(new StubPath("foo\\a\\b.txt"))));
+    assertEquals(
+        ImmutableList.of(treeRoot), ImmutableList.copyOf(
+            gset.matching(new StubPath("src/org/Foo.java"))));
+    assertTrue(gset.remove(anyUnderFoo));
+    assertTrue(gset.matches(new StubPath("foo/foo.txt")));
+    assertFalse(gset.matches(new StubPath("foo/bar.txt")));
+  }
+
+  /**
+   * Checks the compiled matcher against {@link Glob#match} on 100k random
+   * glob/path pairs, using globs with holes, tree roots and trailing
+   * separators, and paths with either kind of separator.
+   */
+  @Test public final void testMatcherAgreesWithGlobMatch() {
+    Random rnd = new Random(0x5eed);
+    int nGlobs = 20, nPaths = 20;
+    for (int run = 250; --run >= 0;) {
+      List<Glob> globs = Lists.newArrayList();
+      while (globs.size() < nGlobs) {
+        Glob g = randomMatcherGlob(rnd);
+        if (g != null) { globs.add(g); }
+      }
+      GlobMatcher matcher = new GlobMatcher(globs);
+      for (int i = nPaths; --i >= 0;) {
+        String path = randomMatcherPath(rnd);
+        List<Glob> expected = Lists.newArrayList();
+        for (Glob g : globs) {
+          if (g.match(path)) { expected.add(g); }
+        }
+        assertEquals(
+            globs + " : " + path, Sets.newHashSet(expected),
+            Sets.newHashSet(matcher.matching(path)));
+        assertEquals(
+            globs + " : " + path, !expected.isEmpty(), matcher.matches(path));
+      }
+    }
+  }
+
+  @Test public final void testOverlapCandidatesAgreeWithOverlaps() {
+    Random rnd = new Random(0x5eed);
+    int nGlobs = 20, nQueries = 20;
+    for (int run = 300; --run >= 0;) {
+      MutableGlobSet gset = new MutableGlobSet();
+      List<Glob> globs = Lists.newArrayList();
+      while (globs.size() < nGlobs) {
+        Glob g = randomMatcherGlob(rnd);
+        // Glob sets do not hold the empty glob.
+        if (g != null && !g.parts().isEmpty() && !globs.contains(g)) {
+          globs.add(g);
+          gset.add(g);
+        }
+      }
+      for (int i = nQueries; --i >= 0;) {
+        Glob q = randomMatcherGlob(rnd);
+        if (q == null || q.parts().isEmpty()) { q = Glob.fromString("**"); }
+        List<Glob> candidates = Lists.newArrayList(gset.overlapCandidates(q));
+        assertEquals(
+            q + " : " + candidates, Sets.newHashSet(candidates).size(),
+            candidates.size());
+        for (Glob g : globs) {
+          if (Glob.overlaps(ImmutableList.of(q), ImmutableList.of(g))) {
+            assertTrue(q + " overlaps " + g, candidates.contains(g));
+          }
+        }
+      }
+    }
+  }
+
+  private static final String[] MATCHER_GLOB_TOKENS = {
+    "a", "b", "ab", ".a", "a.b", "/", "///", "*", "**", "*(x)", "**(x)",
+    "*(y)", "**(y)"
+  };
+
+  /** A random glob, or null if the tokens chosen are not a valid glob. */
+  private static @Nullable Glob randomMatcherGlob(Random rnd) {
+    StringBuilder sb = new StringBuilder();
+    for (int n = rnd.nextInt(7); --n >= 0;) {
+      sb.append(MATCHER_GLOB_TOKENS[rnd.nextInt(MATCHER_GLOB_TOKENS.length)]);
+    }
+    // A tree root needs a prefix.
+    if (sb.indexOf("///") == 0) { return null; }
+    try {
+      return Glob.fromString(sb.toString());
+    } catch (Glob.GlobSyntaxException ex) {
+      return null;
+    }
+  }
+
+  private static final String[] MATCHER_PATH_TOKENS = {
+    "a", "b", "ab", ".", "/", "/", "\\"
+  };
+
+  private static String randomMatcherPath(Random rnd) {
+    StringBuilder sb = new StringBuilder();
+    for (int n = rnd.nextInt(9); --n >= 0;) {
+      sb.append(MATCHER_PATH_TOKENS[rnd.nextInt(MATCHER_PATH_TOKENS.length)]);
+    }
+    return sb.toString();
+  }
+
   @Test public final void testImmutableGlobSet() throws Exception {
     FileSystem fs = fileSystemFromAsciiArt("/", "/");
 
@@ -331,6 +331,30 @@ public class GlobTest extends PbTestCase {
     assertTransform("/foo/foo/bar.txt", "lib/**", "/foo/**", "lib/foo/bar.txt");
   }
 
+  @Test public final void testMemoization() {
+    // Unlikely to be used by other tests, so not yet in the memo tables.
+    Glob in = Glob.fromString("memo/**/*.in");
+    Glob out = Glob.fromString("memo/**/*.out");
+    Map<String, Long> before = Glob.getMemoStats();
+    assertNull(Glob.intersection(in, out));
+    assertNull(Glob.intersection(in, out));
+    assertFalse(Glob.overlaps(ImmutableList.of(in), ImmutableList.of(out)));
+    assertFalse(Glob.overlaps(ImmutableList.of(in), ImmutableList.of(out)));
+    assertSame(Glob.transform(in, out), Glob.transform(in, out));
+    Map<String, Long> after = Glob.getMemoStats();
+    for (String fn : new String[] { "intersection", "overlaps", "transform" }) {
+      assertEquals(
+          fn, 1L, after.get(fn + ".hits") - before.get(fn + ".hits"));
+      assertEquals(
+          fn, 1L, after.get(fn + ".misses") - before.get(fn + ".misses"));
+    }
+    // Results do not depend on hole names, which equals ignores.
+    assertEquals(
+        "memo/foo/x.out",
+        Glob.transform(Glob.fromString("memo/**/*(x).in"), out)
+            .apply("memo/foo/x.in"));
+  }
+
   @Test public final void testNormGlob() {
     assertEquals("", Glob.normGlob(""));
     assertEquals("/", Glob.normGlob("/"));
@@ -0,0 +1,109 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.core;
+
+import org.prebake.util.PbTestCase;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class HashTest extends PbTestCase {
+  private static final String FOX
+      = "The quick brown fox jumps over the lazy dog";
+
+  @Test public final void testMurmur3() {
+    assertEquals(
+        "6c1b07bc7bbc4be347939ac4a93c437a",
+        murmur3Hex(FOX.getBytes(Charsets.UTF_8)));
+    assertEquals(
+        "67f8103e694299624753ebba820bdb92",
+        murmur3Hex("hell".getBytes(Charsets.UTF_8)));
+  }
+
+  @Test public final void testMurmur3Incremental() {
+    byte[] bytes = FOX.getBytes(Charsets.UTF_8);
+    String whole = murmur3Hex(bytes);
+    for (int split = 0; split <= bytes.length; ++split) {
+      Digester d = HashAlgorithm.MURMUR3_128.newDigester();
+      d.update(bytes, 0, split);
+      ByteBuffer rest = ByteBuffer.allocateDirect(bytes.length);
+      rest.put(bytes, split, bytes.length - split);
+      rest.flip();
+      d.update(rest);
+      assertEquals("" + split, whole, hex(d.digest()));
+    }
+  }
+
+  @Test public final void testAlgorithmsDiffer() {
+    Hash md5 = Hash.builder(HashAlgorithm.MD5).withString(FOX).build();
+    Hash sha = Hash.builder(HashAlgorithm.SHA256).withString(FOX).build();
+    Hash mm3 = Hash.builder(HashAlgorithm.MURMUR3_128).withString(FOX).build();
+    assertEquals(md5, Hash.builder().withString(FOX).build());
+    assertEquals(32, md5.toHexString().length());
+    assertEquals(64, sha.toHexString().length());
+    assertEquals(32, mm3.toHexString().length());
+    assertFalse(md5.equals(mm3));
+  }
+
+  @Test public final void testSerialization() {
+    for (HashAlgorithm a : HashAlgorithm.values()) {
+      Hash h = Hash.builder(a).withString(FOX).build();
+      byte[] data = h.toDatabaseEntry().getData();
+      assertEquals(a, Hash.algorithmOf(data));
+      assertTrue(h.matches(data));
+      assertEquals(h, Hash.fromDatabaseEntry(h.toDatabaseEntry()));
+    }
+    // Same digest, different algorithm.
+    byte[] data = Hash.builder(HashAlgorithm.MD5).withString(FOX).build()
+        .toDatabaseEntry().getData();
+    data[0] = HashAlgorithm.MURMUR3_128.id;
+    assertFalse(Hash.builder(HashAlgorithm.MD5).withString(FOX).build()
+        .matches(data));
+    data[0] = (byte) 0x7f;
+    assertNull(Hash.algorithmOf(data));
+  }
+
+  @Test public final void testWithFile() throws IOException {
+    FileSystem fs = fileSystemFromAsciiArt(
+        "/", "/", "  foo.txt \"" + FOX + "\"");
+    Path foo = fs.getPath("/foo.txt");
+    for (HashAlgorithm a : HashAlgorithm.values()) {
+      assertEquals(
+          Hash.builder(a).withData(FOX.getBytes(Charsets.UTF_8)).build(),
+          Hash.builder(a).withFile(foo).build());
+    }
+  }
+
+  private static String murmur3Hex(byte[] bytes) {
+    Digester d = HashAlgorithm.MURMUR3_128.newDigester();
+    d.update(bytes, 0, bytes.length);
+    return hex(d.digest());
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
@@ -18,12 +18,15 @@ import org.prebake.core.ArtifactListener;
 import org.prebake.core.BoundName;
 import org.prebake.core.Glob;
 import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
+import org.prebake.core.ImmutableGlobSet;
 import org.prebake.util.PbTestCase;
 import org.prebake.util.StubFileSystemProvider;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import com.sleepycat.je.Environment;
@@ -41,6 +44,9 @@ import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -279,6 +285,288 @@ public class DbFileVersionerTest extends PbTestCase {
     assertFalse(docsp.valid);
   }
 
+  @Test public final void testDeferredInvalidation() throws Exception {
+    final List<String> invalidated = Lists.newArrayList();
+    class Artifact implements NonFileArtifact<String> {
+      final String name;
+      Artifact(String name) { this.name = name; }
+      public void invalidate() { invalidated.add(name); }
+      public void validate(String s) { /* noop */ }
+    }
+    final Map<String, Artifact> artifacts = Maps.newHashMap();
+    ArtifactAddresser<Artifact> addresser = new ArtifactAddresser<Artifact>() {
+      public Artifact lookup(String address) { return artifacts.get(address); }
+      public String addressFor(Artifact a) { return a.name; }
+    };
+    final List<Runnable> tasks = Lists.newArrayList();
+    Executor queue = new Executor() {
+      public void execute(Runnable r) { tasks.add(r); }
+    };
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), false,
+        HashAlgorithm.DEFAULT, null, 1, queue, getLogger(Level.INFO));
+
+    Path a = fs.getPath("/cwd/root/a");
+    Path b = fs.getPath("/cwd/root/b");
+    writeFile(a, "file a version 0");
+    writeFile(b, "file b version 0");
+    fh.updateFiles(paths(a, b));
+    Artifact tool = new Artifact("tool");
+    Artifact product = new Artifact("product");
+    artifacts.put("tool", tool);
+    artifacts.put("product", product);
+    assertTrue(fh.updateArtifact(
+        addresser, tool, null, paths(a), getHash(a)));
+    assertTrue(fh.updateArtifact(
+        addresser, product, null, paths(a, b), getHash(a, b)));
+
+    // Two batches queue one task, and nothing is invalidated until it runs.
+    writeFile(b, "file b version 1");
+    fh.updateFiles(paths(b));
+    writeFile(a, "file a version 1");
+    fh.updateFiles(paths(a));
+    assertEquals("", Joiner.on(',').join(invalidated));
+    assertEquals(1, tasks.size());
+    tasks.remove(0).run();
+    // Each artifact is invalidated once, in the order first derived.
+    assertEquals("tool,product", Joiner.on(',').join(invalidated));
+    assertTrue(tasks.isEmpty());
+  }
+
+  @Test public final void testPrerequisiteIdsFreed() throws Exception {
+    class Artifact implements NonFileArtifact<String> {
+      final String name;
+      Artifact(String name) { this.name = name; }
+      public void invalidate() { /* noop */ }
+      public void validate(String s) { /* noop */ }
+    }
+    final Artifact tool = new Artifact("tool");
+    ArtifactAddresser<Artifact> addresser = new ArtifactAddresser<Artifact>() {
+      public Artifact lookup(String address) {
+        return tool.name.equals(address) ? tool : null;
+      }
+      public String addressFor(Artifact a) { return a.name; }
+    };
+    DbFileVersioner dfv = (DbFileVersioner) fh;
+
+    Path a = fs.getPath("/cwd/root/a");
+    Path b = fs.getPath("/cwd/root/b");
+    Path missing = fs.getPath("/cwd/root/missing");
+    writeFile(a, "file a");
+    fh.updateFiles(paths(a));
+    // A file that does not exist gets an ID when an artifact depends on it.
+    assertTrue(fh.updateArtifact(
+        addresser, tool, null, paths(a, missing), getHash(a, missing)));
+    int missingId = dfv.unittestBackdoorPathId("missing");
+    assertTrue(missingId != KeyDictionary.NO_ID);
+    // Which is freed once the artifact no longer depends on it.
+    assertTrue(fh.updateArtifact(
+        addresser, tool, null, paths(a), getHash(a)));
+    assertEquals(KeyDictionary.NO_ID, dfv.unittestBackdoorPathId("missing"));
+    assertTrue(dfv.unittestBackdoorPathId("a") != KeyDictionary.NO_ID);
+    // And handed out again.
+    writeFile(b, "file b");
+    fh.updateFiles(paths(b));
+    assertEquals(missingId, dfv.unittestBackdoorPathId("b"));
+  }
+
+  @Test public final void testHashFiles() throws Exception {
+    Path a = fs.getPath("/cwd/root/a");
+    Path b = fs.getPath("/cwd/root/b");
+    Path c = fs.getPath("/cwd/c");
+    writeFile(a, "file a version 0");
+    writeFile(b, "file b version 0");
+    writeFile(c, "file c version 0");
+    fh.updateFiles(paths(a));
+    String stored = getHashStr(a);
+    // a is stored, b is not, and c is outside the root.
+    assertEquals(
+        ImmutableList.of(
+            Hash.builder().withString("file a version 0").build(),
+            Hash.builder().withString("file b version 0").build(),
+            Hash.builder().withString("file c version 0").build()),
+        fh.hashFiles(paths(a, b, c)));
+    // A change not yet reported is seen, but does not update the store.
+    writeFile(a, "file a version 1");
+    Hash a1 = Hash.builder().withString("file a version 1").build();
+    assertEquals(ImmutableList.of(a1), fh.hashFiles(paths(a)));
+    assertEquals(stored, getHashStr(a));
+    fh.updateFiles(paths(a));
+    assertFalse(stored.equals(getHashStr(a)));
+    assertEquals(ImmutableList.of(a1), fh.hashFiles(paths(a)));
+  }
+
+  @Test public final void testDirectoryUpdate() throws Exception {
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), false,
+        getLogger(Level.FINE));
+    Path a = fs.getPath("/cwd/root/d/a");
+    Path b = fs.getPath("/cwd/root/d/e/b");
+    Path c = fs.getPath("/cwd/root/c");
+    mkdirs(b.getParent());
+    writeFile(a, "file a version 0");
+    writeFile(b, "file b version 0");
+    writeFile(c, "file c version 0");
+    fh.updateFiles(paths(a, b, c));
+    String hashC = getHashStr(c);
+    // Changes that were not reported are found when the directory is.
+    writeFile(a, "file a version 1");
+    b.delete();
+    b.getParent().delete();
+    writeFile(c, "file c version 1");
+    getLog().clear();
+    fh.updateFiles(paths(fs.getPath("/cwd/root/d")));
+    assertEquals(
+        "FINE: Hashing file /cwd/root/d/a", Joiner.on('\n').join(getLog()));
+    ImmutableGlobSet all = ImmutableGlobSet.of(
+        ImmutableList.of(Glob.fromString("**")));
+    assertEquals("[c, d/a]", fh.matching(all).toString());
+    assertEquals(hashC, getHashStr(c));
+  }
+
+  @Test public final void testPersistentHashes() throws Exception {
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), true,
+        getLogger(Level.FINE));
+    Path a = fs.getPath("/cwd/root/a");
+    Path b = fs.getPath("/cwd/root/b");
+    Path c = fs.getPath("/cwd/root/c");
+    writeFile(a, "file a version 0");
+    writeFile(b, "file b version 0");
+    writeFile(c, "file c version 0");
+    fh.updateFiles(paths(a, b, c));
+    String hashA = getHashStr(a);
+    String hashB = getHashStr(b);
+    String hashC = getHashStr(c);
+
+    // Restart the versioner.  While down, b changes and c is deleted.
+    fh.close();
+    writeFile(b, "file b version 1");
+    c.delete();
+    getLog().clear();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), true,
+        getLogger(Level.FINE));
+    // Before reconciliation, the stored hashes are used.
+    assertEquals(hashA, getHashStr(a));
+    assertEquals(hashB, getHashStr(b));
+    assertEquals(hashC, getHashStr(c));
+    fh.reconcile();
+    assertEquals(hashA, getHashStr(a));
+    assertFalse(hashB.equals(getHashStr(b)));
+    assertFalse(hashC.equals(getHashStr(c)));
+    // Only the changed file was rehashed.
+    assertEquals(
+        Joiner.on('\n').join(
+            "INFO: Reconciling 3 stored file hashes",
+            "FINE: Hashing file /cwd/root/b"),
+        Joiner.on('\n').join(getLog()));
+    getLog().clear();
+    // Reporting the unchanged file does not cause it to be reread.
+    fh.updateFiles(paths(a));
+    assertEquals("", Joiner.on('\n').join(getLog()));
+  }
+
+  @Test public final void testTemporaryHashes() throws Exception {
+    Path a = fs.getPath("/cwd/root/a");
+    writeFile(a, "file a version 0");
+    fh.updateFiles(paths(a));
+    String hashA = getHashStr(a);
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(),
+        getLogger(Level.INFO));
+    assertFalse(hashA.equals(getHashStr(a)));
+  }
+
+  @Test public final void testParallelHashing() throws Exception {
+    List<Path> files = Lists.newArrayList();
+    for (int i = 0; i < 100; ++i) {
+      Path p = fs.getPath("/cwd/root/f" + i);
+      writeFile(p, "file " + i);
+      files.add(p);
+    }
+    fh.updateFiles(files);
+    List<String> serialHashes = Lists.newArrayList();
+    for (Path p : files) { serialHashes.add(getHashStr(p)); }
+    fh.close();
+
+    ExecutorService execer = Executors.newFixedThreadPool(3);
+    try {
+      fh = new DbFileVersioner(
+          env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), false,
+          HashAlgorithm.DEFAULT, execer, 4, null, getLogger(Level.INFO));
+      fh.updateFiles(files);
+      List<String> parallelHashes = Lists.newArrayList();
+      for (Path p : files) { parallelHashes.add(getHashStr(p)); }
+      assertEquals(serialHashes, parallelHashes);
+      // Deletions are seen too.
+      files.get(7).delete();
+      fh.updateFiles(files);
+      assertFalse(serialHashes.get(7).equals(getHashStr(files.get(7))));
+      assertEquals(serialHashes.get(8), getHashStr(files.get(8)));
+    } finally {
+      execer.shutdown();
+    }
+  }
+
+  @Test public final void testHashAlgorithmChange() throws Exception {
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), true,
+        getLogger(Level.FINE));
+    Path a = fs.getPath("/cwd/root/a");
+    writeFile(a, "file a version 0");
+    fh.updateFiles(paths(a));
+    assertEquals(HashAlgorithm.MD5, getHash(a).getAlgorithm());
+    Hash md5 = getHash(a);
+    fh.close();
+
+    getLog().clear();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(), true,
+        HashAlgorithm.MURMUR3_128, null, 1, null, getLogger(Level.FINE));
+    fh.reconcile();
+    // The file did not change, but its stored hash is stale.
+    assertEquals(
+        Joiner.on('\n').join(
+            "INFO: Reconciling 1 stored file hashes",
+            "FINE: Hashing file /cwd/root/a"),
+        Joiner.on('\n').join(getLog()));
+    assertFalse(md5.equals(getHash(a)));
+    getLog().clear();
+    fh.updateFiles(paths(a));
+    assertEquals("", Joiner.on('\n').join(getLog()));
+  }
+
+  @Test public final void testBatchReport() throws Exception {
+    fh.close();
+    fh = new DbFileVersioner(
+        env, fs.getPath("/cwd/root"), Predicates.<Path>alwaysTrue(),
+        getLogger(Level.FINER));
+    Path a = fs.getPath("/cwd/root/a");
+    Path b = fs.getPath("/cwd/root/b");
+    Path c = fs.getPath("/cwd/root/c");
+    writeFile(a, "a");
+    writeFile(b, "b");
+    writeFile(c, "c");
+    // Reported out of key order.
+    fh.updateFiles(paths(c, a, b));
+    List<String> log = getLog();
+    String last = log.get(log.size() - 1);
+    assertTrue(
+        last, last.startsWith("FINER: Updated 3 files, 3 hashed, 3 changed."));
+    getLog().clear();
+    fh.updateFiles(paths(c, a, b));
+    log = getLog();
+    last = log.get(log.size() - 1);
+    assertTrue(
+        last, last.startsWith("FINER: Updated 3 files, 0 hashed, 0 changed."));
+  }
+
   private static GlobUnion globUnion(String ident, String... globs) {
     ImmutableList.Builder<Glob> globList = ImmutableList.builder();
     for (String glob : globs) { globList.add(Glob.fromString(glob)); }
@@ -63,6 +63,139 @@ public class DirectoryHooksTest extends PbTestCase {
     }
   }
 
+  @Test public final void testOverflow() throws Exception {
+    // Watch keys drop events once they hold events for 2 files.
+    FileSystem fs = new StubFileSystemProvider("mfs")
+        .getFileSystem(URI.create("mfs://?maxEvents=2#/foo/bar"));
+    Path dir = fs.getPath("/foo/bar");
+    mkdirs(dir);
+    DirectoryHooks dh = new DirectoryHooks(
+        dir, new Predicate<Path>() {
+          public boolean apply(Path p) { return true; }
+        });
+    dh.start();
+    BlockingQueue<Path> q = dh.getUpdates();
+    assertChanged(q, 100);
+
+    Set<Path> created = Sets.newHashSet();
+    Path sub = dir.resolve("sub");
+    mkdirs(sub);
+    for (int i = 0; i < 20; ++i) {
+      Path p = (i % 2 == 0 ? dir : sub).resolve("f" + i);
+      p.createFile(FILE_ATTRS);
+      created.add(p);
+    }
+    // No file is lost, though directories whose events overflowed are also
+    // reported so that files deleted from them can be found.
+    Set<Path> actual = drain(q, 200);
+    actual.remove(dir);
+    actual.remove(sub);
+    assertEquals(created, actual);
+    dh.close();
+  }
+
+  @Test public final void testTopmost() throws Exception {
+    FileSystem fs = new StubFileSystemProvider("mfs")
+        .getFileSystem(URI.create("mfs://#/foo"));
+    Set<Path> overflowed = Sets.newLinkedHashSet();
+    for (String dir : new String[] {
+           "/foo/a/b", "/foo/a", "/foo/ab", "/foo/c/d/e", "/foo/c/d" }) {
+      overflowed.add(fs.getPath(dir));
+    }
+    // Only the topmost are walked since walking covers the rest.
+    assertEquals(
+        Sets.newHashSet(
+            fs.getPath("/foo/a"), fs.getPath("/foo/ab"),
+            fs.getPath("/foo/c/d")),
+        DirectoryHooks.topmost(overflowed));
+    fs.close();
+  }
+
+  @Test public final void testPrunedSubtrees() throws Exception {
+    FileSystem fs = new StubFileSystemProvider("mfs")
+        .getFileSystem(URI.create("mfs://#/foo/bar"));
+    Path dir = fs.getPath("/foo/bar");
+    Path skip = dir.resolve("skip");
+    Path src = dir.resolve("src");
+    mkdirs(skip);
+    mkdirs(src);
+    skip.resolve("a").createFile(FILE_ATTRS);
+    src.resolve("b").createFile(FILE_ATTRS);
+    DirectoryHooks dh = new DirectoryHooks(
+        dir,
+        new Predicate<Path>() {
+          public boolean apply(Path p) { return true; }
+        },
+        new Predicate<Path>() {
+          public boolean apply(Path p) {
+            return !p.getName().toString().equals("skip");
+          }
+        });
+    dh.start();
+    BlockingQueue<Path> q = dh.getUpdates();
+    // Files under skip are not reported initially, nor when they change since
+    // skip is not watched.
+    assertChanged(q, 100, src.resolve("b"));
+    skip.resolve("c").createFile(FILE_ATTRS);
+    src.resolve("d").createFile(FILE_ATTRS);
+    assertChanged(q, 100, src.resolve("d"));
+    // A pruned directory created later is not descended into either.
+    Path skip2 = src.resolve("skip");
+    mkdirs(skip2);
+    skip2.resolve("e").createFile(FILE_ATTRS);
+    assertChanged(q, 100);
+    dh.close();
+  }
+
+  @Test public final void testParallelScan() throws Exception {
+    FileSystem fs = new StubFileSystemProvider("mfs")
+        .getFileSystem(URI.create("mfs://#/foo/bar"));
+    Path dir = fs.getPath("/foo/bar");
+    mkdirs(dir);
+    // A tree 3 levels deep with 4 subdirectories and 2 files per directory.
+    Set<Path> expected = Sets.newHashSet();
+    int nDirs = populate(dir, 3, expected);
+    DirectoryHooks dh = new DirectoryHooks(
+        dir,
+        new Predicate<Path>() {
+          public boolean apply(Path p) {
+            return !p.getName().toString().equals("ignored");
+          }
+        },
+        new Predicate<Path>() {
+          public boolean apply(Path p) { return true; }
+        },
+        4);
+    dh.start();
+    assertEquals(85, nDirs);
+    assertEquals(nDirs, dh.getDirectoriesScanned());
+    // Ignored files are counted but not published.
+    assertEquals(nDirs * 2, dh.getFilesScanned());
+    assertEquals(expected, drain(dh.getUpdates(), 100));
+    // Directories registered by different threads are all watched.
+    Path deep = dir.resolve("d3/d2/d1");
+    deep.resolve("new").createFile(FILE_ATTRS);
+    assertChanged(dh.getUpdates(), 100, deep.resolve("new"));
+    dh.close();
+  }
+
+  private static int populate(Path dir, int depth, Set<Path> files)
+      throws IOException {
+    Path f = dir.resolve("f");
+    f.createFile(FILE_ATTRS);
+    files.add(f);
+    dir.resolve("ignored").createFile(FILE_ATTRS);
+    int nDirs = 1;
+    if (depth != 0) {
+      for (int i = 0; i < 4; ++i) {
+        Path sub = dir.resolve("d" + i);
+        sub.createDirectory();
+        nDirs += populate(sub, depth - 1, files);
+      }
+    }
+    return nDirs;
+  }
+
   private void runTests(int delay, FileSystem fs, Path dir)
       throws IOException, InterruptedException {
     Path baz = dir.resolve(fs.getPath("baz"));
@@ -129,7 +262,11 @@ public class DirectoryHooksTest extends PbTestCase {
   private static void assertChanged(
       BlockingQueue<Path> q, int delayMillis, Path... expected)
       throws InterruptedException {
-    Set<Path> golden = Sets.newHashSet(expected);
+    assertEquals(Sets.newHashSet(expected), drain(q, delayMillis));
+  }
+
+  private static Set<Path> drain(BlockingQueue<Path> q, int delayMillis)
+      throws InterruptedException {
     Set<Path> actual = Sets.newHashSet();
     long t = System.currentTimeMillis();
     long te = t + delayMillis;
@@ -141,6 +278,6 @@ public class DirectoryHooksTest extends PbTestCase {
       }
       t = System.currentTimeMillis();
     } while (t < te);
-    assertEquals(golden, actual);
+    return actual;
   }
 }
@@ -0,0 +1,76 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import org.prebake.util.PbTestCase;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class FileFingerprintTest extends PbTestCase {
+  private static final long LATER = Long.MAX_VALUE / 2;
+
+  @Test public final void testFingerprint() throws IOException {
+    FileSystem fs = fileSystemFromAsciiArt(
+        "/cwd",
+        "/",
+        "  cwd/",
+        "    a.txt \"foo\"",
+        "    b.txt \"foo\"",
+        "    dir/");
+    Path a = fs.getPath("/cwd/a.txt");
+    Path b = fs.getPath("/cwd/b.txt");
+    FileFingerprint fpA = FileFingerprint.of(a, LATER);
+    FileFingerprint fpB = FileFingerprint.of(b, LATER);
+    assertNotNull(fpA);
+    assertNotNull(fpB);
+    assertEquals(3, fpA.size);
+    assertEquals(fpA, FileFingerprint.of(a, LATER));
+    // Same content, but a different file.
+    assertFalse(fpA.equals(fpB));
+    // Directories and missing files have no fingerprint.
+    assertNull(FileFingerprint.of(fs.getPath("/cwd/dir"), LATER));
+    assertNull(FileFingerprint.of(fs.getPath("/cwd/c.txt"), LATER));
+
+    writeFile(a, "foo");
+    FileFingerprint fpA2 = FileFingerprint.of(a, LATER);
+    assertEquals(fpA.size, fpA2.size);
+    assertFalse(fpA.equals(fpA2));
+  }
+
+  @Test public final void testRecentlyModified() throws IOException {
+    FileSystem fs = fileSystemFromAsciiArt(
+        "/cwd", "/", "  cwd/", "    a.txt \"foo\"");
+    Path a = fs.getPath("/cwd/a.txt");
+    long modified = FileFingerprint.of(a, LATER).modified;
+    assertNull(FileFingerprint.of(a, modified));
+    assertNull(FileFingerprint.of(
+        a, modified + FileFingerprint.RACY_INTERVAL_MILLIS - 1));
+    assertNotNull(FileFingerprint.of(
+        a, modified + FileFingerprint.RACY_INTERVAL_MILLIS));
+  }
+
+  @Test public final void testEncoding() {
+    byte[] bytes = new byte[FileFingerprint.BYTE_LENGTH + 2];
+    FileFingerprint fp = new FileFingerprint(1234, 1278000000000L, -5);
+    fp.writeTo(bytes, 2);
+    assertEquals(fp, FileFingerprint.readFrom(bytes, 2));
+    FileFingerprint.writeNone(bytes, 2);
+    assertNull(FileFingerprint.readFrom(bytes, 2));
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import org.prebake.core.ArtifactListener;
+import org.prebake.core.BoundName;
+import org.prebake.core.Glob;
+import org.prebake.util.PbTestCase;
+import org.prebake.util.StubFileSystemProvider;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GlobDispatcherTest extends PbTestCase {
+  private FileSystem fs;
+  private List<Runnable> queued;
+  private boolean rejecting;
+  private GlobDispatcher dispatcher;
+  private Logger logger;
+
+  @Before public void setUp() {
+    fs = new StubFileSystemProvider("mfs").getFileSystem(
+        URI.create("mfs:///#/cwd"));
+    queued = Lists.newArrayList();
+    logger = getLogger(Level.INFO);
+    dispatcher = new GlobDispatcher(new Executor() {
+      public void execute(Runnable r) {
+        if (rejecting) { throw new RejectedExecutionException(); }
+        queued.add(r);
+      }
+    }, logger);
+  }
+
+  @After public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test public final void testListenersRunOnExecutor() {
+    GlobUnion txt = new GlobUnion(
+        BoundName.fromString("txt"),
+        ImmutableList.of(Glob.fromString("**.txt")));
+    final GlobUnion html = new GlobUnion(
+        BoundName.fromString("html"),
+        ImmutableList.of(Glob.fromString("**.html")));
+    ArtifactListener<GlobUnion> listener = new ArtifactListener<GlobUnion>() {
+      public void artifactChanged(GlobUnion artifact) {
+        logger.log(Level.INFO, "changed " + artifact.name);
+        // Listeners may change what is watched without deadlocking dispatch.
+        dispatcher.unwatch(html, this);
+      }
+      public void artifactDestroyed(String artifactName) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    dispatcher.watch(txt, listener);
+    dispatcher.watch(html, listener);
+
+    dispatcher.dispatch(paths("/cwd/a.txt", "/cwd/b.html", "/cwd/c.css"));
+    assertTrue(getLog().isEmpty());
+    assertEquals(1, queued.size());
+    queued.remove(0).run();
+    assertEquals(
+        Joiner.on('\n').join("INFO: changed txt", "INFO: changed html"),
+        Joiner.on('\n').join(getLog()));
+    getLog().clear();
+    assertEquals("[**.txt]", dispatcher.unittestBackdoorGlobKeys());
+
+    // Nothing to notify, so nothing is queued.
+    dispatcher.dispatch(paths("/cwd/b.html"));
+    assertTrue(queued.isEmpty());
+
+    // Listeners run on the dispatching thread once the executor shuts down.
+    rejecting = true;
+    dispatcher.dispatch(paths("/cwd/a.txt"));
+    assertEquals("INFO: changed txt", Joiner.on('\n').join(getLog()));
+  }
+
+  private List<Path> paths(String... paths) {
+    List<Path> out = Lists.newArrayList();
+    for (String p : paths) { out.add(fs.getPath(p)); }
+    return out;
+  }
+}
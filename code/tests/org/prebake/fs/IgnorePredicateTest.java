@@ -0,0 +1,64 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import org.prebake.util.PbTestCase;
+import org.prebake.util.StubFileSystemProvider;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IgnorePredicateTest extends PbTestCase {
+  private FileSystem fs;
+  private IgnorePredicate p;
+
+  @Before public void setUp() {
+    fs = new StubFileSystemProvider("mfs").getFileSystem(
+        URI.create("mfs:///#/cwd"));
+    p = new IgnorePredicate(Pattern.compile(
+        "\\.tmp$|/(?:CVS|\\.svn)(?:/|$)|\\.gitignore|^/cwd/?$"));
+  }
+
+  @After public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test public final void testApply() {
+    assertTrue(p.apply(fs.getPath("/cwd/foo.txt")));
+    assertFalse(p.apply(fs.getPath("/cwd/foo.tmp")));
+    assertFalse(p.apply(fs.getPath("/cwd/src/.svn")));
+    assertFalse(p.apply(fs.getPath("/cwd/src/.svn/entries")));
+    assertTrue(p.apply(fs.getPath("/cwd/src/CVSROOT")));
+    assertFalse(p.apply(fs.getPath("/cwd")));
+  }
+
+  @Test public final void testIsWatchedUnder() {
+    assertTrue(p.isWatchedUnder(fs.getPath("/cwd/src")));
+    assertFalse(p.isWatchedUnder(fs.getPath("/cwd/src/.svn")));
+    assertFalse(p.isWatchedUnder(fs.getPath("/cwd/CVS")));
+    assertTrue(p.isWatchedUnder(fs.getPath("/cwd/CVSROOT")));
+    assertFalse(p.isWatchedUnder(fs.getPath("/cwd/foo.gitignore")));
+    // Ignored itself, but the pattern needs the end of the path to match, so
+    // files under it are not ignored.
+    assertTrue(p.isWatchedUnder(fs.getPath("/cwd/foo.tmp")));
+    assertTrue(p.isWatchedUnder(fs.getPath("/cwd")));
+  }
+}
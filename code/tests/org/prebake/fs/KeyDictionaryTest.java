@@ -0,0 +1,198 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import org.prebake.util.PbTestCase;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyDictionaryTest extends PbTestCase {
+  private @Nullable File tempDir;
+  private @Nullable Environment env;
+
+  @Before public void setUp() {
+    EnvironmentConfig envConfig = new EnvironmentConfig();
+    envConfig.setAllowCreate(true);
+    tempDir = Files.createTempDir();
+    env = new Environment(tempDir, envConfig);
+  }
+
+  @After public void tearDown() throws IOException {
+    env.close();
+    env = null;
+    rmDirTree(tempDir);
+    tempDir = null;
+  }
+
+  @Test public final void testInMemory() {
+    KeyDictionary d = new KeyDictionary(null);
+    assertEquals(KeyDictionary.NO_ID, d.existingId("foo"));
+    int foo = d.idFor("foo");
+    int bar = d.idFor("bar");
+    assertFalse(foo == bar);
+    assertEquals(foo, d.idFor("foo"));
+    assertEquals(foo, d.existingId("foo"));
+    assertEquals("bar", d.keyFor(bar));
+    d.retain(ImmutableSet.of(bar));
+    assertNull(d.keyFor(foo));
+    assertEquals(KeyDictionary.NO_ID, d.existingId("foo"));
+    // Removed IDs are reused so that IDs stay dense.
+    int baz = d.idFor("baz");
+    assertEquals(foo, baz);
+    assertEquals("baz", d.keyFor(baz));
+    // Reserved IDs are not handed out.
+    d.reserve(ImmutableSet.of(3));
+    int boo = d.idFor("boo");
+    int far = d.idFor("far");
+    assertEquals(ImmutableSet.of(2, 4), ImmutableSet.of(boo, far));
+    assertNull(d.keyFor(3));
+  }
+
+  @Test public final void testRelease() {
+    KeyDictionary d = new KeyDictionary(null);
+    int foo = d.idFor("foo");
+    int bar = d.idFor("bar");
+    // Not freed unless marked unused.
+    d.release(foo);
+    assertEquals("foo", d.keyFor(foo));
+    d.markUnused(foo);
+    d.release(foo);
+    assertNull(d.keyFor(foo));
+    assertEquals(KeyDictionary.NO_ID, d.existingId("foo"));
+    assertEquals(foo, d.idFor("baz"));
+    // Looking an ID up again after it was marked unused keeps it.
+    d.markUnused(bar);
+    assertEquals(bar, d.idFor("bar"));
+    d.release(bar);
+    assertEquals("bar", d.keyFor(bar));
+  }
+
+  @Test public final void testReferences() {
+    KeyDictionary d = new KeyDictionary(null);
+    int foo = d.idFor("foo");
+    // An ID allocated for a reference is freed with the last reference.
+    int bar = d.reference("bar");
+    assertEquals(bar, d.reference("bar"));
+    d.dereference(bar);
+    assertEquals("bar", d.keyFor(bar));
+    d.dereference(bar);
+    assertNull(d.keyFor(bar));
+    // One that keys a row in the primary table is not.
+    assertEquals(foo, d.reference("foo"));
+    d.dereference(foo);
+    assertEquals("foo", d.keyFor(foo));
+    // Nor is a referenced one released when its row is deleted, until the
+    // last reference is dropped.
+    assertEquals(foo, d.reference("foo"));
+    d.markUnused(foo);
+    d.release(foo);
+    assertEquals("foo", d.keyFor(foo));
+    d.dereference(foo);
+    assertNull(d.keyFor(foo));
+    // Looking up a referenced string for the primary table keeps its ID.
+    int baz = d.reference("baz");
+    assertEquals(baz, d.idFor("baz"));
+    d.dereference(baz);
+    assertEquals("baz", d.keyFor(baz));
+  }
+
+  @Test public final void testPersistent() {
+    Database db = openDb();
+    KeyDictionary d = new KeyDictionary(db);
+    int foo = d.idFor("foo");
+    int bar = d.idFor("bar");
+    int baz = d.idFor("baz");
+    d.retain(ImmutableSet.of(foo, baz));
+    db.close();
+
+    db = openDb();
+    d = new KeyDictionary(db);
+    assertEquals(foo, d.existingId("foo"));
+    assertEquals(KeyDictionary.NO_ID, d.existingId("bar"));
+    assertEquals("baz", d.keyFor(baz));
+    // The freed ID is reused.
+    assertEquals(bar, d.idFor("boo"));
+    assertFalse(d.idFor("far") == baz);
+    db.close();
+
+    db = openDb();
+    d = new KeyDictionary(db);
+    assertEquals(bar, d.existingId("boo"));
+    assertEquals("boo", d.keyFor(bar));
+    db.close();
+  }
+
+  @Test public final void testClashingIds() {
+    Database db = openDb();
+    KeyDictionary d = new KeyDictionary(db);
+    int foo = d.idFor("foo");
+    int bar = d.idFor("bar");
+    // As if the store lost the removal of foo's entry in a crash after foo's
+    // ID was freed and reused.
+    db.put(
+        null, new DatabaseEntry("baz".getBytes(Charsets.UTF_8)),
+        new DatabaseEntry(KeyDictionary.toBytes(foo)));
+    db.close();
+
+    db = openDb();
+    d = new KeyDictionary(db);
+    // Neither string is trusted with the ID.
+    assertEquals(KeyDictionary.NO_ID, d.existingId("foo"));
+    assertEquals(KeyDictionary.NO_ID, d.existingId("baz"));
+    assertNull(d.keyFor(foo));
+    assertEquals(bar, d.existingId("bar"));
+    db.close();
+
+    db = openDb();
+    d = new KeyDictionary(db);
+    assertEquals(KeyDictionary.NO_ID, d.existingId("foo"));
+    assertEquals(KeyDictionary.NO_ID, d.existingId("baz"));
+    db.close();
+  }
+
+  @Test public final void testEncoding() {
+    for (int id : new int[] { 0, 1, 255, 256, 0x12345678, Integer.MAX_VALUE }) {
+      byte[] bytes = KeyDictionary.toBytes(id);
+      assertEquals(KeyDictionary.ID_LEN, bytes.length);
+      assertEquals(id, KeyDictionary.fromBytes(bytes));
+    }
+    // Byte-wise order is numeric order.
+    byte[] a = KeyDictionary.toBytes(255), b = KeyDictionary.toBytes(256);
+    assertTrue(a[2] < b[2]);
+  }
+
+  private Database openDb() {
+    DatabaseConfig config = new DatabaseConfig();
+    config.setAllowCreate(true);
+    config.setDeferredWrite(true);
+    return env.openDatabase(null, "ids", config);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.fs;
+
+import org.prebake.core.Glob;
+import org.prebake.util.PbTestCase;
+import org.prebake.util.StubFileSystemProvider;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathIndexTest extends PbTestCase {
+  private FileSystem fs;
+  private PathIndex index;
+
+  @Before public void setUp() throws IOException {
+    fs = new StubFileSystemProvider("mfs").getFileSystem(
+        URI.create("mfs:///#/cwd"));
+    index = new PathIndex(fs);
+    for (String p : new String[] {
+           "src/org/prebake/Foo.java",
+           "src/org/prebake/Bar.java",
+           "src/org/prebake/fs/Baz.java",
+           "src/org/prebake/README",
+           "tests/org/prebake/FooTest.java",
+           "lib/foo.jar",
+           "Bakefile.js",
+         }) {
+      assertTrue(p, index.add(fs.getPath(p)));
+    }
+  }
+
+  @After public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test public final void testAddRemove() {
+    assertEquals(7, index.size());
+    assertFalse(index.add(fs.getPath("lib/foo.jar")));
+    assertFalse(index.remove(fs.getPath("lib")));
+    assertFalse(index.remove(fs.getPath("lib/bar.jar")));
+    assertTrue(index.remove(fs.getPath("lib/foo.jar")));
+    assertFalse(index.remove(fs.getPath("lib/foo.jar")));
+    assertEquals(6, index.size());
+    assertEquals("", matching("lib/**"));
+    assertTrue(index.add(fs.getPath("lib/foo.jar")));
+    assertEquals("lib/foo.jar", matching("lib/**"));
+  }
+
+  @Test public final void testMatching() {
+    assertEquals(
+        Joiner.on('\n').join(
+            "src/org/prebake/Bar.java",
+            "src/org/prebake/Foo.java",
+            "src/org/prebake/fs/Baz.java",
+            "tests/org/prebake/FooTest.java"),
+        matching("**.java"));
+    assertEquals(
+        Joiner.on('\n').join(
+            "src/org/prebake/Bar.java",
+            "src/org/prebake/Foo.java"),
+        matching("src/org/prebake/*.java", "src/*.java"));
+    assertEquals(
+        Joiner.on('\n').join(
+            "lib/foo.jar",
+            "src/org/prebake/README"),
+        matching("src/**/README", "lib/*.jar"));
+    assertEquals("Bakefile.js", matching("*.js"));
+    assertEquals("", matching("tests/**.jar"));
+    assertEquals(
+        "src/org/prebake/fs/Baz.java", matching("src///org/prebake/fs/*"));
+  }
+
+  @Test public final void testFilesUnder() {
+    assertEquals(
+        Joiner.on('\n').join(
+            "src/org/prebake/Bar.java",
+            "src/org/prebake/Foo.java",
+            "src/org/prebake/README",
+            "src/org/prebake/fs/Baz.java"),
+        Joiner.on('\n').join(index.filesUnder(fs.getPath("src/org"))));
+    assertEquals(
+        ImmutableList.of(fs.getPath("src/org/prebake/fs/Baz.java")),
+        index.filesUnder(fs.getPath("src/org/prebake/fs")));
+    // Files and unknown paths have nothing under them.
+    assertTrue(index.filesUnder(fs.getPath("lib/foo.jar")).isEmpty());
+    assertTrue(index.filesUnder(fs.getPath("src/com")).isEmpty());
+    assertEquals(7, index.filesUnder(fs.getPath("")).size());
+  }
+
+  private String matching(String... globs) {
+    Glob[] globArr = new Glob[globs.length];
+    for (int i = 0; i < globs.length; ++i) {
+      globArr[i] = Glob.fromString(globs[i]);
+    }
+    return Joiner.on('\n').join(
+        index.matching(Glob.toRegex(Arrays.asList(globArr))));
+  }
+}
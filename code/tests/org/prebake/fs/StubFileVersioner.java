@@ -31,16 +31,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 @ParametersAreNonnullByDefault
 public class StubFileVersioner extends FileVersioner {
   private final Map<Path, Hash> hashes = Maps.newHashMap();
-  private final Multimap<Path, String> derivatives = Multimaps.newListMultimap(
-      Maps.<Path, Collection<String>>newHashMap(),
-      new Supplier<List<String>>() {
-        public List<String> get() { return Lists.newArrayList(); }
-      });
+  private final Map<Path, FileFingerprint> fingerprints = Maps.newHashMap();
+  private final Multimap<Path, Integer> derivatives
+      = Multimaps.newListMultimap(
+          Maps.<Path, Collection<Integer>>newHashMap(),
+          new Supplier<List<Integer>>() {
+            public List<Integer> get() { return Lists.newArrayList(); }
+          });
 
   public StubFileVersioner(Path root, Predicate<Path> toWatch, Logger logger)
       throws IOException {
@@ -79,42 +82,44 @@ public class StubFileVersioner extends FileVersioner {
       return oldHash != null;
     }
     public byte[] currentHash() { return oldHash.toDatabaseEntry().getData(); }
-    public boolean updateHash(Hash h) {
+    public @Nullable FileFingerprint currentFingerprint() {
+      return fingerprints.get(keyPath);
+    }
+    public boolean updateHash(Hash h, @Nullable FileFingerprint fp) {
       hashes.put(keyPath, h);
+      fingerprints.put(keyPath, fp);
       return true;
     }
-    public boolean insert(Hash h) {
+    public boolean insert(Hash h, @Nullable FileFingerprint fp) {
       hashes.put(keyPath, h);
+      fingerprints.put(keyPath, fp);
       return true;
     }
     public boolean deleteCurrent() {
+      fingerprints.remove(keyPath);
       return hashes.remove(keyPath) != null;
     }
     public void end() { oldHash = null; }
   }
 
   private final class DerivativesLoopImpl implements DerivativesLoop {
-    private Iterator<String> addresses;
+    private Iterator<Integer> addresses;
     public void start() { addresses = null; }
     public boolean findFirst(Path p) {
       addresses = Lists.newArrayList(derivatives.get(p)).iterator();
       return addresses.hasNext();
     }
     public boolean findNext() { return addresses.hasNext(); }
-    public String getAddress() { return addresses.next(); }
+    public int getArtifactId() { return addresses.next(); }
     public void removeLast() { addresses.remove(); }
     public void end() { addresses = null; }
   }
 
   final class ArtifactUpdateLoopImpl implements ArtifactUpdateLoop {
-    String artifactAddress;
-    public void start(String artifactAddress) {
-      this.artifactAddress = artifactAddress;
-    }
-    public void put(Path keyPath) {
-      derivatives.put(keyPath, artifactAddress);
-    }
-    public void end() { artifactAddress = null; }
+    int artifactId;
+    public void start(int artifactId) { this.artifactId = artifactId; }
+    public void put(Path keyPath) { derivatives.put(keyPath, artifactId); }
+    public void end() { artifactId = -1; }
   }
 
   private final class HashLoopImpl implements HashLoop {
@@ -14,6 +14,7 @@
 
 package org.prebake.service;
 
+import org.prebake.core.HashAlgorithm;
 import org.prebake.core.MessageQueue;
 import org.prebake.util.CommandLineArgs;
 import org.prebake.util.PbTestCase;
@@ -23,6 +24,7 @@ import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.FileSystem;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -265,6 +267,179 @@ public class CommandLineConfigTest extends PbTestCase {
         "Duplicate plan file /foo/bar/project/Bakefile.js");
   }
 
+  @Test public final void testPersistentState() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertFalse(c.getPersistentState());
+    c = assertConfig(
+        new String[] { "--root=project", "--persistent-state" }, true);
+    assertTrue(c.getPersistentState());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--persistent-state\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    c = assertConfig(
+        new String[] { "--root=project", "--persistent-state=false" }, true);
+    assertFalse(c.getPersistentState());
+    assertConfig(
+        new String[] { "--root=project", "--persistent-state=yes" }, false,
+        "Expected boolean value for flag --persistent-state");
+  }
+
+  @Test public final void testHashThreads() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertEquals(-1, c.getHashThreads());
+    c = assertConfig(
+        new String[] { "--root=project", "--hash-threads=4" }, true);
+    assertEquals(4, c.getHashThreads());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--hash-threads\",\"4\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    assertConfig(
+        new String[] { "--root=project", "--hash-threads=0" }, false,
+        "--hash-threads=0 is not a positive integer");
+    assertConfig(
+        new String[] { "--root=project", "--hash-threads=lots" }, false,
+        "--hash-threads=lots is not a positive integer");
+  }
+
+  @Test public final void testThreads() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertTrue(c.getPoolThreads().isEmpty());
+    c = assertConfig(
+        new String[] { "--root=project", "--threads=plan=2,bake=8" }, true);
+    assertEquals(
+        ImmutableMap.of(
+            WorkerPools.Workload.PLAN, 2, WorkerPools.Workload.BAKE, 8),
+        c.getPoolThreads());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--threads\",\"plan=2,bake=8\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    assertConfig(
+        new String[] { "--root=project", "--threads=plan=0" }, false,
+        "--threads=plan=0 has no positive integer for plan");
+    assertConfig(
+        new String[] { "--root=project", "--threads=plan=1,plan=2" }, false,
+        "Duplicate worker pool plan in --threads");
+    assertConfig(
+        new String[] { "--root=project", "--threads=bak=2" }, false,
+        "Unrecognized worker pool bak in --threads. Did you mean \"bake\"?");
+  }
+
+  @Test public final void testRemoteCache() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertNull(c.getRemoteCache());
+    c = assertConfig(
+        new String[] {
+          "--root=project", "--remote-cache=http://builds:8080/cache/",
+          "--cache-secret-file=secret" },
+        true);
+    assertEquals(URI.create("http://builds:8080/cache/"), c.getRemoteCache());
+    assertEquals("/foo/bar/secret", c.getCacheSecretFile().toString());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--remote-cache\",\"http://builds:8080/cache/\","
+        + "\"--cache-secret-file\",\"/foo/bar/secret\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    assertConfig(
+        new String[] {
+          "--root=project", "--remote-cache=http://builds:8080/cache/" },
+        false, "--remote-cache specified but --cache-secret-file not");
+    assertConfig(
+        new String[] {
+          "--root=project", "--remote-cache=file:///cache",
+          "--cache-secret-file=secret" },
+        false, "--remote-cache=file:///cache is not an HTTP URL");
+    assertConfig(
+        new String[] {
+          "--root=project", "--remote-cache=http://a b/",
+          "--cache-secret-file=secret" },
+        false, "--remote-cache=http://a b/ is not a URL");
+  }
+
+  @Test public final void testCacheSecretFile() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertNull(c.getCacheSecretFile());
+    c = assertConfig(
+        new String[] {
+          "--root=project", "--www-port=8080", "--serve-cache",
+          "--cache-secret-file=secret" },
+        true);
+    assertEquals("/foo/bar/secret", c.getCacheSecretFile().toString());
+    assertConfig(
+        new String[] { "--root=project", "--cache-secret-file=project" },
+        false, "Cache secret file /foo/bar/project is not a file");
+  }
+
+  @Test public final void testServeCache() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertFalse(c.getServeCache());
+    c = assertConfig(
+        new String[] { "--root=project", "--www-port=8080", "--serve-cache" },
+        true);
+    assertTrue(c.getServeCache());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--www-port\",\"8080\",\"--serve-cache\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    assertConfig(
+        new String[] { "--root=project", "--serve-cache" }, false,
+        "--serve-cache specified but HTTP service not configured");
+  }
+
+  @Test public final void testKeepWorkingDirs() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertFalse(c.getKeepWorkingDirs());
+    c = assertConfig(
+        new String[] { "--root=project", "--keep-working-dirs" }, true);
+    assertTrue(c.getKeepWorkingDirs());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--keep-working-dirs\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    c = assertConfig(
+        new String[] { "--root=project", "--keep-working-dirs=false" }, true);
+    assertFalse(c.getKeepWorkingDirs());
+  }
+
+  @Test public final void testHashAlgorithm() throws IOException {
+    Config c;
+    c = assertConfig(new String[] { "--root=project" }, true);
+    assertEquals(HashAlgorithm.MD5, c.getHashAlgorithm());
+    c = assertConfig(
+        new String[] { "--root=project", "--hash-algorithm=murmur3" }, true);
+    assertEquals(HashAlgorithm.MURMUR3_128, c.getHashAlgorithm());
+    assertEquals(
+        ""
+        + "[" + BOILERPLATE + ",\"--root\",\"/foo/bar/project\","
+        + "\"--hash-algorithm\",\"murmur3\","
+        + "\"/foo/bar/project/Bakefile.js\"]",
+        CommandLineConfig.toArgv(c, PROPS, ENV));
+    assertConfig(
+        new String[] { "--root=project", "--hash-algorithm=sha-256" }, false,
+        "Unrecognized hash algorithm sha-256. Did you mean \"sha256\"?");
+  }
+
   @Test public final void testMisspelledParams() throws IOException {
     assertConfig(
         new String[] { "-root=project" },
@@ -288,7 +463,8 @@ public class CommandLineConfigTest extends PbTestCase {
         "          main.cc",
         "          main.h",
         "        ptools/",
-        "      tools/"
+        "      tools/",
+        "      secret \"s3cret\""
         );
     CommandLineConfig config = new CommandLineConfig(
         fs, mq, new CommandLineArgs(argv));
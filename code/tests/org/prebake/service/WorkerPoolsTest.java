@@ -0,0 +1,94 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service;
+
+import org.prebake.util.PbTestCase;
+import org.prebake.util.StubScheduledExecutorService;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+public class WorkerPoolsTest extends PbTestCase {
+  @Test public final void testSizes() {
+    WorkerPools pools = WorkerPools.create(
+        ImmutableMap.of(WorkerPools.Workload.PLAN, 3));
+    try {
+      Map<String, ImmutableMap<String, Object>> stats = pools.getStats();
+      assertEquals(
+          "[plan, bake, io, housekeeping]", stats.keySet().toString());
+      assertEquals(3, stats.get("plan").get("threads"));
+      assertEquals(
+          WorkerPools.Workload.HOUSEKEEPING.getDefaultThreads(),
+          stats.get("housekeeping").get("threads"));
+      assertNotSame(
+          pools.get(WorkerPools.Workload.PLAN),
+          pools.get(WorkerPools.Workload.BAKE));
+    } finally {
+      pools.shutdown();
+    }
+  }
+
+  @Test public final void testQueueDepth() throws Exception {
+    WorkerPools pools = WorkerPools.create(
+        ImmutableMap.of(WorkerPools.Workload.BAKE, 1));
+    try {
+      ScheduledExecutorService bake = pools.get(WorkerPools.Workload.BAKE);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      Future<?> blocker = bake.submit(new Runnable() {
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      started.await();
+      Future<?> queued = bake.submit(new Runnable() { public void run() {} });
+      ImmutableMap<String, Object> stats = pools.getStats().get("bake");
+      assertEquals(1, stats.get("active"));
+      assertEquals(1, stats.get("queued"));
+      // Other workloads are not held up by the busy bake pool.
+      pools.get(WorkerPools.Workload.PLAN).submit(
+          new Runnable() { public void run() {} }).get();
+      release.countDown();
+      blocker.get();
+      queued.get();
+      assertEquals(0, pools.getStats().get("bake").get("queued"));
+      double utilization = (Double) pools.getStats().get("bake")
+          .get("utilization");
+      assertTrue(utilization > 0 && utilization <= 1);
+    } finally {
+      pools.shutdown();
+    }
+  }
+
+  @Test public final void testSharing() {
+    ScheduledExecutorService execer = new StubScheduledExecutorService();
+    WorkerPools pools = WorkerPools.sharing(execer);
+    for (WorkerPools.Workload w : WorkerPools.Workload.values()) {
+      assertSame(execer, pools.get(w));
+    }
+    assertTrue(pools.getStats().isEmpty());
+  }
+}
@@ -17,6 +17,8 @@ package org.prebake.service.bake;
 import org.prebake.core.BoundName;
 import org.prebake.core.Documentation;
 import org.prebake.core.GlobRelation;
+import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
 import org.prebake.fs.StubFileVersioner;
 import org.prebake.js.JsonSink;
 import org.prebake.js.MobileFunction;
@@ -25,19 +27,25 @@ import org.prebake.os.StubOperatingSystem;
 import org.prebake.service.HighLevelLog;
 import org.prebake.service.Logs;
 import org.prebake.service.TestLogHydra;
+import org.prebake.service.WorkerPools;
 import org.prebake.service.plan.Action;
 import org.prebake.service.plan.Product;
 import org.prebake.service.tools.ToolContent;
 import org.prebake.service.tools.ToolProvider;
 import org.prebake.service.tools.ToolSignature;
+import org.prebake.service.www.CacheServlet;
 import org.prebake.util.PbTestCase;
 import org.prebake.util.StubScheduledExecutorService;
 import org.prebake.util.TestClock;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -62,12 +70,19 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.ValueFuture;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
 
+import org.eclipse.jetty.server.Server;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -698,6 +713,282 @@ public class BakerTest extends PbTestCase {
         .assertNoSuchProduct("p[\"x\":\"foo\"]");
   }
 
+  @Test public final void testActionCache() throws Exception {
+    tester.withActionCache()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/cwd/root/out/bar", "bar")
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        .assertNotInLog("INFO: Restoring p from the action cache")
+        // Going back to an earlier version of the input restores the earlier
+        // output without running cp.
+        .writeFile("/cwd/root/foo/bar", "bar")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Restoring p from the action cache")
+        .assertFileContent("/cwd/root/out/bar", "bar")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testCorruptBlobNotRestored() throws Exception {
+    String blob = "/cache/blobs/"
+        + Hash.builder().withString("bar").build().toHexString();
+    tester.withActionCache()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent(blob, "bar")
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .build("p")
+        .runPendingTasks()
+        .writeFile(blob, "evil")
+        .writeFile("/cwd/root/foo/bar", "bar")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("WARNING: Deleting corrupt blob " + blob)
+        .assertNotInLog("INFO: Restoring p from the action cache")
+        .assertFileContent("/cwd/root/out/bar", "bar")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testLeftoverTempFilesDeleted() throws Exception {
+    String blob = "/cache/blobs/"
+        + Hash.builder().withString("bar").build().toHexString();
+    tester.withActionCache()
+        .withCopyProduct(
+            "  cache/",
+            "    blobs/",
+            // Left by a service that died while storing a blob, and named as
+            // the first temporary file of this one would be.
+            "      tmp-1-1 \"ba\"")
+        .assertNoFile("/cache/blobs/tmp-1-1")
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertNotInLog("WARNING: Failed to store outputs in action cache")
+        .assertFileContent(blob, "bar")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testRemoteActionCache() throws Exception {
+    FileSystem serverFs = fileSystemFromAsciiArt("/", "/", "  shared/");
+    Server server = RemoteCacheTest.startCacheServer(
+        new CacheServlet(
+            serverFs.getPath("/shared"), HashAlgorithm.DEFAULT, "token",
+            "secret", getLogger(Level.INFO)));
+    try {
+      tester.withRemoteCache(RemoteCacheTest.cacheUri(server))
+          .withCopyProduct()
+          .expectSuccess(true)
+          .build("p")
+          .runPendingTasks()
+          // Another service sharing the remote cache has none of the outputs
+          // locally.
+          .deleteTree("/cache")
+          .writeFile("/cwd/root/foo/bar", "baz")
+          .build("p")
+          .runPendingTasks()
+          .assertFileContent("/cwd/root/out/bar", "baz")
+          .writeFile("/cwd/root/foo/bar", "bar")
+          .clearLog()
+          .build("p")
+          .runPendingTasks()
+          .assertLog("INFO: Restoring p from the action cache")
+          .assertFileContent("/cwd/root/out/bar", "bar")
+          .assertProductStatus("p", true);
+      assertFalse(serverFs.getPath("/shared/actions").notExists());
+    } finally {
+      server.stop();
+      serverFs.close();
+    }
+  }
+
+  @Test public final void testKeptWorkingDirs() throws Exception {
+    tester.withKeptWorkingDirs()
+        .withFileSystem(
+            "/",
+            "  cwd/",
+            "    tools/",
+            "      cp.js " + COPY_TOOL_JS,
+            "    root/",
+            "      foo/",
+            "        a \"a\"",
+            "        b \"b\"",
+            "        c \"c\"",
+            "  tmpdir/")
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .withProduct(product("p", action("cp", "foo/*", "out/*")))
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertLog(
+            "INFO: Synced working directory for p:"
+            + " staged 3 of 3 input(s), removed 0")
+        .assertFileContent("/cwd/root/out/b", "b")
+        // The working directory is kept with its inputs but not its outputs.
+        .assertFileContent("/tmpdir/prebake-p.product/foo/a", "a")
+        .assertNoFile("/tmpdir/prebake-p.product/out/a")
+        .writeFile("/cwd/root/foo/b", "B")
+        .deleteFile("/cwd/root/foo/c")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog(
+            "INFO: Synced working directory for p:"
+            + " staged 1 of 2 input(s), removed 1")
+        .assertFileContent("/cwd/root/out/a", "a")
+        .assertFileContent("/cwd/root/out/b", "B")
+        .assertFileContent("/tmpdir/prebake-p.product/foo/b", "B")
+        .assertNoFile("/tmpdir/prebake-p.product/foo/c")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testKeptWorkingDirsNotCached() throws Exception {
+    tester.withActionCache()
+        .withKeptWorkingDirs()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        // Baked in the kept working directory so not cached.
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        // Baked in a new working directory so cached.
+        .writeFile("/cwd/root/foo/bar", "bar")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Restoring p from the action cache")
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertNotInLog("INFO: Restoring p from the action cache")
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testKeptWorkingDirsRedefined() throws Exception {
+    tester.withKeptWorkingDirs()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        // Stands in for e.g. object files left by an incremental compiler.
+        .writeFile("/tmpdir/prebake-p.product/scratch", "scratch")
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/tmpdir/prebake-p.product/scratch", "scratch")
+        // Options that may change what the tools leave behind.
+        .withProduct(product(
+            "p",
+            action("cp", ImmutableMap.of("flag", "x"), "foo/*", "out/*")))
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog(
+            "INFO: Synced working directory for p:"
+            + " staged 1 of 1 input(s), removed 0")
+        .assertNoFile("/tmpdir/prebake-p.product/scratch")
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        .assertProductStatus("p", true);
+  }
+
+  @Test public final void testKeptWorkingDirsDeleted() throws Exception {
+    tester.withKeptWorkingDirs()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/tmpdir/prebake-p.product/foo/bar", "bar")
+        // Dropping the product deletes its working directory.
+        .withoutProduct("p")
+        .runPendingTasks()
+        .assertNoFile("/tmpdir/prebake-p.product")
+        .assertNoFile("/tmpdir/obsolete-0")
+        // And so does closing the baker.
+        .withProduct(product("p", action("cp", "foo/*", "out/*")))
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/tmpdir/prebake-p.product/foo/bar", "bar")
+        .restart()
+        .assertNoFile("/tmpdir/prebake-p.product");
+  }
+
+  @Test public final void testProductStatusSurvivesRestart() throws Exception {
+    tester.withProductStore()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .assertFileContent("/cwd/root/out/bar", "bar")
+        .restart()
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .withProduct(product("p", action("cp", "foo/*", "out/*")))
+        .clearLog()
+        .build("p")
+        .assertLog("INFO: Product p is still up to date")
+        .assertNotInLog("INFO: Starting bake of product p")
+        .assertProductStatus("p", true)
+        // An input changed while the service was down.
+        .restart()
+        .writeFile("/cwd/root/foo/bar", "baz")
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .withProduct(product("p", action("cp", "foo/*", "out/*")))
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Starting bake of product p")
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        // An output changed while the service was down.
+        .restart()
+        .writeFile("/cwd/root/out/bar", "tampered")
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .withProduct(product("p", action("cp", "foo/*", "out/*")))
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Starting bake of product p")
+        .assertFileContent("/cwd/root/out/bar", "baz")
+        // The definition changed while the service was down.
+        .restart()
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .withProduct(product("p", action("cp", "foo/*", "out2/*")))
+        .clearLog()
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Starting bake of product p")
+        .assertFileContent("/cwd/root/out2/bar", "baz");
+  }
+
+  @Test public final void testProductRecordCheckedOnce() throws Exception {
+    tester.withProductStore()
+        .withCopyProduct()
+        .expectSuccess(true)
+        .build("p")
+        .runPendingTasks()
+        .clearLog()
+        // Invalidates p though nothing in its record changed.
+        .withTool(tool("cp"), "/cwd/tools/cp.js")
+        .build("p")
+        .runPendingTasks()
+        .assertLog("INFO: Starting bake of product p")
+        .assertNotInLog("INFO: Product p is still up to date")
+        .assertProductStatus("p", true);
+  }
+
   public static final String LS_TOOL_JS = JsonSink.stringify(
       ""
       + "({ \n"
@@ -773,6 +1064,60 @@ public class BakerTest extends PbTestCase {
     private StubToolProvider toolbox;
     private Baker baker;
     private boolean successExpectation;
+    private Logs logs;
+    private boolean useActionCache;
+    private URI remoteCache;
+    private File productStoreDir;
+    private Environment productStoreEnv;
+    private boolean keepWorkingDirs;
+
+    /** Must be called before the file system is set up. */
+    Tester withActionCache() {
+      useActionCache = true;
+      return this;
+    }
+
+    /** Must be called before the file system is set up. */
+    Tester withProductStore() {
+      productStoreDir = com.google.common.io.Files.createTempDir();
+      EnvironmentConfig envConfig = new EnvironmentConfig();
+      envConfig.setAllowCreate(true);
+      productStoreEnv = new Environment(productStoreDir, envConfig);
+      return this;
+    }
+
+    /** Must be called before the file system is set up. */
+    Tester withKeptWorkingDirs() {
+      keepWorkingDirs = true;
+      return this;
+    }
+
+    /** Must be called before the file system is set up. */
+    Tester withRemoteCache(URI remoteCache) {
+      this.remoteCache = remoteCache;
+      return withActionCache();
+    }
+
+    /**
+     * Sets up the fixture of the caching tests where product p copies
+     * root/foo/bar to root/out/bar with the cp tool.
+     * @param extraAsciiArt more top level files and directories.
+     */
+    Tester withCopyProduct(String... extraAsciiArt) throws IOException {
+      List<String> asciiArt = Lists.newArrayList(
+          "/",
+          "  cwd/",
+          "    tools/",
+          "      cp.js " + COPY_TOOL_JS,
+          "    root/",
+          "      foo/",
+          "        bar \"bar\"",
+          "  tmpdir/");
+      asciiArt.addAll(Arrays.asList(extraAsciiArt));
+      return withFileSystem(asciiArt.toArray(new String[0]))
+          .withTool(tool("cp"), "/cwd/tools/cp.js")
+          .withProduct(product("p", action("cp", "foo/*", "out/*")));
+    }
 
     Tester withFileSystem(String... asciiArt) throws IOException {
       return withFileSystem(fileSystemFromAsciiArt(
@@ -785,7 +1130,7 @@ public class BakerTest extends PbTestCase {
       logger = getLogger(Level.INFO);
       logHydra = new TestLogHydra(logger, fs.getPath("/logs"), clock);
       fs.getPath("/logs").createDirectory();
-      Logs logs = new Logs(new HighLevelLog(clock), logger, logHydra);
+      logs = new Logs(new HighLevelLog(clock), logger, logHydra);
       os = new StubOperatingSystem(fs, logger);
       files = new StubFileVersioner(
           fs.getPath("root").toAbsolutePath(),
@@ -801,8 +1146,39 @@ public class BakerTest extends PbTestCase {
       files.updateFiles(b.build());
       execer = new StubScheduledExecutorService();
       toolbox = new StubToolProvider();
-      baker = new Baker(os, files, getCommonJsEnv(), 0700, logs, execer);
+      makeBaker();
+      return this;
+    }
+
+    private void makeBaker() throws IOException {
+      Database productStore = null;
+      if (productStoreEnv != null) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        productStore = productStoreEnv.openDatabase(null, "products", dbConfig);
+      }
+      baker = new Baker(
+          os, files, getCommonJsEnv(), 0700, logs,
+          WorkerPools.sharing(execer),
+          useActionCache
+          ? new ActionCache(
+              files, fs.getPath("/cache"),
+              remoteCache != null
+              ? new RemoteCache(remoteCache, "secret") : null,
+              logger)
+          : null,
+          productStore, keepWorkingDirs);
       baker.setToolBox(toolbox);
+    }
+
+    /**
+     * Replaces the baker with one that knows nothing but what is in the
+     * product store, as after a restart of the service.  Tools and products
+     * need to be added again.
+     */
+    Tester restart() throws IOException {
+      baker.close();
+      makeBaker();
       return this;
     }
 
@@ -818,6 +1194,11 @@ public class BakerTest extends PbTestCase {
       return this;
     }
 
+    Tester withoutProduct(String productName) {
+      baker.prodListener.artifactDestroyed(productName);
+      return this;
+    }
+
     Tester expectSuccess(boolean success) {
       this.successExpectation = success;
       return this;
@@ -835,8 +1216,11 @@ public class BakerTest extends PbTestCase {
 
     Tester build(BoundName productName, BoundName... prereqs)
         throws ExecutionException, InterruptedException {
-      Boolean result = baker.bake(
-          productName, ImmutableList.copyOf(prereqs)).get();
+      Future<Boolean> f = baker.bake(
+          productName, ImmutableList.copyOf(prereqs));
+      // The bake is queued instead of run by the stub executor's get.
+      execer.advanceTime(0, logger);
+      Boolean result = f.get();
       assertEquals(successExpectation, result);
       return this;
     }
@@ -887,6 +1271,28 @@ public class BakerTest extends PbTestCase {
       return this;
     }
 
+    Tester assertNotInLog(String logEntry) {
+      assertFalse(getLog().contains(logEntry));
+      return this;
+    }
+
+    Tester assertFileContent(String path, String content) throws IOException {
+      InputStream in = fs.getPath(path).newInputStream();
+      try {
+        assertEquals(
+            content,
+            CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8)));
+      } finally {
+        in.close();
+      }
+      return this;
+    }
+
+    Tester assertNoFile(String path) {
+      assertTrue(path, fs.getPath(path).notExists());
+      return this;
+    }
+
     Tester clearLog() {
       getLog().clear();
       return this;
@@ -913,7 +1319,36 @@ public class BakerTest extends PbTestCase {
       return this;
     }
 
+    Tester deleteTree(String path) throws IOException {
+      Files.walkFileTree(fs.getPath(path), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path f, BasicFileAttributes atts) {
+          try {
+            f.delete();
+          } catch (IOException ex) {
+            Throwables.propagate(ex);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+        @Override
+        public FileVisitResult postVisitDirectory(Path d, IOException ex) {
+          try {
+            d.delete();
+          } catch (IOException ioe) {
+            Throwables.propagate(ioe);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      return this;
+    }
+
     void close() throws IOException {
+      if (baker != null) { baker.close(); }
+      if (productStoreEnv != null) {
+        productStoreEnv.close();
+        rmDirTree(productStoreDir);
+      }
       if (toolbox != null) { toolbox.close(); }
       if (files != null) { files.close(); }
       if (execer != null) { execer.shutdown(); }
@@ -936,7 +1371,8 @@ public class BakerTest extends PbTestCase {
   private static ToolSignature tool(
       String name, @Nullable String checker, @Nullable Documentation docs) {
     return new ToolSignature(
-        name, checker != null ? new MobileFunction(checker) : null, docs, true);
+        name, checker != null ? new MobileFunction(checker) : null, docs, true,
+        false);
   }
 
   private static Action action(
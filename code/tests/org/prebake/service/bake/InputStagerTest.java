@@ -0,0 +1,127 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.util.PbTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+
+import org.junit.Test;
+
+public class InputStagerTest extends PbTestCase {
+  @Test public final void testCopiesByDefault() throws Exception {
+    FileSystem fs = FileSystems.getDefault();
+    Path dir = fs.getPath("" + Files.createTempDir());
+    try {
+      Path client = dir.resolve("client");
+      Path working = dir.resolve("working");
+      mkdirs(client);
+      mkdirs(working);
+      Path a = client.resolve("a.txt");
+      writeFile(a, "a");
+      Path workingA = working.resolve("a.txt");
+      InputStager.Staged staged = new InputStager(getLogger(Level.INFO))
+          .begin(false);
+      staged.stage(a, workingA);
+      assertFalse(workingA.isSameFile(a));
+      writeFile(workingA, "changed");
+      assertEquals("a", readFile(a));
+      staged.checkClientFilesUnchanged();
+    } finally {
+      rmDirTree(new File(dir.toString()));
+    }
+  }
+
+  @Test public final void testLinksReadOnlyInputs() throws Exception {
+    FileSystem fs = FileSystems.getDefault();
+    Path dir = fs.getPath("" + Files.createTempDir());
+    try {
+      Path client = dir.resolve("client");
+      Path working = dir.resolve("working");
+      mkdirs(client);
+      mkdirs(working);
+      Path a = client.resolve("a.txt"), b = client.resolve("b.txt");
+      writeFile(a, "a");
+      writeFile(b, "b");
+      Path workingA = working.resolve("a.txt");
+      Path workingB = working.resolve("b.txt");
+      InputStager.Staged staged = new InputStager(getLogger(Level.INFO))
+          .begin(true);
+      staged.stage(a, workingA);
+      staged.stage(b, workingB);
+      assertTrue(workingA.isSameFile(a));
+      assertEquals("a", readFile(workingA));
+      staged.checkClientFilesUnchanged();
+
+      // Writes through the checker do not reach the client file.
+      new WorkingFileChecker(client, working, staged).checkWritable(workingA);
+      assertFalse(workingA.isSameFile(a));
+      writeFile(workingA, "changed");
+      assertEquals("a", readFile(a));
+      staged.checkClientFilesUnchanged();
+
+      // A linked client file that changes during the bake is noticed.
+      assertTrue(workingB.isSameFile(b));
+      writeFile(b, "changed");
+      try {
+        staged.checkClientFilesUnchanged();
+        fail();
+      } catch (IOException ex) {
+        assertTrue(ex.getMessage(), ex.getMessage().contains("b.txt"));
+      }
+    } finally {
+      rmDirTree(new File(dir.toString()));
+    }
+  }
+
+  @Test public final void testCopiesWhenLinksUnsupported() throws Exception {
+    FileSystem fs = fileSystemFromAsciiArt(
+        "/cwd",
+        "/",
+        "  client/",
+        "    a.txt \"a\"",
+        "  working/");
+    InputStager.Staged staged = new InputStager(getLogger(Level.INFO))
+        .begin(true);
+    Path a = fs.getPath("/client/a.txt");
+    Path workingA = fs.getPath("/working/a.txt");
+    staged.stage(a, workingA);
+    assertEquals("a", readFile(workingA));
+    writeFile(workingA, "changed");
+    assertEquals("a", readFile(a));
+    staged.checkClientFilesUnchanged();
+    fs.close();
+  }
+
+  private static String readFile(Path p) throws IOException {
+    InputStreamReader in = new InputStreamReader(
+        p.newInputStream(), Charsets.UTF_8);
+    try {
+      return CharStreams.toString(in);
+    } finally {
+      in.close();
+    }
+  }
+}
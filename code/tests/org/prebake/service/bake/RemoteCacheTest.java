@@ -0,0 +1,215 @@
+// Copyright 2010, Mike Samuel
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.prebake.service.bake;
+
+import org.prebake.channel.FileNames;
+import org.prebake.core.Hash;
+import org.prebake.core.HashAlgorithm;
+import org.prebake.service.www.CacheServlet;
+import org.prebake.util.PbTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteCacheTest extends PbTestCase {
+  private FileSystem fs;
+  private Server server;
+  private RemoteCache cache;
+
+  @Before public void setUp() throws Exception {
+    fs = fileSystemFromAsciiArt("/", "/", "  cache/", "  tmp/");
+    server = startCacheServer(
+        new CacheServlet(
+            fs.getPath("/cache"), HashAlgorithm.DEFAULT, "token", "secret",
+            getLogger(Level.INFO)));
+    cache = new RemoteCache(cacheUri(server), "secret");
+  }
+
+  @After public void tearDown() throws Exception {
+    server.stop();
+    fs.close();
+  }
+
+  @Test public final void testGetAndPut() throws IOException {
+    Hash key = Hash.builder().withString("foo").build();
+    assertNull(cache.get(FileNames.ACTIONS, key));
+    cache.put(FileNames.ACTIONS, key, "foo".getBytes(Charsets.UTF_8));
+    assertEquals("foo", str(cache.get(FileNames.ACTIONS, key)));
+    // Kinds are distinct.
+    assertNull(cache.get(FileNames.BLOBS, key));
+    // Content is stored in the same layout as the local action cache.
+    assertEquals(
+        "foo", read(fs.getPath("/cache/actions/" + key.toHexString())));
+    // Later puts replace earlier ones.
+    cache.put(FileNames.ACTIONS, key, "bar".getBytes(Charsets.UTF_8));
+    assertEquals("bar", str(cache.get(FileNames.ACTIONS, key)));
+  }
+
+  @Test public final void testFiles() throws IOException {
+    Path src = fs.getPath("/tmp/src");
+    writeFile(src, "Hello, World!");
+    Hash key = Hash.builder().withFile(src).build();
+    cache.put(FileNames.BLOBS, key, src);
+    Path dest = fs.getPath("/tmp/dest");
+    assertTrue(cache.fetch(FileNames.BLOBS, key, dest));
+    assertEquals("Hello, World!", read(dest));
+    Path missing = fs.getPath("/tmp/missing");
+    assertFalse(cache.fetch(
+        FileNames.BLOBS, Hash.builder().withString("nope").build(), missing));
+    assertTrue(missing.notExists());
+  }
+
+  @Test public final void testBlobMustMatchHash() throws IOException {
+    Path src = fs.getPath("/tmp/src");
+    writeFile(src, "Hello, World!");
+    Hash key = Hash.builder().withString("Goodbye").build();
+    try {
+      cache.put(FileNames.BLOBS, key, src);
+      fail();
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("status 400"));
+    }
+    assertTrue(fs.getPath("/cache/blobs/" + key.toHexString()).notExists());
+  }
+
+  @Test public final void testTooLarge() throws IOException {
+    Hash key = Hash.builder().withString("foo").build();
+    try {
+      cache.put(FileNames.ACTIONS, key, new byte[(1 << 24) + 1]);
+      fail();
+    } catch (IOException ex) {
+      // Rejected with a 413, or the connection closed before all was sent.
+    }
+    assertTrue(fs.getPath("/cache/actions/" + key.toHexString()).notExists());
+  }
+
+  @Test public final void testTooLargeToGet() throws IOException {
+    Hash key = Hash.builder().withString("foo").build();
+    // Put there by something other than a well-behaved client.
+    fs.getPath("/cache/actions").createDirectory();
+    writeFile(
+        fs.getPath("/cache/actions/" + key.toHexString()),
+        new String(new char[(int) RemoteCache.MAX_ENTRY_BYTES + 1]));
+    // Treated as a miss rather than read whole.
+    assertNull(cache.get(FileNames.ACTIONS, key));
+  }
+
+  @Test public final void testUnauthorized() throws IOException {
+    Hash key = Hash.builder().withString("foo").build();
+    cache.put(FileNames.ACTIONS, key, "foo".getBytes(Charsets.UTF_8));
+    assertEquals(401, status("GET", "actions/" + key.toHexString(), null));
+    assertEquals(401, status("PUT", "actions/" + key.toHexString(), null));
+    assertEquals(401, status("GET", "actions/" + key.toHexString(), "nope"));
+    RemoteCache wrongSecret = new RemoteCache(cacheUri(server), "nope");
+    try {
+      wrongSecret.put(FileNames.ACTIONS, key, "bar".getBytes(Charsets.UTF_8));
+      fail();
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("status 401"));
+    }
+    assertEquals(
+        "foo", read(fs.getPath("/cache/actions/" + key.toHexString())));
+    // The serving service's own token works too.
+    RemoteCache withToken = new RemoteCache(cacheUri(server), "token");
+    assertEquals("foo", str(withToken.get(FileNames.ACTIONS, key)));
+  }
+
+  @Test public final void testBadPaths() throws IOException {
+    assertEquals(404, status("GET", "actions/ABCDEF"));
+    assertEquals(404, status("GET", "other/abcdef"));
+    assertEquals(404, status("GET", "actions/abcdef/x"));
+    assertEquals(404, status("PUT", "blobs/not-hex"));
+    assertEquals(404, status("PUT", "blobs/"));
+    assertTrue(fs.getPath("/cache/blobs").notExists());
+  }
+
+  private int status(String method, String path) throws IOException {
+    return status(method, path, "secret");
+  }
+
+  private int status(String method, String path, @Nullable String secret)
+      throws IOException {
+    HttpURLConnection conn = (HttpURLConnection)
+        cache.getBase().resolve(path).toURL().openConnection();
+    try {
+      conn.setRequestMethod(method);
+      if (secret != null) {
+        conn.setRequestProperty(RemoteCache.SECRET_HEADER, secret);
+      }
+      if ("PUT".equals(method)) {
+        conn.setDoOutput(true);
+        conn.getOutputStream().close();
+      }
+      return conn.getResponseCode();
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  /** Starts an in-process HTTP server on a free port. */
+  static Server startCacheServer(final CacheServlet servlet) throws Exception {
+    Server server = new Server(0);
+    server.setHandler(new AbstractHandler() {
+      public void handle(
+          String tgt, Request r, HttpServletRequest req,
+          HttpServletResponse resp)
+          throws IOException, ServletException {
+        servlet.service(req, resp);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  static URI cacheUri(Server server) {
+    return URI.create(
+        "http://localhost:" + server.getConnectors()[0].getLocalPort()
+        + CacheServlet.PATH_PREFIX);
+  }
+
+  private static String str(byte[] bytes) {
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static String read(Path p) throws IOException {
+    InputStream in = p.newInputStream();
+    try {
+      return CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+    } finally {
+      in.close();
+    }
+  }
+}
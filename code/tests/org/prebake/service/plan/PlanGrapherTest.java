@@ -15,24 +15,44 @@
 package org.prebake.service.plan;
 
 import org.prebake.core.BoundName;
+import org.prebake.core.Glob;
 import org.prebake.core.GlobRelation;
 import org.prebake.core.GlobSet;
 import org.prebake.core.MessageQueue;
 import org.prebake.js.JsonSource;
 import org.prebake.service.plan.Recipe.Chef;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.TreeMultimap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
 
 import org.junit.Test;
 
@@ -74,6 +94,162 @@ public class PlanGrapherTest extends PlanGraphTestCase {
     }
   }
 
+  @Test public final void testIncrementalPlanGraph() {
+    PlanGrapher grapher = new PlanGrapher();
+    grapher.productListener.artifactChanged(
+        product("lib", globs("src/**.c"), globs("lib/*.o")));
+    grapher.productListener.artifactChanged(
+        product("hdrs", globs("src/**.h"), globs("include/**.h")));
+    grapher.productListener.artifactChanged(
+        product("bin", globs("lib/**", "include/**.h"), globs("bin/app")));
+    grapher.productListener.artifactChanged(
+        product("docs", globs("src/**.h", "README"), globs("doc/**.html")));
+
+    {
+      PlanGraph pg = grapher.snapshot();
+      assertEquals(
+          "[bin, docs, hdrs, lib]", pg.nodes.keySet().toString());
+      assertEquals("{bin=[hdrs, lib]}", pg.edges.toString());
+    }
+
+    // Changing one product's outputs rewires only its edges.
+    grapher.productListener.artifactChanged(
+        product("hdrs", globs("src/**.h"), globs("src/gen/*.h")));
+    {
+      PlanGraph pg = grapher.snapshot();
+      assertEquals(
+          "{bin=[lib], docs=[hdrs], hdrs=[hdrs]}", pg.edges.toString());
+    }
+
+    // Removed products and their edges go away.
+    grapher.productListener.artifactDestroyed("lib");
+    {
+      PlanGraph pg = grapher.snapshot();
+      assertEquals("[bin, docs, hdrs]", pg.nodes.keySet().toString());
+      assertEquals("{docs=[hdrs], hdrs=[hdrs]}", pg.edges.toString());
+    }
+  }
+
+  @Test public final void testIncrementalEdgesAgreeWithAllPairs() {
+    Random rnd = new Random(0x5eed);
+    PlanGrapher grapher = new PlanGrapher();
+    Map<BoundName, Product> products = Maps.newTreeMap();
+    for (int batch = 2000; --batch >= 0;) {
+      for (int n = 1 + rnd.nextInt(3); --n >= 0;) {
+        String name = "p" + rnd.nextInt(8);
+        if (rnd.nextInt(4) == 0) {
+          products.remove(BoundName.fromString(name));
+          grapher.productListener.artifactDestroyed(name);
+        } else {
+          Product p = product(name, randomGlobs(rnd), randomGlobs(rnd));
+          products.put(p.name, p);
+          grapher.productListener.artifactChanged(p);
+        }
+      }
+      Multimap<BoundName, BoundName> expected = TreeMultimap.create();
+      for (Product consumer : products.values()) {
+        for (Product producer : products.values()) {
+          if (Glob.overlaps(consumer.getInputs(), producer.getOutputs())) {
+            expected.put(consumer.name, producer.name);
+          }
+        }
+      }
+      PlanGraph pg = grapher.snapshot();
+      assertEquals(
+          products.keySet().toString(), pg.nodes.keySet().toString());
+      assertEquals("" + batch, expected.toString(), pg.edges.toString());
+    }
+  }
+
+  private static final String[] GLOB_PREFIXES = {
+    "", "src/", "lib/", "src/gen/", "src///"
+  };
+  private static final String[] GLOB_BODIES = { "*", "**", "a", "b", "*/a" };
+  private static final String[] GLOB_SUFFIXES = { "", ".c", ".h", ".o" };
+
+  private static GlobSet randomGlobs(Random rnd) {
+    Set<String> globs = Sets.newLinkedHashSet();
+    for (int n = 1 + rnd.nextInt(2); --n >= 0;) {
+      globs.add(
+          GLOB_PREFIXES[rnd.nextInt(GLOB_PREFIXES.length)]
+          + GLOB_BODIES[rnd.nextInt(GLOB_BODIES.length)]
+          + GLOB_SUFFIXES[rnd.nextInt(GLOB_SUFFIXES.length)]);
+    }
+    return globs(Lists.newArrayList(globs));
+  }
+
+  @Test public final void testSnapshotsShared() {
+    PlanGrapher grapher = new PlanGrapher();
+    grapher.productListener.artifactChanged(
+        product("foo", globs("*.a"), globs("*.b")));
+    PlanGraph pg = grapher.snapshot();
+    assertSame(pg, grapher.snapshot());
+    grapher.productListener.artifactChanged(
+        product("bar", globs("*.b"), globs("*.c")));
+    PlanGraph pg2 = grapher.snapshot();
+    assertNotSame(pg, pg2);
+    assertEquals("{bar=[foo]}", pg2.edges.toString());
+    assertSame(pg2, grapher.snapshot());
+  }
+
+  @Test public final void testStoredPlanGraph() throws IOException {
+    File tempDir = Files.createTempDir();
+    try {
+      EnvironmentConfig envConfig = new EnvironmentConfig();
+      envConfig.setAllowCreate(true);
+      Environment env = new Environment(tempDir, envConfig);
+      try {
+        Logger logger = getLogger(Level.INFO);
+        PlanGrapher grapher = new PlanGrapher(openDb(env), logger);
+        grapher.productListener.artifactChanged(
+            product("lib", globs("src/**.c"), globs("lib/*.o")));
+        grapher.productListener.artifactChanged(
+            product("hdrs", globs("src/**.h"), globs("include/**.h")));
+        grapher.productListener.artifactChanged(
+            product("bin", globs("lib/**", "include/**.h"), globs("bin/app")));
+        assertEquals("{bin=[hdrs, lib]}", grapher.snapshot().edges.toString());
+        grapher.close();
+
+        // After a restart, unchanged products get their edges back, and
+        // edges incident to changed products are recomputed.
+        grapher = new PlanGrapher(openDb(env), logger);
+        grapher.productListener.artifactChanged(
+            product("lib", globs("src/**.c"), globs("lib/*.o")));
+        grapher.productListener.artifactChanged(
+            product("bin", globs("lib/**", "include/**.h"), globs("bin/app")));
+        assertEquals("{bin=[lib]}", grapher.snapshot().edges.toString());
+        grapher.productListener.artifactChanged(
+            product("hdrs", globs("src/**.h"), globs("src/gen/*.h")));
+        grapher.productListener.artifactChanged(
+            product("docs", globs("src/**.h"), globs("doc/**.html")));
+        assertEquals(
+            "{bin=[lib], docs=[hdrs], hdrs=[hdrs]}",
+            grapher.snapshot().edges.toString());
+        grapher.close();
+
+        grapher = new PlanGrapher(openDb(env), logger);
+        grapher.productListener.artifactChanged(
+            product("hdrs", globs("src/**.h"), globs("src/gen/*.h")));
+        grapher.productListener.artifactChanged(
+            product("bin", globs("src/gen/*.h"), globs("bin/app")));
+        assertEquals(
+            "{bin=[hdrs], hdrs=[hdrs]}", grapher.snapshot().edges.toString());
+        grapher.close();
+      } finally {
+        env.close();
+      }
+    } finally {
+      rmDirTree(tempDir);
+    }
+  }
+
+  private static Database openDb(Environment env) {
+    DatabaseConfig dbConfig = new DatabaseConfig();
+    dbConfig.setAllowCreate(true);
+    dbConfig.setDeferredWrite(true);
+    return env.openDatabase(null, "planGraph", dbConfig);
+  }
+
   private static final BoundName A = BoundName.fromString("A");
   private static final BoundName B = BoundName.fromString("B");
   private static final BoundName C = BoundName.fromString("C");
@@ -221,6 +397,63 @@ public class PlanGrapherTest extends PlanGraphTestCase {
     }
   }
 
+  @Test
+  public final void testWideRecipeOnSmallPool() throws Exception {
+    // More prerequisites than bake threads, cooked the way the Prebakery does:
+    // each bake reports back through a listener instead of a pool thread
+    // blocking on it.
+    BoundName[] names = new BoundName[17];
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = BoundName.fromString("P" + i);
+    }
+    BoundName top = names[names.length - 1];
+    PlanGraph.Builder b = builder(names);
+    for (int i = 0; i < names.length - 1; ++i) { b.edge(names[i], top); }
+    Recipe r = b.build().makeRecipe(ImmutableSet.of(top));
+    final ExecutorService bakePool = Executors.newFixedThreadPool(2);
+    final ExecutorService housekeeping = Executors.newSingleThreadExecutor();
+    final List<String> cooked = Collections.synchronizedList(
+        Lists.<String>newArrayList());
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      r.cook(new Recipe.Chef() {
+        public void cook(
+            final Ingredient ingredient, final Function<Boolean, ?> whenDone) {
+          final ListenableFutureTask<Boolean> baking
+              = new ListenableFutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                  cooked.add(ingredient.product.ident);
+                  return true;
+                }
+              });
+          bakePool.execute(baking);
+          baking.addListener(new Runnable() {
+            public void run() {
+              boolean status = false;
+              try {
+                status = baking.get();
+              } catch (Exception ex) {
+                ex.printStackTrace();
+              }
+              whenDone.apply(status);
+            }
+          }, housekeeping);
+        }
+        public void done(boolean allSucceeded) {
+          cooked.add(allSucceeded ? "OK" : "FAIL");
+          done.countDown();
+        }
+      });
+      assertTrue("" + cooked, done.await(10, TimeUnit.SECONDS));
+    } finally {
+      bakePool.shutdown();
+      housekeeping.shutdown();
+    }
+    assertEquals("" + cooked, names.length + 1, cooked.size());
+    assertEquals(top.ident, cooked.get(names.length - 1));
+    assertEquals("OK", cooked.get(names.length));
+  }
+
   @Test public final void testAbstractInput() throws Exception {
     Product abstractP = parseProduct(
         "p",
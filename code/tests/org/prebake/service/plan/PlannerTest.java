@@ -127,6 +127,36 @@ public class PlannerTest extends PbTestCase {
         fileSystemToAsciiArt(test.fs, 80));
   }
 
+  @Test public final void testToolChangesReplan() throws IOException {
+    String planFile = (
+        ""
+        + "for(var k in tools){\n"
+        + "  if (tools[k].length == 3) {\n"
+        + "   console.log(k);\n"
+        + "  }\n"
+        + "}\n"
+        + "({})");
+    test.withFileSystem(
+            "/",
+            "  cwd/",
+            "    plan.js " + JsonSink.stringify(planFile))
+        .withTools(tool("gcc"))
+        .withPlanFiles("plan.js")
+        .expectLog(
+            "/cwd/plan.js:3:INFO: gcc",
+            "INFO: Plan file plan.js is up to date")
+        .run();
+    // Tool definitions are reused until a tool changes.
+    test.withTools(tool("javac"))
+        .run();
+    test.toolChanged(tool("javac"))
+        .expectLog(
+            "/cwd/plan.js:3:INFO: gcc",
+            "/cwd/plan.js:3:INFO: javac",
+            "INFO: Plan file plan.js is up to date")
+        .run();
+  }
+
   @Test public final void testSimpleProduct() throws IOException {
     test.withFileSystem(
             "/",
@@ -503,6 +533,11 @@ public class PlannerTest extends PbTestCase {
       return this;
     }
 
+    public Tester toolChanged(ToolSignature sig) {
+      planner.toolListener.artifactChanged(sig);
+      return this;
+    }
+
     public Tester expectLog(String... log) {
       goldenLog.addAll(Arrays.asList(log));
       return this;
@@ -581,7 +616,8 @@ public class PlannerTest extends PbTestCase {
   private static ToolSignature tool(
       String name, @Nullable String checker, @Nullable Documentation docs) {
     return new ToolSignature(
-        name, checker != null ? new MobileFunction(checker) : null, docs, true);
+        name, checker != null ? new MobileFunction(checker) : null, docs, true,
+        false);
   }
 
   private static Action action(
@@ -125,6 +125,17 @@ public class ToolBoxTest extends PbTestCase {
             );
   }
 
+  @Test public final void testReadOnlyInputs() throws Exception {
+    new TestRunner()
+        .withToolDirs("/tools")
+        .withToolFiles(
+            "/tools/cat.js", "({ help: 'cat', readOnlyInputs: true })",
+            "/tools/sed.js", "({ help: 'sed', readOnlyInputs: false })")
+        .assertSigs(
+            "{\"name\":\"cat\",\"help\":\"cat\",\"readOnlyInputs\":true}",
+            "{\"name\":\"sed\",\"help\":\"sed\"}");
+  }
+
   @Test public final void testBuiltin() throws Exception {
     new TestRunner()
         .withToolDirs("/tools", "/root/cwd/tools")
@@ -72,6 +72,7 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -103,14 +104,18 @@ public class StubFileSystemProvider extends FileSystemProvider {
     assert cwd != null;
     String sep = "/";
     String root = "";
+    int maxEvents = Integer.MAX_VALUE;
     String params = uri.getQuery();
     if (params != null) {
       Matcher m = Pattern.compile("(?:^|&)sep=([^&]+)").matcher(params);
       if (m.find()) { sep = m.group(1); }
       m = Pattern.compile("(?:^|&)root=([^&]+)").matcher(params);
       if (m.find()) { root = m.group(1); }
+      // Watch keys overflow once they hold events for this many names.
+      m = Pattern.compile("(?:^|&)maxEvents=([0-9]+)").matcher(params);
+      if (m.find()) { maxEvents = Integer.parseInt(m.group(1)); }
     }
-    return new MemFileSystem(this, cwd, sep, root);
+    return new MemFileSystem(this, cwd, sep, root, maxEvents);
   }
 }
 
@@ -353,8 +358,12 @@ class MemPath extends Path {
       return Boolean.FALSE;
     } else if ("isOther".equals(attribute)) {
       return Boolean.FALSE;
+    } else if ("lastModifiedTime".equals(attribute)) {
+      return FileTime.fromMillis(n.getModified());
+    } else if ("fileKey".equals(attribute)) {
+      return n.getFileKey();
     } else {
-      // TODO fileKey, timestamps
+      // TODO other timestamps
       throw new IllegalArgumentException(attribute);
     }
   }
@@ -377,6 +386,7 @@ class MemPath extends Path {
     if (b.isDir()) { throw new IOException(); }
     b.content.reset();
     b.content.write(a.content.toByteArray());
+    b.touch();
     return target;
   }
 
@@ -635,7 +645,9 @@ class MemPath extends Path {
     for (String attr : attributes.split(",")) {
       if ("*".equals(attr)) {
         return readAttributes(
-            "size,isRegularFile,isDirectory,isSymbolicLink,isOther", options);
+            "size,isRegularFile,isDirectory,isSymbolicLink,isOther,"
+            + "lastModifiedTime,fileKey",
+            options);
       }
       attrs.put(attr, getAttribute(attr, options));
     }
@@ -659,9 +671,13 @@ final class MemFileSystem extends FileSystem implements FsDebug {
 
   final String rootName;
   final String rootAndSep;
+  final int maxEvents;
 
-  MemFileSystem(StubFileSystemProvider p, String cwd, String sep, String root) {
+  MemFileSystem(
+      StubFileSystemProvider p, String cwd, String sep, String root,
+      int maxEvents) {
     this.p = p;
+    this.maxEvents = maxEvents;
     this.sep = sep;
     this.rootName = root;
     this.rootAndSep = root + sep;
@@ -1057,6 +1073,8 @@ class StubWatchKey extends WatchKey {
   final StubWatchService ws;
   final Map<String, Set<WatchEvent.Kind<Path>>> events
       = Maps.newLinkedHashMap();
+  /** True if events were dropped since the last reset. */
+  boolean overflowed;
   boolean valid = true;
 
   StubWatchKey(Node n, StubWatchService ws) {
@@ -1078,6 +1096,22 @@ class StubWatchKey extends WatchKey {
   public List<WatchEvent<?>> pollEvents() {
     ImmutableList.Builder<WatchEvent<?>> eventList = ImmutableList.builder();
     synchronized (events) {
+      if (overflowed) {
+        eventList.add(new WatchEvent<Object>() {
+          @Override
+          public Object context() { return null; }
+
+          @Override
+          public int count() { return 1; }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          public WatchEvent.Kind<Object> kind() {
+            return (WatchEvent.Kind<Object>) (WatchEvent.Kind<?>)
+                StandardWatchEventKind.OVERFLOW;
+          }
+        });
+      }
       for (Map.Entry<String,Set<WatchEvent.Kind<Path>>> e : events.entrySet()) {
         final String name = e.getKey();
         for (final WatchEvent.Kind<Path> k : e.getValue()) {
@@ -1101,6 +1135,7 @@ class StubWatchKey extends WatchKey {
   public boolean reset() {
     synchronized (events) {
       events.clear();
+      overflowed = false;
     }
     return isValid();
   }
@@ -1109,7 +1144,18 @@ class StubWatchKey extends WatchKey {
     BlockingQueue<WatchKey> q = ws.q;
     if (q == null) { return false; }
     synchronized (events) {
-      boolean enqueue =  events.isEmpty();
+      boolean enqueue =  events.isEmpty() && !overflowed;
+      if (!events.containsKey(name) && events.size() >= ws.fs.maxEvents) {
+        overflowed = true;
+        if (enqueue) {
+          try {
+            q.put(this);
+          } catch (InterruptedException ex) {
+            // Queue closed.  Nothing to do here.
+          }
+        }
+        return true;
+      }
       Set<WatchEvent.Kind<Path>> kinds = events.get(name);
       if (kinds == null) {
         events.put(name, kinds = Sets.newLinkedHashSet());
@@ -1134,6 +1180,15 @@ final class Node {
   final ByteArrayOutputStream content;
   final List<StubWatchKey> watchers;
   private int openCount;
+  /**
+   * A logical clock used for modified times so that every write produces a
+   * distinct modified time.
+   */
+  private static final AtomicLong MOD_CLOCK = new AtomicLong();
+  private volatile long modified = MOD_CLOCK.incrementAndGet();
+  private static final AtomicLong FILE_KEY_COUNTER = new AtomicLong();
+  /** Analogous to an inode number. */
+  private final Long fileKey = FILE_KEY_COUNTER.incrementAndGet();
 
   Node(String name, @Nullable Node parent, boolean isDir) {
     this.name = name;
@@ -1214,9 +1269,16 @@ final class Node {
     return out;
   }
 
+  long getModified() { return modified; }
+
+  Long getFileKey() { return fileKey; }
+
+  void touch() { modified = MOD_CLOCK.incrementAndGet(); }
+
   synchronized void releaseWrite() {
     if (openCount != -1) { throw new IllegalStateException(); }
     openCount = 0;
+    touch();
     parent.bcast(StandardWatchEventKind.ENTRY_CREATE, name);
   }
   synchronized void releaseRead() {